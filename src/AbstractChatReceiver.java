@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Common base for the threads that drain the chat socket. Subclasses only need
+// to know how to pull datagrams off of their socket; turning the raw packet
+// data into a ChatEntry (either inline or through a ReceivePipeline) and
+// handing it to the callback is done here so both receive engines behave the
+// same way.
+public abstract class AbstractChatReceiver extends Thread
+{
+  private volatile ChatEntryReceived callback_;
+  private volatile ReceivePipeline pipeline_ = null;
+  private volatile SourceRateLimiter sourceLimiter_ = null;
+  protected volatile boolean running_ = false;
+  protected AtomicBoolean stopRequested_ = new AtomicBoolean(false);
+  // Why the receiver stopped, if it wasn't asked to
+  protected volatile IOException error_ = null;
+  private AtomicLong filteredCount_ = new AtomicLong();
+
+  protected AbstractChatReceiver(ChatEntryReceived callback)
+  {
+    callback_ = callback;
+  }
+
+  public boolean isRunning()
+  {
+    return running_;
+  }
+
+  // The socket error that stopped the receiver, or null if it's still
+  // running or was stopped on request
+  public IOException getError()
+  {
+    return error_;
+  }
+
+  // Packets turned away before being copied or decrypted because they can't
+  // belong to a joined channel
+  public long getFilteredCount()
+  {
+    return filteredCount_.get();
+  }
+
+  public ChatEntryReceived getCallback()
+  {
+    return callback_;
+  }
+
+  public void setCallback(ChatEntryReceived callback)
+  {
+    callback_ = callback;
+    ReceivePipeline pipeline = pipeline_;
+    if (pipeline != null)
+    {
+      pipeline.setCallback(callback);
+    }
+  }
+
+  public ReceivePipeline getPipeline()
+  {
+    return pipeline_;
+  }
+
+  // When a pipeline is set, packets are handed off to it instead of being
+  // decrypted on the receiver thread. The pipeline is owned by the caller,
+  // which is responsible for starting and stopping it.
+  public void setPipeline(ReceivePipeline pipeline)
+  {
+    if (pipeline != null)
+    {
+      pipeline.setCallback(callback_);
+    }
+
+    pipeline_ = pipeline;
+  }
+
+  public SourceRateLimiter getSourceLimiter()
+  {
+    return sourceLimiter_;
+  }
+
+  // Packets from a source that's over its rate are shed before they're
+  // copied or decrypted. Pass null to stop limiting.
+  public void setSourceLimiter(SourceRateLimiter sourceLimiter)
+  {
+    sourceLimiter_ = sourceLimiter;
+  }
+
+  public void requestStop()
+  {
+    stopRequested_.set(true);
+  }
+
+  protected void dispatch(byte[] packetData, int packetLength,
+    InetAddress source)
+  {
+    // Most of the traffic on a shared group is for other channels; checking
+    // the socket buffer in place keeps that traffic from costing a copy.
+    if (!ChatEntry.mightBeForJoinedChannel(packetData, packetLength))
+    {
+      filteredCount_.incrementAndGet();
+      return;
+    }
+
+    // Only packets that would otherwise be decrypted count against the
+    // source's rate.
+    SourceRateLimiter sourceLimiter = sourceLimiter_;
+    if (sourceLimiter != null && !sourceLimiter.allow(source))
+    {
+      return;
+    }
+
+    ReceivePipeline pipeline = pipeline_;
+    if (pipeline != null)
+    {
+      pipeline.submit(packetData, packetLength);
+      return;
+    }
+
+    ChatEntry chatEntry = ChatEntry.decrypt(packetData, packetLength);
+    if (chatEntry == null)
+    {
+      return;
+    }
+
+    ChatEntryReceived callback = callback_;
+    if (callback != null)
+    {
+      callback.received(chatEntry);
+    }
+  }
+}
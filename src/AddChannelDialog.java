@@ -4,6 +4,9 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.concurrent.ExecutionException;
 
 public class AddChannelDialog extends JDialog
 {
@@ -13,12 +16,15 @@ public class AddChannelDialog extends JDialog
   private JTextField channelNameText;
   private JCheckBox useCustomPasswordCheck;
   private JPasswordField passwordText;
+  private JProgressBar progressBar;
   private JButton okButton;
   private JButton cancelButton;
 
   // property fields
   private boolean cancelled_ = true;
   private Channel channel_ = null;
+  // Derivation that's currently running, if any. Only touched on the EDT.
+  private ChannelDerivation derivation_ = null;
 
   public AddChannelDialog()
   {
@@ -94,6 +100,14 @@ public class AddChannelDialog extends JDialog
     contentPanel.add((passwordText = new JPasswordField(20)), constraints);
     passwordText.setEnabled(false);
 
+    // Key derivation progress bar
+    constraints.gridx = 0;
+    constraints.gridy++;
+    constraints.gridwidth = 2;
+    contentPanel.add((progressBar = new JProgressBar(0, 100)), constraints);
+    progressBar.setStringPainted(true);
+    progressBar.setString("");
+
     // OK button
     buttonPanel.add((okButton = new JButton("OK")));
     okButton.addActionListener(new ActionListener()
@@ -110,22 +124,64 @@ public class AddChannelDialog extends JDialog
           return;
         }
 
-        cancelled_ = false;
+        if (derivation_ != null)
+        {
+          // Already working on it
+          return;
+        }
+
+        // Deriving the channel takes a while, so do it in the background and
+        // keep the rest of the UI running in the meantime.
+        setInputsEnabled(false);
+        progressBar.setValue(0);
+        progressBar.setString("Deriving channel keys...");
+        ChannelDerivation.Listener listener = new ChannelDerivation.Listener()
+        {
+          @Override
+          public void progressChanged(ChannelDerivation derivation,
+            int percent)
+          {
+            EventQueue.invokeLater(new Runnable()
+            {
+              @Override
+              public void run()
+              {
+                if (derivation == derivation_)
+                {
+                  progressBar.setValue(percent);
+                }
+              }
+            });
+          }
+
+          @Override
+          public void finished(ChannelDerivation derivation)
+          {
+            EventQueue.invokeLater(new Runnable()
+            {
+              @Override
+              public void run()
+              {
+                onDerivationFinished(derivation);
+              }
+            });
+          }
+        };
+
         if (useCustomPasswordCheck.isSelected() &&
           passwordText.getPassword().length > 0)
         {
           // This is bad security. Don't do this in any security-necessity
           // production code.
-          String password = new String(passwordText.getPassword());
-          channel_ = Channel.tryFromProtectedName(channelNameText.getText(),
-            new String(passwordText.getPassword()));
+          derivation_ = Channel.fromProtectedNameAsync(
+            channelNameText.getText(), new String(passwordText.getPassword()),
+            listener);
         }
         else
         {
-          channel_ = Channel.tryFromName(channelNameText.getText());
+          derivation_ = Channel.fromNameAsync(channelNameText.getText(),
+            listener);
         }
-
-        setVisible(false);
       }
     });
 
@@ -136,9 +192,70 @@ public class AddChannelDialog extends JDialog
       @Override
       public void actionPerformed(ActionEvent e)
       {
+        cancelDerivation();
         cancelled_ = true;
         setVisible(false);
       }
     });
+
+    // Closing the dialog mid-derivation is the same as cancelling
+    addWindowListener(new WindowAdapter()
+    {
+      @Override
+      public void windowClosing(WindowEvent e)
+      {
+        cancelDerivation();
+        cancelled_ = true;
+      }
+    });
+  }
+
+  private void setInputsEnabled(boolean enabled)
+  {
+    channelNameText.setEnabled(enabled);
+    useCustomPasswordCheck.setEnabled(enabled);
+    passwordText.setEnabled(enabled && useCustomPasswordCheck.isSelected());
+    okButton.setEnabled(enabled);
+  }
+
+  private void cancelDerivation()
+  {
+    if (derivation_ != null)
+    {
+      derivation_.cancel(true);
+      derivation_ = null;
+    }
+
+    progressBar.setValue(0);
+    progressBar.setString("");
+    setInputsEnabled(true);
+  }
+
+  private void onDerivationFinished(ChannelDerivation derivation)
+  {
+    if (derivation != derivation_)
+    {
+      // Cancelled (or superseded); nothing to do.
+      return;
+    }
+
+    derivation_ = null;
+    Channel channel;
+    try
+    {
+      channel = derivation.get();
+    }
+    catch (InterruptedException | ExecutionException ex)
+    {
+      JOptionPane.showMessageDialog(this,
+        "Couldn't create the channel: " + ex.getMessage(), "Add Channel",
+        JOptionPane.ERROR_MESSAGE);
+      cancelDerivation();
+      return;
+    }
+
+    channel_ = channel;
+    cancelled_ = false;
+    setVisible(false);
   }
 }
@@ -0,0 +1,285 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+// Hand-run micro-benchmarks for the hot paths: crypto, serialization and the
+// packet codec. Each benchmark is warmed up first so the JIT has settled,
+// then timed over several fixed-length iterations. Alongside the time per
+// operation, the number of bytes allocated per operation is reported (when
+// the JVM can measure it), so allocation regressions show up as clearly as
+// speed regressions.
+//
+// Run with Benchmarks.runAll() (see PunyChat.runTests()), or pass a name
+// filter to run only the benchmarks whose names contain it.
+public class Benchmarks
+{
+  private static final long WARMUP_MILLIS = 1000;
+  private static final long ITERATION_MILLIS = 500;
+  private static final int ITERATIONS = 5;
+
+  private interface Operation
+  {
+    // The return value is kept so the JIT can't optimize the work away.
+    Object run() throws Exception;
+  }
+
+  private static volatile Object Sink = null;
+
+  public static void runAll()
+  {
+    run("");
+  }
+
+  public static void run(String filter)
+  {
+    try
+    {
+      runBenchmarks(filter);
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+    }
+  }
+
+  private static void runBenchmarks(String filter) throws Exception
+  {
+    // The decrypt benchmarks look the channel up like the receivers do, so
+    // it has to be joined while they run, but not left behind afterwards.
+    Channel channel = Channel.fromName("benchmarks");
+    try
+    {
+      runBenchmarks(filter, channel);
+    }
+    finally
+    {
+      channel.leave();
+    }
+  }
+
+  private static void runBenchmarks(String filter, final Channel channel)
+    throws Exception
+  {
+    final byte[] key = CryptoUtil.getDerivedKey("this is my password");
+    final ChannelCrypto crypto = new ChannelCrypto(key);
+    final ChatMessage message = new ChatMessage("jvsmith",
+      "The quick brown fox jumps over the lazy dog.");
+    final byte[] messageData = message.toByteArray();
+    final Ciphertext ciphertext = CryptoUtil.encrypt(messageData, crypto);
+    final ChatEntry entry = new ChatEntry(channel, message);
+    final byte[] packet = entry.encrypt(ChatEntry.PacketFormat.AUTHENTICATED);
+    final byte[] legacyPacket = entry.encrypt(ChatEntry.PacketFormat.LEGACY);
+    final byte[] copySource = new byte[ChatEntry.MAX_PACKET_SIZE];
+    final byte[] copyTarget = new byte[ChatEntry.MAX_PACKET_SIZE];
+    final byte[] hashInput = "Hello, world!".getBytes();
+
+    System.out.printf("%-36s %14s %14s\n", "Benchmark", "ns/op", "B/op");
+
+    // CryptoUtil
+    measure(filter, "CryptoUtil.encrypt", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        return CryptoUtil.encrypt(messageData, crypto);
+      }
+    });
+    measure(filter, "CryptoUtil.decrypt", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        return CryptoUtil.decrypt(ciphertext, crypto);
+      }
+    });
+    measure(filter, "CryptoUtil.getMemoryBoundHash", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        return CryptoUtil.getMemoryBoundHash(hashInput);
+      }
+    });
+    measure(filter, "CryptoUtil.getDerivedKey", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        return CryptoUtil.getDerivedKey("this is my password");
+      }
+    });
+
+    // SerializedBuffer
+    measure(filter, "SerializedBuffer.write", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        return new SerializedBuffer()
+          .write(12345)
+          .write("jvsmith")
+          .write("The quick brown fox jumps over the lazy dog.")
+          .toByteArray();
+      }
+    });
+    measure(filter, "SerializedBuffer.read", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        SerializedBuffer reader = new SerializedBuffer(messageData, 0,
+          messageData.length);
+        reader.readInt();
+        reader.readInt();
+        reader.readInt();
+        reader.readString();
+        return reader.readString();
+      }
+    });
+
+    // ByteIOStream
+    measure(filter, "ByteIOStream.copy", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        ByteIOStream.copy(copySource, 0, copyTarget, 0, copySource.length);
+        return copyTarget;
+      }
+    });
+    measure(filter, "ByteIOStream.write", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        ByteIOStream stream = new ByteIOStream();
+        stream.write(channel.getHash());
+        stream.write(copySource);
+        return stream.toByteArray();
+      }
+    });
+
+    // ChatMessage
+    measure(filter, "ChatMessage.toByteArray", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        return message.toByteArray();
+      }
+    });
+    measure(filter, "ChatMessage.fromByteArray", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        return ChatMessage.fromByteArray(messageData);
+      }
+    });
+
+    // ChatEntry (the full packet codec)
+    measure(filter, "ChatEntry.encrypt", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        return entry.encrypt(ChatEntry.PacketFormat.AUTHENTICATED);
+      }
+    });
+    measure(filter, "ChatEntry.encrypt (legacy)", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        return entry.encrypt(ChatEntry.PacketFormat.LEGACY);
+      }
+    });
+    measure(filter, "ChatEntry.decrypt", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        return ChatEntry.decrypt(packet, packet.length);
+      }
+    });
+    measure(filter, "ChatEntry.decrypt (legacy)", new Operation()
+    {
+      @Override
+      public Object run() throws Exception
+      {
+        return ChatEntry.decrypt(legacyPacket, legacyPacket.length);
+      }
+    });
+  }
+
+  private static void measure(String filter, String name,
+    Operation operation)
+    throws Exception
+  {
+    if (!StringUtil.isNullOrEmpty(filter) && !name.contains(filter))
+    {
+      return;
+    }
+
+    // Warm up
+    runFor(operation, WARMUP_MILLIS);
+
+    long totalOperations = 0;
+    long totalNanos = 0;
+    long totalBytes = 0;
+    long startBytes = getAllocatedBytes();
+    for (int i = 0; i < ITERATIONS; i++)
+    {
+      long start = System.nanoTime();
+      totalOperations += runFor(operation, ITERATION_MILLIS);
+      totalNanos += System.nanoTime() - start;
+    }
+
+    long endBytes = getAllocatedBytes();
+    if (startBytes >= 0 && endBytes >= 0)
+    {
+      totalBytes = endBytes - startBytes;
+    }
+
+    System.out.printf("%-36s %14.1f %14s\n", name,
+      totalNanos / (double)totalOperations,
+      (startBytes < 0 ? "n/a" :
+        String.format("%.1f", totalBytes / (double)totalOperations)));
+  }
+
+  // Runs the operation repeatedly for (at least) the given time and returns
+  // how many times it ran.
+  private static long runFor(Operation operation, long millis)
+    throws Exception
+  {
+    long deadline = System.nanoTime() + millis * 1000000L;
+    long count = 0;
+    do
+    {
+      // Check the clock every few operations rather than every one, so
+      // nanoTime() doesn't dominate the fast benchmarks.
+      for (int i = 0; i < 16; i++)
+      {
+        Sink = operation.run();
+      }
+
+      count += 16;
+    } while (System.nanoTime() < deadline);
+
+    return count;
+  }
+
+  // Bytes allocated so far by the current thread, or -1 if the JVM can't
+  // tell us.
+  private static long getAllocatedBytes()
+  {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+    {
+      return -1;
+    }
+
+    return ((com.sun.management.ThreadMXBean)threadBean)
+      .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -49,6 +49,19 @@ public class ByteIOStream
     length_ = buffer_.length;
   }
 
+  // Creates a stream over part of an existing array without copying it.
+  // Reading starts at offset and stops at offset + length. The array is
+  // shared with the caller, so a wrapped stream should only be read from.
+  public static ByteIOStream wrap(byte[] buffer, int offset, int length)
+  {
+    ByteIOStream stream = new ByteIOStream();
+    stream.buffer_ = buffer;
+    stream.capacity_ = buffer.length;
+    stream.length_ = offset + length;
+    stream.position_ = offset;
+    return stream;
+  }
+
   public int getLength()
   {
     return length_;
@@ -145,9 +158,14 @@ public class ByteIOStream
 
   public byte readByte()
   {
-    byte[] result = new byte[1];
-    read(result, 0, 1);
-    return result[0];
+    // Reading past the end yields zero without moving the position, the same
+    // as reading into a zeroed single-element array would.
+    if (position_ >= length_ || position_ < 0)
+    {
+      return 0;
+    }
+
+    return buffer_[position_++];
   }
 
   public byte[] readToEnd()
@@ -1,16 +1,42 @@
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class Channel
 {
-  // Global collection of all channels
-  private static HashMap<ByteArrayKey, Channel> Channels = new HashMap<>();
+  // Global collection of all joined channels. Channels are joined (derived)
+  // on background threads and left from the UI while the receiver threads
+  // look them up; the index handles that without making lookups lock.
+  private static ChannelIndex Channels = new ChannelIndex();
+  // Runs asynchronous channel derivations
+  private static ExecutorService DerivationExecutor =
+    Executors.newCachedThreadPool(new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(Runnable runnable)
+      {
+        Thread thread = new Thread(runnable, "PunyChat key derivation");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  // Optional on-disk cache of derived channels; null when caching is off.
+  private static volatile ChannelKeyCache KeyCache = null;
 
   private String name_ = null;
   private byte[] hash_ = null;
   private byte[] key_ = null;
+  private ChannelCrypto crypto_ = null;
 
   public Channel()
   {
@@ -21,7 +47,8 @@ public class Channel
     name_ = name;
     hash_ = hash;
     key_ = key;
-    Channels.put(new ByteArrayKey(hash), this);
+    crypto_ = new ChannelCrypto(key);
+    Channels.add(this);
   }
 
   public String getName()
@@ -39,6 +66,49 @@ public class Channel
     return key_;
   }
 
+  public ChannelCrypto getCrypto()
+  {
+    return crypto_;
+  }
+
+  public boolean isJoined()
+  {
+    return Channels.find(hash_, 0) == this;
+  }
+
+  // Stops receiving on this channel and wipes its key, including the copy in
+  // the key cache. Packets for the channel are ignored from then on (ones
+  // already being decrypted fail quietly), and the channel can't be used to
+  // send. To come back to the channel, derive it again.
+  public void leave()
+  {
+    if (hash_ == null)
+    {
+      return;
+    }
+
+    if (Channels.find(hash_, 0) == this)
+    {
+      Channels.remove(this);
+    }
+
+    if (crypto_ != null)
+    {
+      crypto_.destroy();
+    }
+
+    if (key_ != null)
+    {
+      Arrays.fill(key_, (byte)0);
+    }
+
+    ChannelKeyCache keyCache = KeyCache;
+    if (keyCache != null && name_ != null)
+    {
+      keyCache.tryRemove(name_);
+    }
+  }
+
   @Override
   public String toString()
   {
@@ -62,23 +132,28 @@ public class Channel
     return Arrays.hashCode(hash_);
   }
 
+  public static ChannelKeyCache getKeyCache()
+  {
+    return KeyCache;
+  }
+
+  // Channels derived from now on are looked up in (and added to) the given
+  // cache before falling back to deriving them. Pass null to stop caching.
+  public static void setKeyCache(ChannelKeyCache keyCache)
+  {
+    KeyCache = keyCache;
+  }
+
   public static Channel find(byte[] channelHash)
   {
-    ByteArrayKey hashKey;
-    try
-    {
-      hashKey = new ByteArrayKey(channelHash);
-      if (Channels.containsKey(hashKey))
-      {
-        return Channels.get(hashKey);
-      }
-    }
-    catch (NullPointerException ex)
-    {
-      // ignore and continue
-    }
+    return find(channelHash, 0);
+  }
 
-    return null;
+  // Finds the channel whose hash starts at buffer[offset], without copying it
+  // out of the buffer first.
+  public static Channel find(byte[] buffer, int offset)
+  {
+    return Channels.find(buffer, offset);
   }
 
   public static Channel fromName(String name)
@@ -93,17 +168,134 @@ public class Channel
   // itself.
   public static Channel fromProtectedName(String name, String password)
     throws NoSuchAlgorithmException, IOException
+  {
+    return fromProtectedName(name, password, null);
+  }
+
+  // Same as above, but reports progress while the channel hash is being
+  // computed. Returns null (and registers nothing) if the progress callback
+  // asks to stop.
+  public static Channel fromProtectedName(String name, String password,
+    ProgressChanged progress)
+    throws NoSuchAlgorithmException, IOException
   {
     if (StringUtil.isNullOrEmpty(name))
     {
       return new Channel();
     }
 
-    byte[] hash = CryptoUtil.getMemoryBoundHash(name.getBytes());
+    ChannelKeyCache keyCache = KeyCache;
+    if (keyCache != null)
+    {
+      byte[][] cached = keyCache.lookup(name, password);
+      if (cached != null)
+      {
+        if (progress != null && !progress.progressChanged(1, 1))
+        {
+          return null;
+        }
+
+        return new Channel(name, cached[0], cached[1]);
+      }
+    }
+
+    int rounds = CryptoUtil.getDefaultMemoryHashRounds();
+    byte[] hash = CryptoUtil.getMemoryBoundHash(name.getBytes(), rounds,
+      rounds, progress);
+    if (hash == null)
+    {
+      return null;
+    }
+
     byte[] key = CryptoUtil.getDerivedKey(password);
+    if (progress != null && !progress.progressChanged(1, 1))
+    {
+      // Cancelled while the key was being derived
+      return null;
+    }
+
+    if (keyCache != null && key != null)
+    {
+      keyCache.tryStore(name, password, hash, key);
+    }
+
     return new Channel(name, hash, key);
   }
 
+  // Derives a channel on a background thread. The listener (which may be
+  // null) is told about progress and completion from that thread.
+  public static ChannelDerivation fromNameAsync(String name,
+    ChannelDerivation.Listener listener)
+  {
+    return fromProtectedNameAsync(name, name, listener);
+  }
+
+  public static ChannelDerivation fromProtectedNameAsync(String name,
+    String password, ChannelDerivation.Listener listener)
+  {
+    ChannelDerivation derivation = new ChannelDerivation(name, password,
+      listener);
+    DerivationExecutor.execute(derivation);
+    return derivation;
+  }
+
+  // Derives several channels at once. Each derivation is independent and
+  // CPU-bound, so they're spread across the given executor (one thread per
+  // core by default). Every channel is registered the moment its own derivation
+  // finishes, so the first ones can start receiving messages before the rest
+  // are done. The result is in the same order as names; any channel that
+  // couldn't be derived is null.
+  public static List<Channel> fromNames(List<String> names,
+    ExecutorService executor)
+    throws InterruptedException
+  {
+    List<Callable<Channel>> tasks = new ArrayList<>(names.size());
+    for (String name : names)
+    {
+      tasks.add(new Callable<Channel>()
+      {
+        @Override
+        public Channel call() throws Exception
+        {
+          return fromName(name);
+        }
+      });
+    }
+
+    List<Channel> result = new ArrayList<>(names.size());
+    for (Future<Channel> future : executor.invokeAll(tasks))
+    {
+      try
+      {
+        result.add(future.get());
+      }
+      catch (ExecutionException ex)
+      {
+        ex.getCause().printStackTrace();
+        result.add(null);
+      }
+    }
+
+    return result;
+  }
+
+  public static List<Channel> fromNames(List<String> names)
+    throws InterruptedException
+  {
+    // Not the common pool: it leaves a core for the caller, which only waits
+    // here, and long derivations would tie it up for everyone else.
+    ForkJoinPool pool = new ForkJoinPool(
+      Runtime.getRuntime().availableProcessors());
+    try
+    {
+      return fromNames(names, pool);
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+  }
+
   public static Channel tryFromName(String name)
   {
     try
@@ -128,8 +320,16 @@ public class Channel
     }
   }
 
+  // A quick, allocation-free check for whether the hash at buffer[offset]
+  // could belong to a joined channel. False is always right; true has to be
+  // confirmed with find().
+  public static boolean mightBeJoined(byte[] buffer, int offset)
+  {
+    return Channels.mightContain(buffer, offset);
+  }
+
   public static Channel[] getAllChannels()
   {
-    return Channels.values().toArray(new Channel[0]);
+    return Channels.toArray();
   }
 }
@@ -0,0 +1,82 @@
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.NoSuchAlgorithmException;
+
+// Holds the ready-to-use cryptographic state for a single channel so it
+// doesn't have to be rebuilt for every packet. The key spec is immutable and
+// can be shared; Cipher objects aren't thread-safe, so each thread that works
+// with the channel gets its own.
+public class ChannelCrypto
+{
+  private volatile SecretKeySpec keySpec_;
+  private volatile ThreadLocal<Cipher> cipher_ = new ThreadLocal<>();
+  private volatile ThreadLocal<Cipher> authenticatedCipher_ =
+    new ThreadLocal<>();
+
+  public ChannelCrypto(byte[] key)
+  {
+    keySpec_ = new SecretKeySpec(key, CryptoUtil.getDefaultCipherAlgorithm());
+  }
+
+  public SecretKeySpec getKeySpec()
+  {
+    SecretKeySpec keySpec = keySpec_;
+    if (keySpec == null)
+    {
+      throw new IllegalStateException("The channel has been left");
+    }
+
+    return keySpec;
+  }
+
+  public boolean isDestroyed()
+  {
+    return keySpec_ == null;
+  }
+
+  // Lets go of the key and every thread's initialized cipher, so nothing
+  // here keeps the key alive once the channel has been left. SecretKeySpec
+  // keeps its own copy of the key that can't be wiped in place; dropping the
+  // last reference is the best that can be done for it.
+  public void destroy()
+  {
+    keySpec_ = null;
+    cipher_ = new ThreadLocal<>();
+    authenticatedCipher_ = new ThreadLocal<>();
+  }
+
+  // Returns this thread's cipher for the channel. Callers must init() it
+  // before every use, since the IV changes from packet to packet.
+  public Cipher getCipher()
+    throws NoSuchAlgorithmException, NoSuchPaddingException
+  {
+    ThreadLocal<Cipher> ciphers = cipher_;
+    Cipher cipher = ciphers.get();
+    if (cipher == null)
+    {
+      cipher = Cipher.getInstance(
+        CryptoUtil.getDefaultCipherTransformation());
+      ciphers.set(cipher);
+    }
+
+    return cipher;
+  }
+
+  // Same as getCipher(), but for the AES/GCM cipher used by authenticated
+  // packets.
+  public Cipher getAuthenticatedCipher()
+    throws NoSuchAlgorithmException, NoSuchPaddingException
+  {
+    ThreadLocal<Cipher> ciphers = authenticatedCipher_;
+    Cipher cipher = ciphers.get();
+    if (cipher == null)
+    {
+      cipher = Cipher.getInstance(
+        CryptoUtil.getAuthenticatedCipherTransformation());
+      ciphers.set(cipher);
+    }
+
+    return cipher;
+  }
+}
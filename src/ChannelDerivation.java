@@ -0,0 +1,122 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+// A channel whose hash and key are being derived in the background. Deriving
+// a channel is deliberately expensive (see CryptoUtil.getMemoryBoundHash and
+// getDerivedKey), so this lets the UI keep running while it happens. The
+// derivation can be cancelled at any time with cancel(); a cancelled channel
+// doesn't stay registered.
+public class ChannelDerivation extends FutureTask<Channel>
+{
+  public interface Listener
+  {
+    // Called from the derivation thread with a value from 0 to 100
+    void progressChanged(ChannelDerivation derivation, int percent);
+
+    // Called from the derivation thread once the channel is ready, the
+    // derivation failed, or it was cancelled.
+    void finished(ChannelDerivation derivation);
+  }
+
+  // The memory-bound hash reports its own progress; PBKDF2 doesn't, so it's
+  // given a fixed share of the progress bar.
+  private static final int HASH_PERCENT = 80;
+
+  private static class Deriver implements Callable<Channel>
+  {
+    private String name_;
+    private String password_;
+    private ChannelDerivation derivation_ = null;
+
+    private Deriver(String name, String password)
+    {
+      name_ = name;
+      password_ = password;
+    }
+
+    @Override
+    public Channel call() throws Exception
+    {
+      return Channel.fromProtectedName(name_, password_,
+        new ProgressChanged()
+        {
+          @Override
+          public boolean progressChanged(int completed, int total)
+          {
+            derivation_.setProgress(
+              (int)((long)completed * HASH_PERCENT / total));
+            return !derivation_.isCancelled();
+          }
+        });
+    }
+  }
+
+  private String name_;
+  private volatile Listener listener_;
+  private volatile int progress_ = 0;
+
+  public ChannelDerivation(String name, String password, Listener listener)
+  {
+    this(new Deriver(name, password), name, listener);
+  }
+
+  private ChannelDerivation(Deriver deriver, String name, Listener listener)
+  {
+    super(deriver);
+    deriver.derivation_ = this;
+    name_ = name;
+    listener_ = listener;
+  }
+
+  public String getName()
+  {
+    return name_;
+  }
+
+  public int getProgress()
+  {
+    return progress_;
+  }
+
+  private void setProgress(int percent)
+  {
+    if (percent == progress_)
+    {
+      return;
+    }
+
+    progress_ = percent;
+    Listener listener = listener_;
+    if (listener != null)
+    {
+      listener.progressChanged(this, percent);
+    }
+  }
+
+  @Override
+  protected void set(Channel channel)
+  {
+    if (!isCancelled())
+    {
+      setProgress(100);
+    }
+
+    super.set(channel);
+    // A cancel that came in after the last progress check still got the
+    // channel registered, and nobody will ever see it to leave it.
+    if (isCancelled() && channel != null)
+    {
+      channel.leave();
+    }
+  }
+
+  @Override
+  protected void done()
+  {
+    Listener listener = listener_;
+    if (listener != null)
+    {
+      listener.finished(this);
+    }
+  }
+}
@@ -0,0 +1,228 @@
+import java.util.Arrays;
+
+// Maps channel hashes to channels. Every received packet is looked up here,
+// so lookups are built to be cheap: the table is keyed on the first 8 bytes
+// of the hash packed into a long, probed with open addressing, and confirmed
+// against the full hash straight out of the packet buffer, with no allocation
+// and no locking.
+//
+// Alongside the table is a 64 Kbit filter of hash prefixes, so packets for
+// channels that haven't been joined (most of the traffic on a busy group) can
+// be turned away before they're even copied out of the socket buffer. Each
+// joined channel sets two bits, picked by its first and second pair of hash
+// bytes; a packet whose two bits aren't both set can't belong to a joined
+// channel. With a handful of channels nearly every foreign packet fails.
+//
+// Channels are added and removed far less often than packets arrive, so
+// writers copy the whole table and publish the new one through a volatile
+// field. A reader always sees one complete table, either from before or after
+// a change, and toArray() is a snapshot that later changes don't affect.
+public class ChannelIndex
+{
+  private static final int KEY_LENGTH = 8;
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int FILTER_BITS = 1 << 16;
+
+  // Never modified once it's been published
+  private static class Table
+  {
+    private long[] keys_;
+    private Channel[] slots_;
+    // Every channel, in the order they were added
+    private Channel[] channels_;
+    private long[] filter_ = new long[FILTER_BITS / 64];
+
+    private Table(int capacity, Channel[] channels)
+    {
+      keys_ = new long[capacity];
+      slots_ = new Channel[capacity];
+      channels_ = channels;
+    }
+  }
+
+  private volatile Table table_ = new Table(INITIAL_CAPACITY, new Channel[0]);
+
+  public int size()
+  {
+    return table_.channels_.length;
+  }
+
+  // Finds the channel whose hash matches the bytes at buffer[offset] onward.
+  // Returns null if there isn't one, or if the buffer is too short to hold a
+  // whole hash.
+  public Channel find(byte[] buffer, int offset)
+  {
+    if (buffer == null || offset < 0 ||
+      buffer.length - offset < ChatEntry.HASH_LENGTH)
+    {
+      return null;
+    }
+
+    Table table = table_;
+    long key = getKey(buffer, offset);
+    int mask = table.slots_.length - 1;
+    for (int i = mix(key) & mask; ; i = (i + 1) & mask)
+    {
+      Channel channel = table.slots_[i];
+      if (channel == null)
+      {
+        return null;
+      }
+
+      if (table.keys_[i] == key && matches(channel.getHash(), buffer, offset))
+      {
+        return channel;
+      }
+    }
+  }
+
+  // A quick check for whether the hash at buffer[offset] could belong to a
+  // channel in the index. False means it definitely doesn't; true means it
+  // might, and find() has the final say. The buffer has to hold at least 4
+  // bytes past the offset.
+  public boolean mightContain(byte[] buffer, int offset)
+  {
+    long[] filter = table_.filter_;
+    int first = getFilterBit(buffer, offset);
+    int second = getFilterBit(buffer, offset + 2);
+    return (filter[first >>> 6] & (1L << first)) != 0 &&
+      (filter[second >>> 6] & (1L << second)) != 0;
+  }
+
+  // Adds a channel, replacing any channel with the same hash.
+  public synchronized void add(Channel channel)
+  {
+    byte[] hash = channel.getHash();
+    if (hash == null || hash.length < ChatEntry.HASH_LENGTH)
+    {
+      return;
+    }
+
+    Channel[] channels = table_.channels_;
+    Channel existing = find(hash, 0);
+    if (existing == null)
+    {
+      channels = Arrays.copyOf(channels, channels.length + 1);
+      channels[channels.length - 1] = channel;
+    }
+    else
+    {
+      channels = channels.clone();
+      for (int i = 0; i < channels.length; i++)
+      {
+        if (channels[i] == existing)
+        {
+          channels[i] = channel;
+        }
+      }
+    }
+
+    table_ = build(channels);
+  }
+
+  // Removes the channel with the same hash as the given one. Returns the
+  // channel that was removed, or null if there wasn't one.
+  public synchronized Channel remove(Channel channel)
+  {
+    byte[] hash = channel.getHash();
+    if (hash == null || hash.length < ChatEntry.HASH_LENGTH)
+    {
+      return null;
+    }
+
+    Channel existing = find(hash, 0);
+    if (existing == null)
+    {
+      return null;
+    }
+
+    Channel[] channels = table_.channels_;
+    Channel[] remaining = new Channel[channels.length - 1];
+    int count = 0;
+    for (Channel other : channels)
+    {
+      if (other != existing)
+      {
+        remaining[count++] = other;
+      }
+    }
+
+    table_ = build(remaining);
+    return existing;
+  }
+
+  // Every channel, in the order they were added
+  public Channel[] toArray()
+  {
+    return table_.channels_.clone();
+  }
+
+  private static Table build(Channel[] channels)
+  {
+    // Keep the table at most half full so probe chains stay short.
+    int capacity = INITIAL_CAPACITY;
+    while (capacity < channels.length * 2)
+    {
+      capacity <<= 1;
+    }
+
+    Table table = new Table(capacity, channels);
+    int mask = capacity - 1;
+    for (Channel channel : channels)
+    {
+      long key = getKey(channel.getHash(), 0);
+      int i = mix(key) & mask;
+      while (table.slots_[i] != null)
+      {
+        i = (i + 1) & mask;
+      }
+
+      table.keys_[i] = key;
+      table.slots_[i] = channel;
+
+      byte[] hash = channel.getHash();
+      int first = getFilterBit(hash, 0);
+      int second = getFilterBit(hash, 2);
+      table.filter_[first >>> 6] |= (1L << first);
+      table.filter_[second >>> 6] |= (1L << second);
+    }
+
+    return table;
+  }
+
+  private static long getKey(byte[] buffer, int offset)
+  {
+    long key = 0;
+    for (int i = 0; i < KEY_LENGTH; i++)
+    {
+      key = (key << 8) | (buffer[offset + i] & 0xff);
+    }
+
+    return key;
+  }
+
+  private static int getFilterBit(byte[] buffer, int offset)
+  {
+    return ((buffer[offset] & 0xff) << 8) | (buffer[offset + 1] & 0xff);
+  }
+
+  // The hash bytes are already well mixed, but fold the high half in anyway
+  // so the slot doesn't depend only on bytes 4 through 7.
+  private static int mix(long key)
+  {
+    return (int)(key ^ (key >>> 32));
+  }
+
+  private static boolean matches(byte[] hash, byte[] buffer, int offset)
+  {
+    for (int i = KEY_LENGTH; i < ChatEntry.HASH_LENGTH; i++)
+    {
+      if (hash[i] != buffer[offset + i])
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,311 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// An opt-in, on-disk cache of derived channel hashes and keys. Deriving a
+// channel is deliberately slow, so remembering the results saves re-deriving
+// every channel on every launch. The cache only exists while it's turned on:
+// it's created when the user opts in and deleted when they opt out, so
+// whether it exists is what carries the choice over to the next launch.
+//
+// The cache file is encrypted with AES/GCM under a random store key that's
+// kept in a separate file. Both are in a directory only the current user can
+// get into, and are themselves created so only that user can read them.
+//
+// Entries remember the parameters they were derived with; if those change
+// (see CryptoUtil.getKeyDerivationParameters), the entry is treated as a miss.
+public class ChannelKeyCache
+{
+  private static final String DATA_FILE_NAME = "channel-keys.dat";
+  private static final String KEY_FILE_NAME = "channel-keys.key";
+  private static final int STORE_KEY_LENGTH = 32;
+  // Covered by the file's authentication tag, so a file from some other
+  // format or version is rejected instead of misread.
+  private static final byte[] FILE_HEADER = "PunyChat keys 1".getBytes();
+
+  private static class Entry
+  {
+    private byte[] passwordCheck_;
+    private String parameters_;
+    private byte[] hash_;
+    private byte[] key_;
+  }
+
+  private File dataFile_;
+  private ChannelCrypto storeCrypto_;
+  private HashMap<String, Entry> entries_ = new HashMap<>();
+
+  private ChannelKeyCache(File dataFile, byte[] storeKey)
+  {
+    dataFile_ = dataFile;
+    storeCrypto_ = new ChannelCrypto(storeKey);
+  }
+
+  public static File getDefaultDirectory()
+  {
+    return new File(System.getProperty("user.home"), ".punychat");
+  }
+
+  // Opens (or creates) the cache in the given directory. A cache file that
+  // can't be read or fails its integrity check is ignored and will be
+  // overwritten by the next store().
+  public static ChannelKeyCache open(File directory) throws IOException
+  {
+    FileUtil.createPrivateDirectory(directory);
+
+    byte[] storeKey = readOrCreateStoreKey(new File(directory, KEY_FILE_NAME));
+    ChannelKeyCache cache = new ChannelKeyCache(
+      new File(directory, DATA_FILE_NAME), storeKey);
+    try
+    {
+      cache.load();
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Ignoring unreadable channel key cache.");
+      ex.printStackTrace();
+      cache.entries_.clear();
+    }
+
+    return cache;
+  }
+
+  public static ChannelKeyCache tryOpen(File directory)
+  {
+    try
+    {
+      return open(directory);
+    }
+    catch (Exception ex)
+    {
+      ex.printStackTrace();
+      return null;
+    }
+  }
+
+  // Whether the cache has been turned on in the directory (and not turned off
+  // since)
+  public static boolean exists(File directory)
+  {
+    return new File(directory, KEY_FILE_NAME).isFile();
+  }
+
+  // Throws away the cache in the directory, keys and all.
+  public static void delete(File directory) throws IOException
+  {
+    for (String name : new String[] { DATA_FILE_NAME, DATA_FILE_NAME + ".tmp",
+      KEY_FILE_NAME, KEY_FILE_NAME + ".tmp" })
+    {
+      Files.deleteIfExists(new File(directory, name).toPath());
+    }
+  }
+
+  public static void tryDelete(File directory)
+  {
+    try
+    {
+      delete(directory);
+    }
+    catch (Exception ex)
+    {
+      ex.printStackTrace();
+    }
+  }
+
+  public synchronized int size()
+  {
+    return entries_.size();
+  }
+
+  // Returns { hash, key } for the channel, or null if it isn't cached under
+  // this password and the current derivation parameters.
+  public synchronized byte[][] lookup(String name, String password)
+  {
+    Entry entry = entries_.get(name);
+    if (entry == null ||
+      !CryptoUtil.getKeyDerivationParameters().equals(entry.parameters_) ||
+      !MessageDigest.isEqual(entry.passwordCheck_,
+        getPasswordCheck(name, password)))
+    {
+      return null;
+    }
+
+    return new byte[][] { entry.hash_.clone(), entry.key_.clone() };
+  }
+
+  public synchronized void store(String name, String password, byte[] hash,
+    byte[] key)
+    throws IOException
+  {
+    Entry entry = new Entry();
+    entry.passwordCheck_ = getPasswordCheck(name, password);
+    entry.parameters_ = CryptoUtil.getKeyDerivationParameters();
+    entry.hash_ = hash.clone();
+    entry.key_ = key.clone();
+    entries_.put(name, entry);
+    save();
+  }
+
+  public boolean tryStore(String name, String password, byte[] hash,
+    byte[] key)
+  {
+    try
+    {
+      store(name, password, hash, key);
+      return true;
+    }
+    catch (Exception ex)
+    {
+      ex.printStackTrace();
+      return false;
+    }
+  }
+
+  public synchronized void remove(String name) throws IOException
+  {
+    if (entries_.remove(name) != null)
+    {
+      save();
+    }
+  }
+
+  public boolean tryRemove(String name)
+  {
+    try
+    {
+      remove(name);
+      return true;
+    }
+    catch (Exception ex)
+    {
+      ex.printStackTrace();
+      return false;
+    }
+  }
+
+  private void load() throws Exception
+  {
+    if (!dataFile_.isFile())
+    {
+      return;
+    }
+
+    // File layout:
+    //   1 = nonce
+    //   2 = encrypted entries followed by the authentication tag
+    byte[] fileData = Files.readAllBytes(dataFile_.toPath());
+    int nonceLength = CryptoUtil.getNonceLength();
+    byte[] data = new byte[fileData.length];
+    int dataLength = CryptoUtil.decryptAuthenticated(fileData, nonceLength,
+      fileData.length - nonceLength, fileData, 0, FILE_HEADER, 0,
+      FILE_HEADER.length, storeCrypto_, data, 0);
+
+    SerializedBuffer reader = new SerializedBuffer(data, 0, dataLength);
+    int count = reader.readInt();
+    for (int i = 0; i < count; i++)
+    {
+      String name = reader.readString();
+      Entry entry = new Entry();
+      entry.passwordCheck_ = reader.readBytes();
+      entry.parameters_ = reader.readString();
+      entry.hash_ = reader.readBytes();
+      entry.key_ = reader.readBytes();
+      entries_.put(name, entry);
+    }
+
+    Arrays.fill(data, (byte)0);
+  }
+
+  private void save() throws IOException
+  {
+    SerializedBuffer buffer = new SerializedBuffer();
+    buffer.write(entries_.size());
+    for (String name : entries_.keySet())
+    {
+      Entry entry = entries_.get(name);
+      buffer
+        .write(name)
+        .write(entry.passwordCheck_)
+        .write(entry.parameters_)
+        .write(entry.hash_)
+        .write(entry.key_)
+        ;
+    }
+
+    byte[] data = buffer.toByteArray();
+    int nonceLength = CryptoUtil.getNonceLength();
+    byte[] fileData = new byte[nonceLength + data.length +
+      CryptoUtil.getTagLength()];
+    CryptoUtil.nextNonce(fileData, 0);
+    try
+    {
+      CryptoUtil.encryptAuthenticated(data, 0, data.length, fileData, 0,
+        FILE_HEADER, 0, FILE_HEADER.length, storeCrypto_, fileData,
+        nonceLength);
+    }
+    catch (Exception ex)
+    {
+      throw new IOException("Couldn't encrypt the channel key cache", ex);
+    }
+    finally
+    {
+      Arrays.fill(data, (byte)0);
+    }
+
+    // Write to a temporary file first so a crash can't leave a half-written
+    // cache behind.
+    Path dataPath = dataFile_.toPath();
+    writePrivateFile(dataPath, fileData);
+  }
+
+  // Replaces the file through a newly created owner-only temporary file, so
+  // the result never keeps the permissions of whatever was there before.
+  private static void writePrivateFile(Path path, byte[] data)
+    throws IOException
+  {
+    Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+    Files.deleteIfExists(tempPath);
+    FileUtil.createPrivateFile(tempPath);
+    Files.write(tempPath, data);
+    Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static byte[] readOrCreateStoreKey(File keyFile) throws IOException
+  {
+    if (keyFile.isFile())
+    {
+      byte[] storeKey = Files.readAllBytes(keyFile.toPath());
+      if (storeKey.length == STORE_KEY_LENGTH)
+      {
+        return storeKey;
+      }
+    }
+
+    byte[] storeKey = new byte[STORE_KEY_LENGTH];
+    new SecureRandom().nextBytes(storeKey);
+    writePrivateFile(keyFile.toPath(), storeKey);
+    return storeKey;
+  }
+
+  // The password itself is never stored, only enough to tell whether a later
+  // lookup used the same one.
+  private static byte[] getPasswordCheck(String name, String password)
+  {
+    try
+    {
+      return CryptoUtil.getHash((name + "\0" + password).getBytes());
+    }
+    catch (Exception ex)
+    {
+      // SHA-224 is always available
+      throw new IllegalStateException(ex);
+    }
+  }
+}
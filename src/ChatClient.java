@@ -9,22 +9,63 @@
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.spec.InvalidParameterSpecException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatClient
 {
-  private ChatReceiver receiver_ = null;
-  private ChatEntryReceived entryReceivedCallback_ = null;
+  private AbstractChatReceiver receiver_ = null;
+  private ReceivePipeline pipeline_ = null;
+  private volatile ChatEntryReceived entryReceivedCallback_ = null;
   private DatagramSocket receiverSocket_ = null;
+  private DatagramChannel receiverChannel_ = null;
   private DatagramSocket senderSocket_ = null;
+  private volatile ChatSender sender_ = null;
+  private SendPacer pacer_ = new SendPacer(Configuration.DEFAULT_SEND_RATE,
+    Configuration.DEFAULT_SEND_BURST, Configuration.DEFAULT_CHANNEL_SEND_RATE,
+    Configuration.DEFAULT_CHANNEL_SEND_BURST);
   private InetAddress address_ = null;
   private int port_ = 0;
   private String userName_ = System.getProperty("user.name");
+  private ChatEntry.PacketFormat packetFormat_ =
+    ChatEntry.PacketFormat.AUTHENTICATED;
+  private FragmentReassembler reassembler_ = new FragmentReassembler();
+  private SourceRateLimiter sourceLimiter_ = null;
+  // Fragment ids only need to be unique per sender for a while; starting
+  // somewhere random keeps a restarted client from reusing the ids of its
+  // previous run.
+  private AtomicInteger nextMessageId_ =
+    new AtomicInteger(new Random().nextInt() & Integer.MAX_VALUE);
+  // Every packet is stamped with this client's id and the next sequence
+  // number so receivers can throw away duplicates and replays. Zero means
+  // "not stamped", so it's never used as an id.
+  private int senderId_ = newSenderId();
+  private AtomicInteger nextSequence_ = new AtomicInteger();
+  private ReplayWindow replayWindow_ = new ReplayWindow();
+  // Where sent and received messages are recorded; null when history isn't
+  // being kept
+  private volatile MessageJournal journal_ = null;
+  // Receivers always deliver here; fragments are reassembled before anything
+  // reaches entryReceivedCallback_.
+  private ChatEntryReceived deliveryCallback_ = new ChatEntryReceived()
+  {
+    @Override
+    public void received(ChatEntry entry)
+    {
+      deliver(entry);
+    }
+  };
 
   public ChatEntryReceived getEntryReceivedCallback()
   {
@@ -34,10 +75,42 @@ public class ChatClient
   public void setEntryReceivedCallback(ChatEntryReceived callback)
   {
     entryReceivedCallback_ = callback;
-    if (receiver_ != null)
+  }
+
+  public FragmentReassembler getReassembler()
+  {
+    return reassembler_;
+  }
+
+  public ReplayWindow getReplayWindow()
+  {
+    return replayWindow_;
+  }
+
+  public int getSenderId()
+  {
+    return senderId_;
+  }
+
+  public MessageJournal getJournal()
+  {
+    return journal_;
+  }
+
+  public void setJournal(MessageJournal journal)
+  {
+    journal_ = journal;
+  }
+
+  private static int newSenderId()
+  {
+    int senderId = 0;
+    while (senderId == 0)
     {
-      receiver_.setCallback(entryReceivedCallback_);
+      senderId = new SecureRandom().nextInt();
     }
+
+    return senderId;
   }
 
   public void configure(Configuration config)
@@ -51,8 +124,10 @@ public class ChatClient
     userName_ = config.getUserName();
     address_ = config.getAddress();
     port_ = config.getPort();
+    packetFormat_ = config.getPacketFormat();
 
     // Configure the sender socket
+    stopSender();
     if (senderSocket_ != null)
     {
       senderSocket_.close();
@@ -65,6 +140,13 @@ public class ChatClient
       senderSocket_.setBroadcast(true);
     }
 
+    pacer_.setRates(config.getSendRate(), config.getSendBurst(),
+      config.getChannelSendRate(), config.getChannelSendBurst());
+    sender_ = new ChatSender(senderSocket_, address_, port_, packetFormat_,
+      config.getEncryptWorkerCount(), config.getSendQueueCapacity(),
+      config.getSendDropPolicy(), pacer_);
+    sender_.start();
+
     // Turn off the receiver
     if (receiver_ != null)
     {
@@ -77,32 +159,60 @@ public class ChatClient
       receiver_ = null;
     }
 
+    stopPipeline();
+
     // Configure the receiver socket
-    if (receiverSocket_ != null && ! receiverSocket_.isClosed())
+    closeReceiverSocket();
+    if (config.getReceiverType() == Configuration.ReceiverType.SELECTOR)
     {
-      receiverSocket_.close();
+      receiverChannel_ = openReceiverChannel(config);
     }
 
-    if (config.isMulticast())
+    if (receiverChannel_ != null)
+    {
+      receiver_ = new NioChatReceiver(deliveryCallback_, receiverChannel_);
+    }
+    else
     {
-      receiverSocket_ = new MulticastSocket(port_);
-      if (config.isBoundToInterface())
+      if (config.isMulticast())
       {
-        ((MulticastSocket)receiverSocket_).setNetworkInterface(
-          config.getNetworkInterface());
+        receiverSocket_ = new MulticastSocket(port_);
+        if (config.isBoundToInterface())
+        {
+          ((MulticastSocket)receiverSocket_).setNetworkInterface(
+            config.getNetworkInterface());
+        }
+
+        ((MulticastSocket)receiverSocket_).joinGroup(address_);
+      }
+      else
+      {
+        receiverSocket_ = new DatagramSocket(port_,
+          Configuration.GLOBAL_LISTEN_ADDRESS);
       }
 
-      ((MulticastSocket)receiverSocket_).joinGroup(address_);
+      receiver_ = new ChatReceiver(deliveryCallback_, receiverSocket_);
     }
-    else
+
+    // Limit how much each source can make us decrypt
+    sourceLimiter_ = null;
+    if (config.getSourceRate() > 0)
     {
-      receiverSocket_ = new DatagramSocket(port_,
-        Configuration.GLOBAL_LISTEN_ADDRESS);
+      sourceLimiter_ = new SourceRateLimiter(config.getSourceRate(),
+        config.getSourceBurst());
+      receiver_.setSourceLimiter(sourceLimiter_);
     }
 
+    // Configure the decrypt pipeline
+    if (config.getDecryptWorkerCount() > 0)
+    {
+      pipeline_ = new ReceivePipeline(deliveryCallback_,
+        config.getDecryptWorkerCount(), config.getReceiveQueueCapacity());
+      pipeline_.start();
+      receiver_.setPipeline(pipeline_);
+    }
 
-    // Configure the receiver
-    receiver_ = new ChatReceiver(entryReceivedCallback_, receiverSocket_);
+    // Start the receiver
     receiver_.start();
   }
 
@@ -119,7 +229,8 @@ public class ChatClient
   public void send(ChatEntry chatEntry)
     throws IOException, NoSuchPaddingException, NoSuchAlgorithmException,
     IllegalBlockSizeException, BadPaddingException, InvalidKeyException,
-    InvalidParameterSpecException
+    InvalidParameterSpecException, InvalidAlgorithmParameterException,
+    ShortBufferException
   {
     if (chatEntry == null)
     {
@@ -131,14 +242,209 @@ public class ChatClient
       senderSocket_ = new DatagramSocket();
     }
 
-    byte[] buf = chatEntry.encrypt();
-    DatagramPacket packet = new DatagramPacket(buf, buf.length, address_,
-      port_);
-    senderSocket_.send(packet);
+    List<ChatEntry> fragments = fragment(chatEntry);
+    for (ChatEntry fragment : fragments)
+    {
+      byte[] buf = fragment.encrypt(packetFormat_);
+      DatagramPacket packet = new DatagramPacket(buf, buf.length, address_,
+        port_);
+      try
+      {
+        pacer_.pace(fragment.getChannel());
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while pacing");
+      }
+
+      senderSocket_.send(packet);
+    }
+
+    journalSent(chatEntry, fragments);
+  }
+
+  // Queues the entry to be sent by the sender thread and returns right away.
+  // The future completes once the entry has been sent, or completes
+  // exceptionally if it was dropped (see ChatSender.DropPolicy) or couldn't
+  // be sent. Entries are sent in the order they were queued.
+  public CompletableFuture<Void> sendAsync(ChatEntry chatEntry)
+  {
+    if (chatEntry == null)
+    {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    ChatSender sender = sender_;
+    if (sender == null)
+    {
+      CompletableFuture<Void> result = new CompletableFuture<>();
+      result.completeExceptionally(
+        new IOException("The client hasn't been configured"));
+      return result;
+    }
+
+    try
+    {
+      final List<ChatEntry> fragments = fragment(chatEntry);
+      final ChatEntry sentEntry = chatEntry;
+      CompletableFuture<Void> result = sender.sendAsync(fragments);
+      result.thenRun(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          journalSent(sentEntry, fragments);
+        }
+      });
+      return result;
+    }
+    catch (IOException ex)
+    {
+      CompletableFuture<Void> result = new CompletableFuture<>();
+      result.completeExceptionally(ex);
+      return result;
+    }
+  }
+
+  // Received packets that were dropped up front because they weren't for any
+  // joined channel
+  public long getFilteredPacketCount()
+  {
+    AbstractChatReceiver receiver = receiver_;
+    return (receiver == null ? 0 : receiver.getFilteredCount());
+  }
+
+  // Per-source shed counts for the current receiver; null when per-source
+  // limiting is off.
+  public SourceRateLimiter getSourceLimiter()
+  {
+    return sourceLimiter_;
+  }
+
+  public ChatSender getSender()
+  {
+    return sender_;
+  }
+
+  // Leaves the channel and drops what's kept about it for sending and
+  // receiving.
+  public void leave(Channel channel)
+  {
+    channel.leave();
+    pacer_.removeChannel(channel);
+    reassembler_.removeChannel(channel);
+    ReceivePipeline pipeline = pipeline_;
+    if (pipeline != null)
+    {
+      pipeline.removeChannel(channel);
+    }
+  }
+
+  // Live pacing statistics for everything this client sends
+  public SendPacer getPacer()
+  {
+    return pacer_;
+  }
+
+  // Messages too large for a single packet are sent as several fragments,
+  // which the receiving end puts back together.
+  private List<ChatEntry> fragment(ChatEntry chatEntry) throws IOException
+  {
+    List<ChatMessage> fragments = chatEntry.getMessage().split(
+      nextMessageId_.getAndIncrement() & Integer.MAX_VALUE,
+      ChatEntry.getMaxMessageSize(packetFormat_));
+    if (fragments.size() > reassembler_.getMaxFragments())
+    {
+      throw new IOException("Message is too long to send");
+    }
+
+    List<ChatEntry> entries = new ArrayList<>(fragments.size());
+    for (ChatMessage fragment : fragments)
+    {
+      fragment.setSender(senderId_, nextSequence_.getAndIncrement());
+      entries.add(fragment == chatEntry.getMessage()
+        ? chatEntry
+        : new ChatEntry(chatEntry.getChannel(), fragment));
+    }
+
+    return entries;
+  }
+
+  // Records a message once all of its fragments have been sent. It's
+  // recorded whole, under the first fragment's sender and sequence number,
+  // which is how it's stamped when the group reassembles it, so the copy
+  // that comes back from the group can be recognized as the same message.
+  private void journalSent(ChatEntry chatEntry, List<ChatEntry> fragments)
+  {
+    MessageJournal journal = journal_;
+    if (journal == null)
+    {
+      return;
+    }
+
+    ChatMessage message = chatEntry.getMessage();
+    ChatMessage first = fragments.get(0).getMessage();
+    if (first != message)
+    {
+      message = new ChatMessage(message.getName(), message.getText());
+      message.setSender(first.getSenderId(), first.getSequence());
+    }
+
+    journal.append(chatEntry.getChannel().getHash(), message,
+      MessageJournal.Direction.SENT);
+  }
+
+  private void deliver(ChatEntry entry)
+  {
+    if (!entry.getChannel().isJoined())
+    {
+      // Left since the packet was received
+      return;
+    }
+
+    ChatMessage message = entry.getMessage();
+    if (!replayWindow_.accept(message.getSenderId(), message.getSequence()))
+    {
+      // Already delivered once
+      return;
+    }
+
+    if (message.isFragment())
+    {
+      entry = reassembler_.add(entry);
+      if (entry == null)
+      {
+        // Still waiting on the rest of the message
+        return;
+      }
+    }
+
+    // Only queued here; the journal's own thread does the writing.
+    MessageJournal journal = journal_;
+    if (journal != null)
+    {
+      journal.append(entry, MessageJournal.Direction.RECEIVED);
+    }
+
+    ChatEntryReceived callback = entryReceivedCallback_;
+    if (callback != null)
+    {
+      callback.received(entry);
+    }
   }
 
   public void terminate()
   {
+    try
+    {
+      stopSender();
+    }
+    catch (InterruptedException ex)
+    {
+      // do nothing; we're terminating anyway
+    }
+
     if (senderSocket_ != null && !senderSocket_.isClosed())
     {
       senderSocket_.close();
@@ -159,8 +465,116 @@ public class ChatClient
       }
     }
 
-    receiverSocket_.close();
+    try
+    {
+      stopPipeline();
+    }
+    catch (InterruptedException ex)
+    {
+      // do nothing; we're terminating anyway
+    }
+
+    closeReceiverSocket();
+  }
+
+  private void stopSender() throws InterruptedException
+  {
+    if (sender_ != null)
+    {
+      sender_.stop();
+      sender_ = null;
+    }
+  }
+
+  private void stopPipeline() throws InterruptedException
+  {
+    if (pipeline_ != null)
+    {
+      pipeline_.stop();
+      pipeline_ = null;
+    }
+  }
+
+  private void closeReceiverSocket()
+  {
+    if (receiverSocket_ != null && !receiverSocket_.isClosed())
+    {
+      receiverSocket_.close();
+    }
+
     receiverSocket_ = null;
+    if (receiverChannel_ != null && receiverChannel_.isOpen())
+    {
+      try
+      {
+        receiverChannel_.close();
+      }
+      catch (IOException ex)
+      {
+        // Nothing useful to do; the channel is being discarded either way.
+      }
+    }
+
+    receiverChannel_ = null;
+  }
+
+  // Opens the channel used by the selector-based receiver. Returns null if
+  // the channel can't be used with this configuration (there's no interface
+  // to join the multicast group on), in which case the caller falls back to
+  // the blocking receiver.
+  private DatagramChannel openReceiverChannel(Configuration config)
+    throws IOException
+  {
+    StandardProtocolFamily family = (address_ instanceof Inet6Address
+      ? StandardProtocolFamily.INET6
+      : StandardProtocolFamily.INET);
+    if (!config.isMulticast())
+    {
+      DatagramChannel channel = DatagramChannel.open(
+        StandardProtocolFamily.INET);
+      channel.bind(new InetSocketAddress(Configuration.GLOBAL_LISTEN_ADDRESS,
+        port_));
+      return channel;
+    }
+
+    // Unlike MulticastSocket, a channel has to be told which interface to
+    // join the group on.
+    NetworkInterface netInterface = null;
+    if (config.isBoundToInterface())
+    {
+      netInterface = config.getNetworkInterface();
+    }
+    else
+    {
+      InetAddress defaultAddress = getDefaultAddress();
+      if (defaultAddress != null)
+      {
+        netInterface = NetworkInterface.getByInetAddress(defaultAddress);
+      }
+    }
+
+    if (netInterface == null)
+    {
+      return null;
+    }
+
+    DatagramChannel channel = DatagramChannel.open(family);
+    try
+    {
+      // MulticastSocket turns this on by default; do the same so several
+      // clients on one host can share the port.
+      channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      channel.bind(new InetSocketAddress(port_));
+      channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, netInterface);
+      channel.join(address_, netInterface);
+    }
+    catch (IOException ex)
+    {
+      channel.close();
+      throw ex;
+    }
+
+    return channel;
   }
 
   public static List<NetworkInterface> getValidInterfaces()
@@ -1,15 +1,40 @@
+import javax.crypto.AEADBadTagException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidParameterSpecException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ChatEntry
 {
+  public enum PacketFormat
+  {
+    // Channel hash, IV and AES/CBC ciphertext with no integrity check. Only
+    // needed to talk to older clients.
+    LEGACY,
+    // Versioned header, channel hash, nonce and AES/GCM ciphertext and tag
+    AUTHENTICATED
+  }
+
+  public static final int MAX_PACKET_SIZE = 512;
   private static final int MIN_PACKET_SIZE = 49;
-  private static final int MAX_PACKET_SIZE = 512;
+  public static final int HASH_LENGTH = 28;
+  private static final int IV_LENGTH = 16;
+  // Authenticated packets start with this header. Legacy packets start
+  // directly with the channel hash, so a legacy packet can only be mistaken
+  // for an authenticated one if its hash happens to start with these three
+  // bytes *and* the 28 bytes after them are also a joined channel's hash.
+  private static final byte[] PACKET_HEADER = { 'P', 'C', 2 };
+  private static final int AUTHENTICATED_OVERHEAD = PACKET_HEADER.length +
+    HASH_LENGTH + CryptoUtil.getNonceLength() + CryptoUtil.getTagLength();
+
+  // Number of authenticated packets that failed their tag check
+  private static AtomicLong RejectedCount = new AtomicLong();
 
   private Channel channel_ = null;
   private ChatMessage message_ = null;
@@ -37,10 +62,26 @@ public class ChatEntry
   public byte[] encrypt()
     throws NoSuchPaddingException, NoSuchAlgorithmException,
     IllegalBlockSizeException, BadPaddingException, InvalidKeyException,
-    InvalidParameterSpecException, IOException
+    InvalidParameterSpecException, InvalidAlgorithmParameterException,
+    ShortBufferException, IOException
+  {
+    return encrypt(PacketFormat.AUTHENTICATED);
+  }
+
+  public byte[] encrypt(PacketFormat format)
+    throws NoSuchPaddingException, NoSuchAlgorithmException,
+    IllegalBlockSizeException, BadPaddingException, InvalidKeyException,
+    InvalidParameterSpecException, InvalidAlgorithmParameterException,
+    ShortBufferException, IOException
   {
+    if (format == PacketFormat.AUTHENTICATED)
+    {
+      return encryptAuthenticated();
+    }
+
     byte[] messageData = message_.toByteArray();
-    Ciphertext ciphertext = CryptoUtil.encrypt(messageData, channel_.getKey());
+    Ciphertext ciphertext = CryptoUtil.encrypt(messageData,
+      channel_.getCrypto());
     ByteIOStream outStream = new ByteIOStream();
     // Packet layout:
     //   1 = channel hash
@@ -52,6 +93,53 @@ public class ChatEntry
     return outStream.toByteArray();
   }
 
+  private byte[] encryptAuthenticated()
+    throws NoSuchPaddingException, NoSuchAlgorithmException,
+    IllegalBlockSizeException, BadPaddingException, InvalidKeyException,
+    InvalidAlgorithmParameterException, ShortBufferException, IOException
+  {
+    byte[] messageData = message_.toByteArray();
+    byte[] packet = new byte[AUTHENTICATED_OVERHEAD + messageData.length];
+    // Packet layout:
+    //   1 = header ('P', 'C', version)
+    //   2 = channel hash
+    //   3 = nonce
+    //   4 = encrypted data followed by the authentication tag
+    // The header and channel hash aren't encrypted, but they're covered by
+    // the tag.
+    int hashOffset = PACKET_HEADER.length;
+    int nonceOffset = hashOffset + HASH_LENGTH;
+    int dataOffset = nonceOffset + CryptoUtil.getNonceLength();
+    System.arraycopy(PACKET_HEADER, 0, packet, 0, PACKET_HEADER.length);
+    System.arraycopy(channel_.getHash(), 0, packet, hashOffset, HASH_LENGTH);
+    CryptoUtil.nextNonce(packet, nonceOffset);
+    CryptoUtil.encryptAuthenticated(messageData, 0, messageData.length,
+      packet, nonceOffset, packet, 0, nonceOffset, channel_.getCrypto(),
+      packet, dataOffset);
+    return packet;
+  }
+
+  // The largest serialized ChatMessage that still fits in a single packet of
+  // the given format.
+  public static int getMaxMessageSize(PacketFormat format)
+  {
+    if (format == PacketFormat.AUTHENTICATED)
+    {
+      return MAX_PACKET_SIZE - AUTHENTICATED_OVERHEAD;
+    }
+
+    // CBC rounds the ciphertext up to a whole block and always adds at least
+    // one byte of padding.
+    int maxCiphertext = MAX_PACKET_SIZE - HASH_LENGTH - IV_LENGTH;
+    maxCiphertext -= (maxCiphertext % IV_LENGTH);
+    return maxCiphertext - 1;
+  }
+
+  public static long getRejectedPacketCount()
+  {
+    return RejectedCount.get();
+  }
+
   @Override
   public String toString()
   {
@@ -73,6 +161,21 @@ public class ChatEntry
   }
 
   public static ChatEntry decrypt(byte[] packetBuffer, int packetLength)
+  {
+    Channel channel = findChannel(packetBuffer, packetLength);
+    if (channel == null)
+    {
+      // Not a chat packet, or not a channel key
+      return null;
+    }
+
+    return decrypt(channel, packetBuffer, packetLength);
+  }
+
+  // Determines which channel a packet belongs to without decrypting it. This
+  // returns null for packets that can't be chat messages or that belong to
+  // channels that haven't been joined.
+  public static Channel findChannel(byte[] packetBuffer, int packetLength)
   {
     if (packetLength < MIN_PACKET_SIZE || packetLength > MAX_PACKET_SIZE)
     {
@@ -80,29 +183,156 @@ public class ChatEntry
       return null;
     }
 
-    ByteIOStream packetStream = new ByteIOStream(packetBuffer, packetLength);
-    // Read the first 28 bytes to try to determine the channel
-    byte[] channelHash = packetStream.read(28);
-    Channel channel = Channel.find(channelHash);
-    if (channel == null)
+    if (hasAuthenticatedHeader(packetBuffer, packetLength))
+    {
+      Channel channel = Channel.find(packetBuffer, PACKET_HEADER.length);
+      if (channel != null)
+      {
+        return channel;
+      }
+    }
+
+    // The first 28 bytes of a legacy packet are the channel hash
+    return Channel.find(packetBuffer, 0);
+  }
+
+  // A cheaper check than findChannel() for use on the raw socket buffer:
+  // returns false for packets that can't be chat messages for a joined channel.
+  // Packets that pass still have to go through findChannel().
+  public static boolean mightBeForJoinedChannel(byte[] packetBuffer,
+    int packetLength)
+  {
+    if (packetLength < MIN_PACKET_SIZE || packetLength > MAX_PACKET_SIZE)
+    {
+      return false;
+    }
+
+    if (hasAuthenticatedHeader(packetBuffer, packetLength) &&
+      Channel.mightBeJoined(packetBuffer, PACKET_HEADER.length))
+    {
+      return true;
+    }
+
+    return Channel.mightBeJoined(packetBuffer, 0);
+  }
+
+  // Decrypts a packet that findChannel() has already matched to a channel.
+  // The ciphertext is read straight out of the packet buffer and decrypted
+  // into a pooled buffer, so the packet isn't copied on its way to the parser.
+  public static ChatEntry decrypt(Channel channel, byte[] packetBuffer,
+    int packetLength)
+  {
+    if (channel.getCrypto() == null || channel.getCrypto().isDestroyed())
     {
-      // Not a channel key
+      // The channel was left after the packet was matched to it.
       return null;
     }
 
-    byte[] channelKey = channel.getKey();
-    // Read the initialization vector
-    byte[] channelIv = packetStream.read(16);
-    byte[] encryptedData = packetStream.readToEnd();
-    Ciphertext ciphertext = new Ciphertext(encryptedData, channelIv);
-    byte[] data = ciphertext.tryDecrypt(channelKey);
-    if (data == null)
+    if (isAuthenticated(channel, packetBuffer, packetLength))
+    {
+      return decryptAuthenticated(channel, packetBuffer, packetLength);
+    }
+
+    PacketBufferPool pool = PacketBufferPool.getShared();
+    byte[] data = pool.acquire();
+    try
+    {
+      // Packet layout:
+      //   1 = channel hash
+      //   2 = initialization vector
+      //   3 = encrypted data
+      int dataOffset = HASH_LENGTH + IV_LENGTH;
+      int dataLength = CryptoUtil.decrypt(packetBuffer, dataOffset,
+        packetLength - dataOffset, packetBuffer, HASH_LENGTH,
+        channel.getCrypto(), data, 0);
+      ChatMessage message = ChatMessage.fromByteArray(data, 0, dataLength);
+      return new ChatEntry(channel, message);
+    }
+    catch (Exception ex)
     {
       // Couldn't decrypt the packet
+      System.err.println("Failed to decrypt!");
+      ex.printStackTrace();
+      return null;
+    }
+    finally
+    {
+      pool.release(data);
+    }
+  }
+
+  private static ChatEntry decryptAuthenticated(Channel channel,
+    byte[] packetBuffer, int packetLength)
+  {
+    int nonceOffset = PACKET_HEADER.length + HASH_LENGTH;
+    int dataOffset = nonceOffset + CryptoUtil.getNonceLength();
+    PacketBufferPool pool = PacketBufferPool.getShared();
+    byte[] data = pool.acquire();
+    try
+    {
+      int dataLength = CryptoUtil.decryptAuthenticated(packetBuffer,
+        dataOffset, packetLength - dataOffset, packetBuffer, nonceOffset,
+        packetBuffer, 0, nonceOffset, channel.getCrypto(), data, 0);
+      ChatMessage message = ChatMessage.fromByteArray(data, 0, dataLength);
+      return new ChatEntry(channel, message);
+    }
+    catch (AEADBadTagException ex)
+    {
+      // Corrupted or forged. This is expected traffic rather than an error,
+      // so it's only counted; nothing was decrypted or parsed.
+      RejectedCount.incrementAndGet();
       return null;
     }
+    catch (Exception ex)
+    {
+      System.err.println("Failed to decrypt!");
+      ex.printStackTrace();
+      return null;
+    }
+    finally
+    {
+      pool.release(data);
+    }
+  }
+
+  private static boolean hasAuthenticatedHeader(byte[] packetBuffer,
+    int packetLength)
+  {
+    if (packetLength < AUTHENTICATED_OVERHEAD)
+    {
+      return false;
+    }
+
+    for (int i = 0; i < PACKET_HEADER.length; i++)
+    {
+      if (packetBuffer[i] != PACKET_HEADER[i])
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  // Checks whether a packet that was matched to the given channel is in the
+  // authenticated format, i.e. the channel's hash follows the header.
+  private static boolean isAuthenticated(Channel channel, byte[] packetBuffer,
+    int packetLength)
+  {
+    if (!hasAuthenticatedHeader(packetBuffer, packetLength))
+    {
+      return false;
+    }
+
+    byte[] hash = channel.getHash();
+    for (int i = 0; i < HASH_LENGTH; i++)
+    {
+      if (packetBuffer[PACKET_HEADER.length + i] != hash[i])
+      {
+        return false;
+      }
+    }
 
-    ChatMessage message = ChatMessage.fromByteArray(data);
-    return new ChatEntry(channel, message);
+    return true;
   }
 }
@@ -1,4 +1,6 @@
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ChatMessage
 {
@@ -7,6 +9,10 @@ public class ChatMessage
   private int fragment_ = 0;
   private String name_ = null;
   private String text_ = null;
+  // Stamped by ChatClient as the message is sent; zero for messages from
+  // clients that don't stamp them. See ReplayWindow.
+  private int senderId_ = 0;
+  private int sequence_ = 0;
 
   public ChatMessage()
   {
@@ -18,6 +24,54 @@ public class ChatMessage
     text_ = text;
   }
 
+  public ChatMessage(String name, String text, int id, int count,
+    int fragment)
+  {
+    name_ = name;
+    text_ = text;
+    id_ = id;
+    count_ = count;
+    fragment_ = fragment;
+  }
+
+  public int getId()
+  {
+    return id_;
+  }
+
+  // Number of fragments the original message was split into. Messages that
+  // weren't split have a count of zero.
+  public int getCount()
+  {
+    return count_;
+  }
+
+  public int getFragment()
+  {
+    return fragment_;
+  }
+
+  public int getSenderId()
+  {
+    return senderId_;
+  }
+
+  public int getSequence()
+  {
+    return sequence_;
+  }
+
+  public void setSender(int senderId, int sequence)
+  {
+    senderId_ = senderId;
+    sequence_ = sequence;
+  }
+
+  public boolean isFragment()
+  {
+    return count_ > 1;
+  }
+
   public String getName()
   {
     return name_;
@@ -35,6 +89,58 @@ public class ChatMessage
     return buffer.toByteArray();
   }
 
+  // Splits this message into fragments whose serialized form is no larger than
+  // maxSize bytes. The text is only ever split between characters. A message
+  // that already fits is returned as-is.
+  public List<ChatMessage> split(int id, int maxSize) throws IOException
+  {
+    List<ChatMessage> result = new ArrayList<>();
+    if (toByteArray().length <= maxSize)
+    {
+      result.add(this);
+      return result;
+    }
+
+    // Worst case for everything but the text: five 5-byte LEB-128 ints, the
+    // name and its length, and the length of the text.
+    byte[] nameBytes = (name_ == null ? new byte[0] : name_.getBytes());
+    int textBudget = maxSize - (5 * 5) - (5 + nameBytes.length) - 5;
+    if (textBudget < 4)
+    {
+      throw new IOException("Message name too long to fragment");
+    }
+
+    String text = (text_ == null ? "" : text_);
+    List<String> pieces = new ArrayList<>();
+    StringBuilder piece = new StringBuilder();
+    int pieceSize = 0;
+    int index = 0;
+    while (index < text.length())
+    {
+      int codePoint = text.codePointAt(index);
+      String character = new String(Character.toChars(codePoint));
+      int characterSize = character.getBytes().length;
+      if (pieceSize + characterSize > textBudget)
+      {
+        pieces.add(piece.toString());
+        piece.setLength(0);
+        pieceSize = 0;
+      }
+
+      piece.append(character);
+      pieceSize += characterSize;
+      index += Character.charCount(codePoint);
+    }
+
+    pieces.add(piece.toString());
+    for (int i = 0; i < pieces.size(); i++)
+    {
+      result.add(new ChatMessage(name_, pieces.get(i), id, pieces.size(), i));
+    }
+
+    return result;
+  }
+
   public ChatMessage serializeTo(SerializedBuffer buffer) throws IOException
   {
     buffer
@@ -43,6 +149,8 @@ public class ChatMessage
       .write(fragment_)
       .write(name_)
       .write(text_)
+      .write(senderId_)
+      .write(sequence_)
       ;
     return this;
   }
@@ -57,12 +165,24 @@ public class ChatMessage
 
   public static ChatMessage fromByteArray(byte[] data)
   {
-    if (data == null || data.length == 0)
+    if (data == null)
+    {
+      return new ChatMessage();
+    }
+
+    return fromByteArray(data, 0, data.length);
+  }
+
+  // Parses a message straight out of a region of a (possibly pooled) buffer.
+  // Nothing in the returned message refers back to the buffer.
+  public static ChatMessage fromByteArray(byte[] data, int offset, int length)
+  {
+    if (data == null || length == 0)
     {
       return new ChatMessage();
     }
 
-    SerializedBuffer reader = new SerializedBuffer(data);
+    SerializedBuffer reader = new SerializedBuffer(data, offset, length);
     try
     {
 
@@ -71,10 +191,16 @@ public class ChatMessage
       int fragment = reader.readInt();
       String name = reader.readString();
       String message = reader.readString();
+      // Older clients stop after the text; reading past the end gives zero,
+      // which means "no sender id".
+      int senderId = reader.readInt();
+      int sequence = reader.readInt();
       ChatMessage result = new ChatMessage(name, message);
       result.id_ = id;
       result.count_ = count;
       result.fragment_ = fragment;
+      result.senderId_ = senderId;
+      result.sequence_ = sequence;
       return result;
     }
     catch (Exception ex)
@@ -3,9 +3,8 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.concurrent.atomic.AtomicBoolean;
 
-public class ChatReceiver extends Thread
+public class ChatReceiver extends AbstractChatReceiver
 {
   // The default buffer size is 4kB, which is the size of one memory page (on
   // most architectures)
@@ -15,15 +14,12 @@ public class ChatReceiver extends Thread
   private DatagramSocket socket_;
   private int bufferSize_;
   private byte[] buffer_;
-  private ChatEntryReceived callback_;
-  private boolean running_ = false;
-  private AtomicBoolean stopRequested_ = new AtomicBoolean(false);
 
 
   public ChatReceiver(ChatEntryReceived callback, DatagramSocket chatSocket,
     int bufferSize)
   {
-    callback_ = callback;
+    super(callback);
     socket_ = chatSocket;
     if (bufferSize < MIN_BUFFER_SIZE)
     {
@@ -34,7 +30,7 @@ public class ChatReceiver extends Thread
       bufferSize_ = bufferSize;
     }
 
-    buffer_ = new byte[bufferSize];
+    buffer_ = new byte[bufferSize_];
   }
 
   public ChatReceiver(ChatEntryReceived callback, DatagramSocket chatSocket)
@@ -42,21 +38,6 @@ public class ChatReceiver extends Thread
     this(callback, chatSocket, DEFAULT_BUFFER_SIZE);
   }
 
-  public boolean isRunning()
-  {
-    return running_;
-  }
-
-  public void setCallback(ChatEntryReceived callback)
-  {
-    callback_ = callback;
-  }
-
-  public void requestStop()
-  {
-    stopRequested_.set(true);
-  }
-
   public void run()
   {
     try
@@ -74,21 +55,24 @@ public class ChatReceiver extends Thread
     }
 
     running_ = true;
+    // The packet is reused for every receive; only its length needs to be
+    // reset since receive() shrinks it to the size of the last datagram.
+    DatagramPacket packet = new DatagramPacket(buffer_, buffer_.length);
     while (running_)
     {
-      DatagramPacket packet = new DatagramPacket(buffer_, buffer_.length);
+      if (stopRequested_.get())
+      {
+        // Busy sockets may never time out, so check between packets too.
+        stopRequested_.set(false);
+        running_ = false;
+        break;
+      }
+
+      packet.setLength(buffer_.length);
       try
       {
         socket_.receive(packet);
-        byte[] packetData = packet.getData();
-        ChatEntry chatEntry = ChatEntry.decrypt(packetData,
-          packet.getLength());
-        if (chatEntry == null)
-        {
-          continue;
-        }
-
-        callback_.received(chatEntry);
+        dispatch(packet.getData(), packet.getLength(), packet.getAddress());
       }
       catch (SocketTimeoutException soToEx)
       {
@@ -101,8 +85,8 @@ public class ChatReceiver extends Thread
       }
       catch (IOException ioEx)
       {
-        // TODO
         ioEx.printStackTrace();
+        error_ = ioEx;
         running_ = false;
         break;
       }
@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sends messages without making the caller wait on encryption or the socket.
+// Each message is encrypted on a small pool of workers while it waits in a
+// bounded queue; a single sender thread takes messages off the queue a batch
+// at a time, in the order they were queued, and writes them to the socket
+// (at the pace the SendPacer allows, if there is one).
+//
+// What happens when the queue is full is up to the DropPolicy.
+public class ChatSender
+{
+  public enum DropPolicy
+  {
+    // Fail the new message
+    REJECT,
+    // Fail the oldest queued message to make room for the new one
+    DROP_OLDEST,
+    // Wait for room
+    BLOCK
+  }
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 256;
+  // The most messages the sender thread takes off the queue at once
+  public static final int MAX_BATCH_SIZE = 32;
+
+  // A message waiting to be sent. All of a message's fragments are queued
+  // together, so a message is never interleaved with another.
+  private static class Outgoing
+  {
+    private Channel channel_;
+    private FutureTask<byte[][]> packets_;
+    private CompletableFuture<Void> result_ = new CompletableFuture<>();
+  }
+
+  private DatagramSocket socket_;
+  private InetAddress address_;
+  private int port_;
+  private ChatEntry.PacketFormat packetFormat_;
+  private DropPolicy dropPolicy_;
+  private SendPacer pacer_;
+  private BlockingQueue<Outgoing> queue_;
+  private ExecutorService encryptPool_;
+  private Thread senderThread_;
+  private volatile boolean stopped_ = false;
+  private AtomicLong sentCount_ = new AtomicLong();
+  private AtomicLong droppedCount_ = new AtomicLong();
+  private AtomicLong failedCount_ = new AtomicLong();
+  private AtomicLong batchCount_ = new AtomicLong();
+
+  public ChatSender(DatagramSocket socket, InetAddress address, int port,
+    ChatEntry.PacketFormat packetFormat, int workerCount, int queueCapacity,
+    DropPolicy dropPolicy, SendPacer pacer)
+  {
+    if (workerCount < 1)
+    {
+      workerCount = 1;
+    }
+
+    if (queueCapacity < 1)
+    {
+      queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    }
+
+    socket_ = socket;
+    address_ = address;
+    port_ = port;
+    packetFormat_ = packetFormat;
+    dropPolicy_ = (dropPolicy == null ? DropPolicy.REJECT : dropPolicy);
+    pacer_ = pacer;
+    queue_ = new ArrayBlockingQueue<>(queueCapacity);
+    encryptPool_ = Executors.newFixedThreadPool(workerCount,
+      new ThreadFactory()
+      {
+        private int count_ = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable)
+        {
+          Thread thread = new Thread(runnable,
+            "PunyChat encrypt " + (count_++));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+    senderThread_ = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        runSender();
+      }
+    }, "PunyChat sender");
+    senderThread_.setDaemon(true);
+  }
+
+  public SendPacer getPacer()
+  {
+    return pacer_;
+  }
+
+  public DropPolicy getDropPolicy()
+  {
+    return dropPolicy_;
+  }
+
+  // Messages queued but not yet sent
+  public int getQueueDepth()
+  {
+    return queue_.size();
+  }
+
+  public int getQueueCapacity()
+  {
+    return queue_.size() + queue_.remainingCapacity();
+  }
+
+  public long getSentCount()
+  {
+    return sentCount_.get();
+  }
+
+  // Messages turned away (or pushed out) because the queue was full
+  public long getDroppedCount()
+  {
+    return droppedCount_.get();
+  }
+
+  // Messages that couldn't be encrypted or written to the socket
+  public long getFailedCount()
+  {
+    return failedCount_.get();
+  }
+
+  public long getBatchCount()
+  {
+    return batchCount_.get();
+  }
+
+  public void start()
+  {
+    senderThread_.start();
+  }
+
+  // Stops the sender. Messages that haven't been sent yet are failed.
+  public void stop() throws InterruptedException
+  {
+    stopped_ = true;
+    senderThread_.interrupt();
+    senderThread_.join();
+    encryptPool_.shutdownNow();
+
+    List<Outgoing> unsent = new ArrayList<>();
+    queue_.drainTo(unsent);
+    for (Outgoing outgoing : unsent)
+    {
+      outgoing.packets_.cancel(false);
+      outgoing.result_.completeExceptionally(
+        new IOException("The sender was stopped"));
+    }
+  }
+
+  // Queues the entries to be sent, in order, as one message. The returned
+  // future completes once every packet has been written to the socket, or
+  // completes exceptionally if the message was dropped or couldn't be sent.
+  // Only blocks when the queue is full and the drop policy is BLOCK.
+  public CompletableFuture<Void> sendAsync(final List<ChatEntry> entries)
+  {
+    final Outgoing outgoing = new Outgoing();
+    outgoing.channel_ = (entries.isEmpty() ? null
+      : entries.get(0).getChannel());
+    outgoing.packets_ = new FutureTask<>(new Callable<byte[][]>()
+    {
+      @Override
+      public byte[][] call() throws Exception
+      {
+        byte[][] packets = new byte[entries.size()][];
+        for (int i = 0; i < packets.length; i++)
+        {
+          packets[i] = entries.get(i).encrypt(packetFormat_);
+        }
+
+        return packets;
+      }
+    });
+
+    if (stopped_)
+    {
+      outgoing.result_.completeExceptionally(
+        new IOException("The sender was stopped"));
+      return outgoing.result_;
+    }
+
+    if (!enqueue(outgoing))
+    {
+      droppedCount_.incrementAndGet();
+      outgoing.result_.completeExceptionally(
+        new IOException("The send queue is full"));
+      return outgoing.result_;
+    }
+
+    if (stopped_)
+    {
+      // stop() may have drained the queue before this message went in, in
+      // which case nothing else is ever going to complete it.
+      queue_.remove(outgoing);
+      outgoing.packets_.cancel(false);
+      outgoing.result_.completeExceptionally(
+        new IOException("The sender was stopped"));
+      return outgoing.result_;
+    }
+
+    // Encryption starts only once the message has a place in the queue, so
+    // rejected messages never cost anything.
+    try
+    {
+      encryptPool_.execute(outgoing.packets_);
+    }
+    catch (Exception ex)
+    {
+      // The pool was shut down by stop()
+      outgoing.packets_.cancel(false);
+      outgoing.result_.completeExceptionally(
+        new IOException("The sender was stopped"));
+    }
+
+    return outgoing.result_;
+  }
+
+  private boolean enqueue(Outgoing outgoing)
+  {
+    switch (dropPolicy_)
+    {
+      case BLOCK:
+        try
+        {
+          queue_.put(outgoing);
+          return true;
+        }
+        catch (InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+
+      case DROP_OLDEST:
+        while (!queue_.offer(outgoing))
+        {
+          Outgoing oldest = queue_.poll();
+          if (oldest != null)
+          {
+            droppedCount_.incrementAndGet();
+            oldest.packets_.cancel(false);
+            oldest.result_.completeExceptionally(
+              new IOException("Dropped from a full send queue"));
+          }
+        }
+
+        return true;
+
+      default:
+        return queue_.offer(outgoing);
+    }
+  }
+
+  private void runSender()
+  {
+    List<Outgoing> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    try
+    {
+      while (!stopped_)
+      {
+        batch.add(queue_.take());
+        queue_.drainTo(batch, MAX_BATCH_SIZE - 1);
+        batchCount_.incrementAndGet();
+        for (Outgoing outgoing : batch)
+        {
+          send(outgoing);
+        }
+
+        batch.clear();
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      // stop() was called
+    }
+    finally
+    {
+      for (Outgoing outgoing : batch)
+      {
+        outgoing.result_.completeExceptionally(
+          new IOException("The sender was stopped"));
+      }
+    }
+  }
+
+  private void send(Outgoing outgoing) throws InterruptedException
+  {
+    try
+    {
+      for (byte[] buf : outgoing.packets_.get())
+      {
+        if (pacer_ != null)
+        {
+          pacer_.pace(outgoing.channel_);
+        }
+
+        socket_.send(new DatagramPacket(buf, buf.length, address_, port_));
+      }
+
+      sentCount_.incrementAndGet();
+      outgoing.result_.complete(null);
+    }
+    catch (CancellationException ex)
+    {
+      // Dropped while it was waiting; its future has already been failed.
+    }
+    catch (ExecutionException ex)
+    {
+      failedCount_.incrementAndGet();
+      outgoing.result_.completeExceptionally(ex.getCause());
+    }
+    catch (IOException ex)
+    {
+      failedCount_.incrementAndGet();
+      outgoing.result_.completeExceptionally(ex);
+    }
+  }
+}
@@ -1,32 +1,128 @@
 import javax.swing.*;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.PlainDocument;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
 
 // I want to "upgrade" this to use GroupLayout or JavaFX, but I don't have
 // enough time.
 
 public class ChatUIFrame extends JFrame
 {
+  // Names of the two ways of showing messages in the messages panel
+  private static final String TEXT_VIEW = "text";
+  private static final String LIST_VIEW = "list";
+
+  // A channel's transcript. It keeps track of where each message ends so it
+  // can be trimmed a message at a time; a message can span several lines.
+  private static class Transcript extends PlainDocument
+  {
+    // Where each message ends, counting text already trimmed off the front
+    private ArrayDeque<Long> messageEnds_ = new ArrayDeque<>();
+    private long trimmed_ = 0;
+
+    private void append(List<ChatMessage> messages)
+    {
+      StringBuilder sb = new StringBuilder();
+      long start = trimmed_ + getLength();
+      for (ChatMessage message : messages)
+      {
+        sb.append(message.toString()).append('\n');
+        messageEnds_.addLast(start + sb.length());
+      }
+
+      try
+      {
+        insertString(getLength(), sb.toString(), null);
+      }
+      catch (BadLocationException ex)
+      {
+        ex.printStackTrace();
+      }
+    }
+
+    // Drops the oldest messages so no more than capacity are left.
+    private void trim(int capacity)
+    {
+      if (messageEnds_.size() <= capacity)
+      {
+        return;
+      }
+
+      long end = trimmed_;
+      while (messageEnds_.size() > capacity)
+      {
+        end = messageEnds_.removeFirst();
+      }
+
+      try
+      {
+        remove(0, (int)(end - trimmed_));
+        trimmed_ = end;
+      }
+      catch (BadLocationException ex)
+      {
+        ex.printStackTrace();
+      }
+    }
+  }
+
   // components
   private JList<Channel> channelList;
   private DefaultListModel<Channel> channelListModel = new DefaultListModel<>();
   private JTextArea messagesText;
+  private JList<ChatMessage> messagesList;
+  private JPanel messagesPanel;
   private JTextField messageText;
   private JButton configButton;
   private JButton addChannelButton;
+  private JButton leaveChannelButton;
+  private JButton searchButton;
+  private JButton olderMessagesButton;
+  private JButton statsButton;
   // callbacks
   private Runnable performConfiguration_ = null;
   private Runnable performAddChannel_ = null;
   // property fields
-  private HashMap<Channel, ArrayList<ChatMessage>> chatMessages_ =
-    new HashMap<>();
+  private HashMap<Channel, MessageListModel> chatMessages_ = new HashMap<>();
+  // Each channel's transcript is kept as its own document, updated as
+  // messages arrive, so switching channels only swaps documents. They're
+  // only kept while the text view is showing.
+  private HashMap<Channel, Transcript> chatDocuments_ = new HashMap<>();
+  private PlainDocument emptyDocument_ = new PlainDocument();
+  private MessageListModel emptyMessages_ =
+    new MessageListModel(new MessageHistory(1));
+  // Whether messages are shown in the list rather than the text area
+  private boolean listView_ = false;
+  private int historyCapacity_ = MessageHistory.DEFAULT_CAPACITY;
+  // Where pushed-out messages are spilled; null to just drop them
+  private File historySpillDirectory_ = null;
   private ChatClient client_ = null;
+  // Null unless chat history is being saved
+  private SearchIndex searchIndex_ = null;
   private Channel lastSelectedChannel_ = null;
+  // Received entries are rendered in batches rather than one at a time.
+  private RenderBatcher renderBatcher_ = new RenderBatcher(
+    new RenderBatcher.Renderer()
+    {
+      @Override
+      public void render(List<ChatEntry> entries)
+      {
+        onChatEntriesReceived(entries);
+      }
+    });
 
   public ChatUIFrame(ChatClient chatClient)
   {
@@ -37,21 +133,7 @@ public class ChatUIFrame extends JFrame
       @Override
       public void received(ChatEntry entry)
       {
-        if (SwingUtilities.isEventDispatchThread())
-        {
-          onChatEntryReceived(entry);
-        }
-        else
-        {
-          EventQueue.invokeLater(new Runnable()
-          {
-            @Override
-            public void run()
-            {
-              onChatEntryReceived(entry);
-            }
-          });
-        }
+        renderBatcher_.submit(entry);
       }
     });
   }
@@ -81,6 +163,155 @@ public class ChatUIFrame extends JFrame
     performAddChannel_ = performAddChannel;
   }
 
+  // Applies to every channel's history, including the ones already open.
+  public void setHistorySettings(int capacity, File spillDirectory)
+  {
+    historyCapacity_ = capacity;
+    historySpillDirectory_ = spillDirectory;
+    for (Channel channel : chatMessages_.keySet())
+    {
+      MessageListModel messages = chatMessages_.get(channel);
+      messages.getHistory().setSpillFile(getSpillFile(channel));
+      messages.setCapacity(capacity);
+    }
+
+    for (Transcript document : chatDocuments_.values())
+    {
+      document.trim(capacity);
+    }
+  }
+
+  private Transcript getDocument(Channel channel)
+  {
+    Transcript document = chatDocuments_.get(channel);
+    if (document == null)
+    {
+      // Only happens for a new channel, or when switching back from the list
+      // view.
+      document = new Transcript();
+      MessageHistory history = getMessages(channel).getHistory();
+      List<ChatMessage> messages = new ArrayList<>(history.size());
+      for (int i = 0; i < history.size(); i++)
+      {
+        messages.add(history.get(i));
+      }
+
+      document.append(messages);
+      chatDocuments_.put(channel, document);
+    }
+
+    return document;
+  }
+
+  private MessageListModel getMessages(Channel channel)
+  {
+    MessageListModel messages = chatMessages_.get(channel);
+    if (messages == null)
+    {
+      MessageHistory history = new MessageHistory(historyCapacity_);
+      history.setSpillFile(getSpillFile(channel));
+      messages = new MessageListModel(history);
+      chatMessages_.put(channel, messages);
+      loadEarlierMessages(channel, messages);
+    }
+
+    return messages;
+  }
+
+  // Fills in what was recorded for the channel in earlier runs. Anything
+  // recorded since the journal was opened has been (or is about to be)
+  // delivered here anyway. The journal is read on a worker thread, and what
+  // it finds goes in front of whatever has arrived in the meantime.
+  private void loadEarlierMessages(final Channel channel,
+    final MessageListModel messages)
+  {
+    final MessageJournal journal = client_.getJournal();
+    if (journal == null || channel.getHash() == null)
+    {
+      return;
+    }
+
+    final int limit = historyCapacity_;
+    new SwingWorker<List<MessageJournal.Record>, Void>()
+    {
+      @Override
+      protected List<MessageJournal.Record> doInBackground()
+      {
+        return journal.tryRead(channel.getHash(), limit,
+          journal.getOpenPosition());
+      }
+
+      @Override
+      protected void done()
+      {
+        List<MessageJournal.Record> records;
+        try
+        {
+          records = get();
+        }
+        catch (InterruptedException | ExecutionException ex)
+        {
+          ex.printStackTrace();
+          return;
+        }
+
+        if (records.isEmpty() || chatMessages_.get(channel) != messages)
+        {
+          // Nothing to add, or the channel's been left since.
+          return;
+        }
+
+        List<ChatMessage> earlier = new ArrayList<>(records.size());
+        for (MessageJournal.Record record : records)
+        {
+          earlier.add(record.getMessage());
+        }
+
+        messages.addEarlier(earlier);
+        // The transcript only appends, so it's rebuilt with the earlier
+        // messages at the top.
+        chatDocuments_.remove(channel);
+        if (channel == channelList.getSelectedValue())
+        {
+          showSelectedChannel();
+        }
+      }
+    }.execute();
+  }
+
+  private File getSpillFile(Channel channel)
+  {
+    if (historySpillDirectory_ == null || channel.getHash() == null)
+    {
+      return null;
+    }
+
+    return new File(historySpillDirectory_,
+      CryptoUtil.toHexString(channel.getHash()).toLowerCase() + ".history");
+  }
+
+  private String getHistoryToolTip(Channel channel)
+  {
+    MessageListModel messages = chatMessages_.get(channel);
+    if (messages == null)
+    {
+      return String.format("%s: no messages", channel);
+    }
+
+    MessageHistory history = messages.getHistory();
+
+    String text = String.format("%s: %d of %d messages, about %d KB",
+      channel, history.size(), history.getCapacity(),
+      (history.getEstimatedBytes() + 1023) / 1024);
+    if (history.getSpilledCount() > 0)
+    {
+      text += String.format(", %d moved to disk this session",
+        history.getSpilledCount());
+    }
+
+    return text;
+  }
+
   private Channel getSelectedChannel()
   {
     if (channelList.isSelectionEmpty())
@@ -110,23 +341,208 @@ public class ChatUIFrame extends JFrame
     return lastSelectedChannel_;
   }
 
-  private void onChatEntryReceived(ChatEntry entry)
+  // Writes out every channel's spilled messages. Called on the way out.
+  public void closeHistories()
+  {
+    for (MessageListModel messages : chatMessages_.values())
+    {
+      messages.getHistory().closeSpill();
+    }
+  }
+
+  // Shows messages one per row in a list instead of as wrapped text. The list
+  // only lays out the rows on screen, so it stays quick with histories far
+  // too long for the text area.
+  public void setListView(boolean listView)
   {
-    ChatMessage message = entry.getMessage();
-    Channel channel = entry.getChannel();
-    if (!chatMessages_.containsKey(channel))
+    if (listView == listView_)
     {
-      chatMessages_.put(channel, new ArrayList<>());
+      return;
     }
 
-    chatMessages_.get(channel).add(message);
-    if (getSelectedChannel() == channel)
+    listView_ = listView;
+    // Documents aren't kept up to date while the list is showing, so drop
+    // them; they're rebuilt from the history when they're next shown.
+    chatDocuments_.clear();
+    messagesText.setDocument(emptyDocument_);
+    messagesList.setModel(emptyMessages_);
+    ((CardLayout)messagesPanel.getLayout()).show(messagesPanel,
+      listView ? LIST_VIEW : TEXT_VIEW);
+    showSelectedChannel();
+  }
+
+  // Points whichever view is showing at the selected channel's messages.
+  private void showSelectedChannel()
+  {
+    Channel channel = channelList.getSelectedValue();
+    if (listView_)
     {
-      messagesText.append(String.format("%s\n", message));
-      messagesText.setCaretPosition(messagesText.getDocument().getLength());
+      MessageListModel messages = (channel == null ? emptyMessages_
+        : getMessages(channel));
+      messagesList.setModel(messages);
+      messagesList.ensureIndexIsVisible(messages.getSize() - 1);
+    }
+    else
+    {
+      // The transcript is already up to date; just show it.
+      Document document = (channel == null ? emptyDocument_
+        : getDocument(channel));
+      messagesText.setDocument(document);
+      messagesText.setCaretPosition(document.getLength());
     }
   }
 
+  public void setSearchIndex(SearchIndex searchIndex)
+  {
+    searchIndex_ = searchIndex;
+  }
+
+  private void showSearchDialog()
+  {
+    if (searchIndex_ == null)
+    {
+      JOptionPane.showMessageDialog(this,
+        "Only saved history can be searched. Turn on \"Save chat history " +
+        "on this computer\" in the configuration to start saving it.",
+        "Search", JOptionPane.INFORMATION_MESSAGE);
+      return;
+    }
+
+    SearchDialog dlg = new SearchDialog(this, searchIndex_,
+      channelList.getSelectedValue());
+    dlg.pack();
+    dlg.setLocationRelativeTo(this);
+    dlg.setVisible(true);
+  }
+
+  // Shows what the selected channel's history has spilled to disk.
+  private void showOlderMessages()
+  {
+    Channel channel = channelList.getSelectedValue();
+    if (channel == null)
+    {
+      return;
+    }
+
+    MessageHistory history = getMessages(channel).getHistory();
+    File spillFile = history.getSpillFile();
+    if (spillFile == null || !spillFile.isFile())
+    {
+      JOptionPane.showMessageDialog(this,
+        "There are no older messages for " + channel + ". Turn on \"Keep " +
+        "older messages on disk\" in the configuration to keep the messages " +
+        "that no longer fit in memory.",
+        "Older Messages", JOptionPane.INFORMATION_MESSAGE);
+      return;
+    }
+
+    // Anything still buffered has to be written out before it can be read
+    // back; the file is reopened by the next spill.
+    history.closeSpill();
+    OlderMessagesDialog dlg = new OlderMessagesDialog(this, channel,
+      spillFile);
+    dlg.pack();
+    dlg.setLocationRelativeTo(this);
+    dlg.setVisible(true);
+  }
+
+  private void showStatsDialog()
+  {
+    StatsDialog dlg = new StatsDialog(this, client_);
+    dlg.pack();
+    dlg.setLocationRelativeTo(this);
+    dlg.setVisible(true);
+  }
+
+  // The longest a received message waits before it's shown
+  public void setMaxRenderLatency(int maxLatencyMillis)
+  {
+    renderBatcher_.setMaxLatency(maxLatencyMillis);
+  }
+
+  private void onChatEntriesReceived(List<ChatEntry> entries)
+  {
+    // Selects a channel if none is selected yet
+    getSelectedChannel();
+
+    // Each channel's messages and document get a single update, however
+    // many entries there are for it.
+    HashMap<Channel, List<ChatMessage>> newMessages = new HashMap<>();
+    for (ChatEntry entry : entries)
+    {
+      Channel channel = entry.getChannel();
+      if (!channel.isJoined())
+      {
+        // Left while the entry was waiting to be rendered
+        continue;
+      }
+
+      List<ChatMessage> messages = newMessages.get(channel);
+      if (messages == null)
+      {
+        messages = new ArrayList<>();
+        newMessages.put(channel, messages);
+      }
+
+      messages.add(entry.getMessage());
+    }
+
+    for (Channel channel : newMessages.keySet())
+    {
+      MessageListModel messages = getMessages(channel);
+      messages.addAll(newMessages.get(channel));
+      if (listView_)
+      {
+        if (messagesList.getModel() == messages)
+        {
+          messagesList.ensureIndexIsVisible(messages.getSize() - 1);
+        }
+
+        continue;
+      }
+
+      Transcript document = getDocument(channel);
+      document.append(newMessages.get(channel));
+      document.trim(historyCapacity_);
+      if (messagesText.getDocument() == document)
+      {
+        messagesText.setCaretPosition(document.getLength());
+      }
+    }
+  }
+
+  // Leaves the selected channel and throws away its history.
+  private void leaveSelectedChannel()
+  {
+    Channel channel = channelList.getSelectedValue();
+    if (channel == null)
+    {
+      return;
+    }
+
+    channelListModel.removeElement(channel);
+    MessageListModel messages = chatMessages_.remove(channel);
+    if (messages != null)
+    {
+      File spillFile = messages.getHistory().getSpillFile();
+      messages.clear();
+      if (spillFile != null)
+      {
+        spillFile.delete();
+      }
+    }
+
+    chatDocuments_.remove(channel);
+    if (lastSelectedChannel_ == channel)
+    {
+      lastSelectedChannel_ = null;
+    }
+
+    client_.leave(channel);
+    messagesText.setDocument(emptyDocument_);
+    messagesList.setModel(emptyMessages_);
+  }
+
   private void initialize()
   {
     try
@@ -172,6 +588,50 @@ public class ChatUIFrame extends JFrame
         }
       });
 
+      // Leave channel button
+      buttonPanel.add((leaveChannelButton = new JButton("Leave Channel")));
+      leaveChannelButton.addActionListener(new ActionListener()
+      {
+        @Override
+        public void actionPerformed(ActionEvent e)
+        {
+          leaveSelectedChannel();
+        }
+      });
+
+      // Search button
+      buttonPanel.add((searchButton = new JButton("Search")));
+      searchButton.addActionListener(new ActionListener()
+      {
+        @Override
+        public void actionPerformed(ActionEvent e)
+        {
+          showSearchDialog();
+        }
+      });
+
+      // Older messages button
+      buttonPanel.add((olderMessagesButton = new JButton("Older Messages")));
+      olderMessagesButton.addActionListener(new ActionListener()
+      {
+        @Override
+        public void actionPerformed(ActionEvent e)
+        {
+          showOlderMessages();
+        }
+      });
+
+      // Statistics button
+      buttonPanel.add((statsButton = new JButton("Statistics")));
+      statsButton.addActionListener(new ActionListener()
+      {
+        @Override
+        public void actionPerformed(ActionEvent e)
+        {
+          showStatsDialog();
+        }
+      });
+
       // Content panel (everything below the button panel)
       rootConstraints.gridy++;
       rootConstraints.fill = GridBagConstraints.BOTH;
@@ -187,8 +647,24 @@ public class ChatUIFrame extends JFrame
       contentConstraints.weighty = 1;
       contentConstraints.anchor = GridBagConstraints.NORTH;
       contentConstraints.fill = GridBagConstraints.VERTICAL;
-      contentPanel.add((channelList = new JList<>(channelListModel)),
-        contentConstraints);
+      contentPanel.add((channelList = new JList<Channel>(channelListModel)
+      {
+        // Shows how much history is being kept for the channel under the
+        // mouse.
+        @Override
+        public String getToolTipText(MouseEvent e)
+        {
+          int index = locationToIndex(e.getPoint());
+          if (index < 0)
+          {
+            return null;
+          }
+
+          return getHistoryToolTip(channelListModel.getElementAt(index));
+        }
+      }), contentConstraints);
+      // Registers the list with the tool tip manager
+      channelList.setToolTipText("");
       for (Channel channel : Channel.getAllChannels())
       {
         channelListModel.addElement(channel);
@@ -204,19 +680,8 @@ public class ChatUIFrame extends JFrame
             return;
           }
 
-          Channel channel = channelList.getSelectedValue();
-          lastSelectedChannel_ = channel;
-          StringBuilder sb = new StringBuilder();
-          if (chatMessages_.containsKey(channel))
-          {
-            for (ChatMessage message : chatMessages_.get(channel))
-            {
-              sb.append(message.toString() + "\n");
-            }
-          }
-
-          messagesText.setText(sb.toString());
-          messagesText.setCaretPosition(messagesText.getDocument().getLength());
+          lastSelectedChannel_ = channelList.getSelectedValue();
+          showSelectedChannel();
         }
       });
 
@@ -237,17 +702,53 @@ public class ChatUIFrame extends JFrame
       chatConstraints.weightx = 1;
       chatConstraints.weighty = 1;
       chatConstraints.fill = GridBagConstraints.BOTH;
+      chatPanel.add((messagesPanel = new JPanel(new CardLayout())),
+        chatConstraints);
       messagesText = new JTextArea(40, 80);
       JScrollPane chatScrollPane = new JScrollPane(messagesText);
       chatScrollPane.setHorizontalScrollBarPolicy(
         JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
       chatScrollPane.setVerticalScrollBarPolicy(
         JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
-      chatPanel.add(chatScrollPane, chatConstraints);
+      messagesPanel.add(chatScrollPane, TEXT_VIEW);
       messagesText.setLineWrap(true);
       messagesText.setWrapStyleWord(true);
       messagesText.setEditable(false);
 
+      // Messages list (the alternative to the text area for long histories)
+      messagesList = new JList<ChatMessage>(emptyMessages_)
+      {
+        // Rows are cut off at the width of the list, so show the whole
+        // message under the mouse.
+        @Override
+        public String getToolTipText(MouseEvent e)
+        {
+          int index = locationToIndex(e.getPoint());
+          if (index < 0)
+          {
+            return null;
+          }
+
+          return getModel().getElementAt(index).toString();
+        }
+      };
+      messagesList.setToolTipText("");
+      // Every row is one line of the same height, so the list can work out
+      // which rows are visible without measuring any of them. The width only
+      // needs to be fixed so the list doesn't measure every row to find the
+      // widest; it still stretches to fill the scroll pane.
+      messagesList.setFixedCellHeight(
+        messagesList.getFontMetrics(messagesList.getFont()).getHeight() + 2);
+      messagesList.setFixedCellWidth(1);
+      messagesList.setVisibleRowCount(40);
+      JScrollPane listScrollPane = new JScrollPane(messagesList);
+      listScrollPane.setHorizontalScrollBarPolicy(
+        JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+      listScrollPane.setVerticalScrollBarPolicy(
+        JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+      listScrollPane.setPreferredSize(chatScrollPane.getPreferredSize());
+      messagesPanel.add(listScrollPane, LIST_VIEW);
+
       // Chat input textbox
       chatConstraints.gridy++;
       chatConstraints.weightx = 1;
@@ -264,15 +765,21 @@ public class ChatUIFrame extends JFrame
           ChatMessage message = new ChatMessage(client_.getUserName(),
             messageText.getText());
           ChatEntry chatEntry = new ChatEntry(channel, message);
-          try
-          {
-            client_.send(chatEntry);
-          }
-          catch (Exception ex)
-          {
-            System.err.println("Couldn't send message.");
-            ex.printStackTrace();
-          }
+          // Sent from the sender thread, so a slow socket can't hold up the
+          // UI.
+          client_.sendAsync(chatEntry).whenComplete(
+            new BiConsumer<Void, Throwable>()
+            {
+              @Override
+              public void accept(Void result, Throwable ex)
+              {
+                if (ex != null)
+                {
+                  System.err.println("Couldn't send message.");
+                  ex.printStackTrace();
+                }
+              }
+            });
 
           messageText.selectAll();
         }
@@ -74,6 +74,14 @@ public class Ciphertext
     return CryptoUtil.decrypt(this, key);
   }
 
+  public byte[] decrypt(ChannelCrypto crypto)
+    throws NoSuchAlgorithmException, NoSuchPaddingException,
+    InvalidKeyException, InvalidAlgorithmParameterException,
+    IllegalBlockSizeException, BadPaddingException
+  {
+    return CryptoUtil.decrypt(this, crypto);
+  }
+
   public byte[] tryDecrypt(byte[] key)
   {
     try
@@ -88,6 +96,20 @@ public class Ciphertext
     }
   }
 
+  public byte[] tryDecrypt(ChannelCrypto crypto)
+  {
+    try
+    {
+      return CryptoUtil.decrypt(this, crypto);
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Failed to decrypt!");
+      ex.printStackTrace();
+      return null;
+    }
+  }
+
   @Override
   public String toString()
   {
@@ -25,11 +25,28 @@ public class Configuration
     DIRECT
   }
 
+  public enum ReceiverType
+  {
+    // DatagramChannel drained by a Selector
+    SELECTOR,
+    // DatagramSocket polled with a receive timeout
+    BLOCKING
+  }
+
   public static final String DEFAULT_USERNAME = System.getProperty("user.name");
   public static final InetAddress DEFAULT_ADDRESS;
   public static final InetAddress GLOBAL_LISTEN_ADDRESS;
   public static final InetAddress BROADCAST_ADDRESS;
   public static final int DEFAULT_PORT = 64247;
+  // Pacing limits, in packets per second (zero means unlimited). The bursts
+  // are how many packets can go out back to back before pacing kicks in.
+  public static final double DEFAULT_SEND_RATE = 500;
+  public static final int DEFAULT_SEND_BURST = 64;
+  public static final double DEFAULT_CHANNEL_SEND_RATE = 200;
+  public static final int DEFAULT_CHANNEL_SEND_BURST = 32;
+  // Per-source limit on received packets that get as far as decryption
+  public static final double DEFAULT_SOURCE_RATE = 200;
+  public static final int DEFAULT_SOURCE_BURST = 400;
 
   private String userName_ = DEFAULT_USERNAME;
   private InetAddress address_ = DEFAULT_ADDRESS;
@@ -37,6 +54,34 @@ public class Configuration
   private boolean boundToInterface_ = false;
   private NetworkInterface networkInterface_ = null;
   private int port_ = DEFAULT_PORT;
+  private ReceiverType receiverType_ = ReceiverType.SELECTOR;
+  // Leave one core for the receiver thread itself
+  private int decryptWorkerCount_ =
+    Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+  private int receiveQueueCapacity_ = ReceivePipeline.DEFAULT_QUEUE_CAPACITY;
+  // Both formats are always accepted; this only controls what gets sent.
+  private ChatEntry.PacketFormat packetFormat_ =
+    ChatEntry.PacketFormat.AUTHENTICATED;
+  private int encryptWorkerCount_ =
+    Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  private int sendQueueCapacity_ = ChatSender.DEFAULT_QUEUE_CAPACITY;
+  // Never stall whoever is sending (usually the UI thread) by default
+  private ChatSender.DropPolicy sendDropPolicy_ = ChatSender.DropPolicy.REJECT;
+  private double sendRate_ = DEFAULT_SEND_RATE;
+  private int sendBurst_ = DEFAULT_SEND_BURST;
+  private double channelSendRate_ = DEFAULT_CHANNEL_SEND_RATE;
+  private int channelSendBurst_ = DEFAULT_CHANNEL_SEND_BURST;
+  private double sourceRate_ = DEFAULT_SOURCE_RATE;
+  private int sourceBurst_ = DEFAULT_SOURCE_BURST;
+  private int historyCapacity_ = MessageHistory.DEFAULT_CAPACITY;
+  private int maxRenderLatency_ = RenderBatcher.DEFAULT_MAX_LATENCY_MILLIS;
+  // Off unless the user asks for it, since it writes messages to disk
+  private boolean historySpillEnabled_ = false;
+  private boolean messageListView_ = false;
+  // Off unless the user asks for it, since it writes messages to disk
+  private boolean journalEnabled_ = false;
+  // Off unless the user asks for it, since it writes keys to disk
+  private boolean keyCacheEnabled_ = false;
 
   // Static constructor
   static
@@ -207,6 +252,247 @@ public class Configuration
     port_ = port;
   }
 
+  public ReceiverType getReceiverType()
+  {
+    return receiverType_;
+  }
+
+  public void setReceiverType(ReceiverType receiverType)
+  {
+    if (receiverType == null)
+    {
+      receiverType = ReceiverType.SELECTOR;
+    }
+
+    receiverType_ = receiverType;
+  }
+
+  public int getDecryptWorkerCount()
+  {
+    return decryptWorkerCount_;
+  }
+
+  // A worker count of zero turns the receive pipeline off; packets are then
+  // decrypted on the receiver thread itself.
+  public void setDecryptWorkerCount(int decryptWorkerCount)
+  {
+    if (decryptWorkerCount < 0)
+    {
+      decryptWorkerCount = 0;
+    }
+
+    decryptWorkerCount_ = decryptWorkerCount;
+  }
+
+  public int getReceiveQueueCapacity()
+  {
+    return receiveQueueCapacity_;
+  }
+
+  public void setReceiveQueueCapacity(int receiveQueueCapacity)
+  {
+    if (receiveQueueCapacity < 1)
+    {
+      receiveQueueCapacity = ReceivePipeline.DEFAULT_QUEUE_CAPACITY;
+    }
+
+    receiveQueueCapacity_ = receiveQueueCapacity;
+  }
+
+  public int getEncryptWorkerCount()
+  {
+    return encryptWorkerCount_;
+  }
+
+  public void setEncryptWorkerCount(int encryptWorkerCount)
+  {
+    if (encryptWorkerCount < 1)
+    {
+      encryptWorkerCount = 1;
+    }
+
+    encryptWorkerCount_ = encryptWorkerCount;
+  }
+
+  public int getSendQueueCapacity()
+  {
+    return sendQueueCapacity_;
+  }
+
+  public void setSendQueueCapacity(int sendQueueCapacity)
+  {
+    if (sendQueueCapacity < 1)
+    {
+      sendQueueCapacity = ChatSender.DEFAULT_QUEUE_CAPACITY;
+    }
+
+    sendQueueCapacity_ = sendQueueCapacity;
+  }
+
+  public ChatSender.DropPolicy getSendDropPolicy()
+  {
+    return sendDropPolicy_;
+  }
+
+  public void setSendDropPolicy(ChatSender.DropPolicy sendDropPolicy)
+  {
+    if (sendDropPolicy == null)
+    {
+      sendDropPolicy = ChatSender.DropPolicy.REJECT;
+    }
+
+    sendDropPolicy_ = sendDropPolicy;
+  }
+
+  public double getSendRate()
+  {
+    return sendRate_;
+  }
+
+  public void setSendRate(double sendRate)
+  {
+    sendRate_ = Math.max(0, sendRate);
+  }
+
+  public int getSendBurst()
+  {
+    return sendBurst_;
+  }
+
+  public void setSendBurst(int sendBurst)
+  {
+    sendBurst_ = Math.max(1, sendBurst);
+  }
+
+  public double getChannelSendRate()
+  {
+    return channelSendRate_;
+  }
+
+  public void setChannelSendRate(double channelSendRate)
+  {
+    channelSendRate_ = Math.max(0, channelSendRate);
+  }
+
+  public int getChannelSendBurst()
+  {
+    return channelSendBurst_;
+  }
+
+  public void setChannelSendBurst(int channelSendBurst)
+  {
+    channelSendBurst_ = Math.max(1, channelSendBurst);
+  }
+
+  public double getSourceRate()
+  {
+    return sourceRate_;
+  }
+
+  // A rate of zero turns per-source limiting off.
+  public void setSourceRate(double sourceRate)
+  {
+    sourceRate_ = Math.max(0, sourceRate);
+  }
+
+  public int getSourceBurst()
+  {
+    return sourceBurst_;
+  }
+
+  public void setSourceBurst(int sourceBurst)
+  {
+    sourceBurst_ = Math.max(1, sourceBurst);
+  }
+
+  // The number of messages kept in memory per channel
+  public int getHistoryCapacity()
+  {
+    return historyCapacity_;
+  }
+
+  public void setHistoryCapacity(int historyCapacity)
+  {
+    if (historyCapacity < 1)
+    {
+      historyCapacity = MessageHistory.DEFAULT_CAPACITY;
+    }
+
+    historyCapacity_ = historyCapacity;
+  }
+
+  // The longest a received message waits to be batched with others before
+  // it's shown, in milliseconds
+  public int getMaxRenderLatency()
+  {
+    return maxRenderLatency_;
+  }
+
+  public void setMaxRenderLatency(int maxRenderLatency)
+  {
+    maxRenderLatency_ = Math.max(1, maxRenderLatency);
+  }
+
+  // Whether messages pushed out of the in-memory history are kept on disk
+  public boolean isHistorySpillEnabled()
+  {
+    return historySpillEnabled_;
+  }
+
+  public void setHistorySpillEnabled(boolean historySpillEnabled)
+  {
+    historySpillEnabled_ = historySpillEnabled;
+  }
+
+  // Whether messages are shown one per row in a list, which stays quick with
+  // very long histories, instead of as wrapped text
+  public boolean isMessageListView()
+  {
+    return messageListView_;
+  }
+
+  public void setMessageListView(boolean messageListView)
+  {
+    messageListView_ = messageListView;
+  }
+
+  // Whether every message sent and received is recorded on disk so history
+  // survives a restart
+  public boolean isJournalEnabled()
+  {
+    return journalEnabled_;
+  }
+
+  public void setJournalEnabled(boolean journalEnabled)
+  {
+    journalEnabled_ = journalEnabled;
+  }
+
+  public ChatEntry.PacketFormat getPacketFormat()
+  {
+    return packetFormat_;
+  }
+
+  public void setPacketFormat(ChatEntry.PacketFormat packetFormat)
+  {
+    if (packetFormat == null)
+    {
+      packetFormat = ChatEntry.PacketFormat.AUTHENTICATED;
+    }
+
+    packetFormat_ = packetFormat;
+  }
+
+  public boolean isKeyCacheEnabled()
+  {
+    return keyCacheEnabled_;
+  }
+
+  public void setKeyCacheEnabled(boolean keyCacheEnabled)
+  {
+    keyCacheEnabled_ = keyCacheEnabled;
+  }
+
   @Override
   public String toString()
   {
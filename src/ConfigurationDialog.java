@@ -22,6 +22,10 @@ public class ConfigurationDialog extends JDialog
   private JCheckBox bindNetInterfaceCheckbox;
   private JComboBox<NetworkInterface> netInterfaceText;
   private JTextField portText;
+  private JCheckBox keyCacheCheckbox;
+  private JCheckBox historySpillCheckbox;
+  private JCheckBox messageListCheckbox;
+  private JCheckBox journalCheckbox;
   private JButton okButton;
   private JButton cancelButton;
   // resulting values
@@ -43,6 +47,22 @@ public class ConfigurationDialog extends JDialog
     return configuration_;
   }
 
+  public void setHistorySpillEnabled(boolean enabled)
+  {
+    historySpillCheckbox.setSelected(enabled);
+  }
+
+  public void setMessageListView(boolean listView)
+  {
+    messageListCheckbox.setSelected(listView);
+  }
+
+  // Whether the journal is open now
+  public void setJournalEnabled(boolean enabled)
+  {
+    journalCheckbox.setSelected(enabled);
+  }
+
   private void initializeDialog()
   {
     setTitle("Configuration");
@@ -164,6 +184,27 @@ public class ConfigurationDialog extends JDialog
     ((PlainDocument)portText.getDocument()).setDocumentFilter(
       new GeneralizedFilter(new PortNumberFilterTest()));
 
+    // Key cache checkbox
+    constraints.gridy++;
+    contentPanel.add((keyCacheCheckbox = new JCheckBox()), constraints);
+    keyCacheCheckbox.setText("Remember channel keys on this computer");
+    keyCacheCheckbox.setSelected(Channel.getKeyCache() != null);
+
+    // History spill checkbox
+    constraints.gridy++;
+    contentPanel.add((historySpillCheckbox = new JCheckBox()), constraints);
+    historySpillCheckbox.setText("Keep older messages on disk");
+
+    // Message list checkbox
+    constraints.gridy++;
+    contentPanel.add((messageListCheckbox = new JCheckBox()), constraints);
+    messageListCheckbox.setText("Show messages as a list (for long histories)");
+
+    // Journal checkbox
+    constraints.gridy++;
+    contentPanel.add((journalCheckbox = new JCheckBox()), constraints);
+    journalCheckbox.setText("Save chat history on this computer");
+
     rootConstraints.gridy++;
     add((buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER))),
       rootConstraints);
@@ -206,6 +247,12 @@ public class ConfigurationDialog extends JDialog
           configuration_.setNetworkInterface(null);
         }
 
+        configuration_.setKeyCacheEnabled(keyCacheCheckbox.isSelected());
+        configuration_.setHistorySpillEnabled(
+          historySpillCheckbox.isSelected());
+        configuration_.setMessageListView(messageListCheckbox.isSelected());
+        configuration_.setJournalEnabled(journalCheckbox.isSelected());
+
         setVisible(false);
       }
     });
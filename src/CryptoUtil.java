@@ -13,6 +13,7 @@ import java.security.spec.InvalidParameterSpecException;
 import java.security.spec.KeySpec;
 import java.util.Arrays;
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -22,8 +23,15 @@ public class CryptoUtil
 {
   private static final String CIPHER_ALGORITHM = "AES";
   private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5PADDING";
+  private static final String AEAD_TRANSFORMATION = "AES/GCM/NoPadding";
+  // 96-bit nonces are the size GCM is designed around
+  private static final int AEAD_NONCE_LENGTH = 12;
+  private static final int AEAD_TAG_LENGTH = 16;
   private static final String HASH_ALGORITHM = "SHA-224";
   private static final String KEY_TYPE = "PBKDF2WithHmacSHA256";
+  private static final int KEY_ITERATIONS = 65536;
+  private static final int KEY_LENGTH = 256;
+  private static final int MEMORY_HASH_ROUNDS = 32767;
   // FNV1a 64-bit offset basis (FNV-0 value of the string "chongo <")
   private static final long FNV_OFFSET_BASIS_64 = 0xcbf29ce484222325L;
   // FNV1a 64-bit prime (2^40 + 2^8 + 0xb3)
@@ -32,6 +40,7 @@ public class CryptoUtil
   private static final int FNV_OFFSET_BASIS_32 = 0x811c9dc5;
   // FNV1a 32-bit prime (2^24 + 2^8 + 0x93)
   private static final int FNV_PRIME_32 = 0x1000193;
+  private static final SecureRandom NonceSource = new SecureRandom();
 
   public static Ciphertext encrypt(byte[] data, byte[] key)
     throws NoSuchPaddingException, NoSuchAlgorithmException,
@@ -54,6 +63,25 @@ public class CryptoUtil
     return result;
   }
 
+  // Same as encrypt(byte[], byte[]), but uses a channel's cached key spec and
+  // cipher instead of looking them up again.
+  public static Ciphertext encrypt(byte[] data, ChannelCrypto crypto)
+    throws NoSuchPaddingException, NoSuchAlgorithmException,
+    InvalidKeyException, BadPaddingException, IllegalBlockSizeException
+  {
+    if (data == null || data.length == 0 || crypto == null)
+    {
+      return null;
+    }
+
+    Cipher cipher = crypto.getCipher();
+    cipher.init(Cipher.ENCRYPT_MODE, crypto.getKeySpec());
+    byte[] iv = cipher.getIV();
+    byte[] encryptedData = cipher.doFinal(data);
+    return new Ciphertext(encryptedData, iv, CryptoUtil.CIPHER_ALGORITHM,
+      CryptoUtil.CIPHER_TRANSFORMATION);
+  }
+
   public static byte[] decrypt(Ciphertext ciphertext, byte[] key)
     throws NoSuchAlgorithmException, NoSuchPaddingException,
     InvalidKeyException, InvalidAlgorithmParameterException,
@@ -73,6 +101,118 @@ public class CryptoUtil
     return decryptedData;
   }
 
+  // Decrypts part of one array directly into another, skipping the copies
+  // that building a Ciphertext would take. The IV is read from the given
+  // offset of the iv array. Returns the number of bytes written to output.
+  public static int decrypt(byte[] input, int inputOffset, int inputLength,
+    byte[] iv, int ivOffset, byte[] key, byte[] output, int outputOffset)
+    throws NoSuchAlgorithmException, NoSuchPaddingException,
+    InvalidKeyException, InvalidAlgorithmParameterException,
+    IllegalBlockSizeException, BadPaddingException, ShortBufferException
+  {
+    // The IV is always one AES block long
+    IvParameterSpec ivSpec = new IvParameterSpec(iv, ivOffset, 16);
+    SecretKeySpec keySpec = new SecretKeySpec(key, CryptoUtil.CIPHER_ALGORITHM);
+    Cipher cipher = Cipher.getInstance(CryptoUtil.CIPHER_TRANSFORMATION);
+    cipher.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
+    return cipher.doFinal(input, inputOffset, inputLength, output,
+      outputOffset);
+  }
+
+  // Same as above, but uses a channel's cached key spec and cipher.
+  public static int decrypt(byte[] input, int inputOffset, int inputLength,
+    byte[] iv, int ivOffset, ChannelCrypto crypto, byte[] output,
+    int outputOffset)
+    throws NoSuchAlgorithmException, NoSuchPaddingException,
+    InvalidKeyException, InvalidAlgorithmParameterException,
+    IllegalBlockSizeException, BadPaddingException, ShortBufferException
+  {
+    Cipher cipher = crypto.getCipher();
+    cipher.init(Cipher.DECRYPT_MODE, crypto.getKeySpec(),
+      new IvParameterSpec(iv, ivOffset, 16));
+    return cipher.doFinal(input, inputOffset, inputLength, output,
+      outputOffset);
+  }
+
+  public static byte[] decrypt(Ciphertext ciphertext, ChannelCrypto crypto)
+    throws NoSuchAlgorithmException, NoSuchPaddingException,
+    InvalidKeyException, InvalidAlgorithmParameterException,
+    IllegalBlockSizeException, BadPaddingException
+  {
+    if (ciphertext == null || !ciphertext.isValid() || crypto == null)
+    {
+      return null;
+    }
+
+    Cipher cipher = crypto.getCipher();
+    cipher.init(Cipher.DECRYPT_MODE, crypto.getKeySpec(),
+      new IvParameterSpec(ciphertext.getIV()));
+    return cipher.doFinal(ciphertext.getData());
+  }
+
+  // Encrypts with AES/GCM. The ciphertext and the authentication tag are
+  // written to output (the tag goes right after the ciphertext), and the
+  // additional data is covered by the tag without being encrypted. The nonce
+  // must never be reused with the same key; use nextNonce() to generate one.
+  // Returns the number of bytes written to output.
+  public static int encryptAuthenticated(byte[] input, int inputOffset,
+    int inputLength, byte[] nonce, int nonceOffset, byte[] aad, int aadOffset,
+    int aadLength, ChannelCrypto crypto, byte[] output, int outputOffset)
+    throws NoSuchAlgorithmException, NoSuchPaddingException,
+    InvalidKeyException, InvalidAlgorithmParameterException,
+    IllegalBlockSizeException, BadPaddingException, ShortBufferException
+  {
+    Cipher cipher = crypto.getAuthenticatedCipher();
+    cipher.init(Cipher.ENCRYPT_MODE, crypto.getKeySpec(),
+      new GCMParameterSpec(AEAD_TAG_LENGTH * 8, nonce, nonceOffset,
+        AEAD_NONCE_LENGTH));
+    cipher.updateAAD(aad, aadOffset, aadLength);
+    return cipher.doFinal(input, inputOffset, inputLength, output,
+      outputOffset);
+  }
+
+  // Decrypts data produced by encryptAuthenticated(). The tag is checked
+  // before any plaintext is released; if it doesn't match (or the additional
+  // data differs), an AEADBadTagException is thrown and output is untouched.
+  public static int decryptAuthenticated(byte[] input, int inputOffset,
+    int inputLength, byte[] nonce, int nonceOffset, byte[] aad, int aadOffset,
+    int aadLength, ChannelCrypto crypto, byte[] output, int outputOffset)
+    throws NoSuchAlgorithmException, NoSuchPaddingException,
+    InvalidKeyException, InvalidAlgorithmParameterException,
+    IllegalBlockSizeException, BadPaddingException, ShortBufferException
+  {
+    Cipher cipher = crypto.getAuthenticatedCipher();
+    cipher.init(Cipher.DECRYPT_MODE, crypto.getKeySpec(),
+      new GCMParameterSpec(AEAD_TAG_LENGTH * 8, nonce, nonceOffset,
+        AEAD_NONCE_LENGTH));
+    cipher.updateAAD(aad, aadOffset, aadLength);
+    return cipher.doFinal(input, inputOffset, inputLength, output,
+      outputOffset);
+  }
+
+  // Fills in a random nonce at the given offset
+  public static void nextNonce(byte[] buffer, int offset)
+  {
+    byte[] nonce = new byte[AEAD_NONCE_LENGTH];
+    NonceSource.nextBytes(nonce);
+    System.arraycopy(nonce, 0, buffer, offset, AEAD_NONCE_LENGTH);
+  }
+
+  public static int getNonceLength()
+  {
+    return CryptoUtil.AEAD_NONCE_LENGTH;
+  }
+
+  public static int getTagLength()
+  {
+    return CryptoUtil.AEAD_TAG_LENGTH;
+  }
+
+  public static String getAuthenticatedCipherTransformation()
+  {
+    return CryptoUtil.AEAD_TRANSFORMATION;
+  }
+
   public static String getDefaultCipherAlgorithm()
   {
     return CryptoUtil.CIPHER_ALGORITHM;
@@ -83,6 +223,20 @@ public class CryptoUtil
     return CryptoUtil.CIPHER_TRANSFORMATION;
   }
 
+  public static int getDefaultMemoryHashRounds()
+  {
+    return CryptoUtil.MEMORY_HASH_ROUNDS;
+  }
+
+  // Describes everything that goes into deriving a channel's hash and key.
+  // Anything derived under a different description has to be derived again.
+  public static String getKeyDerivationParameters()
+  {
+    return String.format("%s/%d/%d;%s/%d/%d", CryptoUtil.HASH_ALGORITHM,
+      CryptoUtil.MEMORY_HASH_ROUNDS, CryptoUtil.MEMORY_HASH_ROUNDS,
+      CryptoUtil.KEY_TYPE, CryptoUtil.KEY_ITERATIONS, CryptoUtil.KEY_LENGTH);
+  }
+
   public static byte[] getDerivedKey(String key)
   {
     try
@@ -91,7 +245,7 @@ public class CryptoUtil
       SecretKeyFactory keyFactory =
         SecretKeyFactory.getInstance(CryptoUtil.KEY_TYPE);
       KeySpec keySpec =
-        new PBEKeySpec(key.toCharArray(), salt, 65536, 256);
+        new PBEKeySpec(key.toCharArray(), salt, KEY_ITERATIONS, KEY_LENGTH);
       return keyFactory.generateSecret(keySpec).getEncoded();
     }
     catch (Exception ex)
@@ -152,6 +306,27 @@ public class CryptoUtil
   public static byte[] getMemoryBoundHash(byte[] data, int fillRounds,
     int jumpRounds)
     throws NoSuchAlgorithmException, IOException
+  {
+    return getMemoryBoundHash(data, fillRounds, jumpRounds, null);
+  }
+
+  // Same as above, but reports how many of the (fillRounds + jumpRounds)
+  // rounds have been completed every so often. If the progress callback
+  // returns false, hashing stops and null is returned.
+  //
+  // The buffer is filled with a chain of SHA-224 digests (fillRounds of them),
+  // then walked for jumpRounds: each jump reads a big-endian int at the
+  // current position to pick an 8-byte-aligned offset, hashes the 8 bytes
+  // there with FNV-1a, and uses the top of that hash to pick the next
+  // (4-byte-aligned) position. Negative offsets count back from the end of
+  // the buffer, and reads that run off the end see zeros. The result is the
+  // SHA-224 digest of the last FNV-1a hash.
+  //
+  // Everything works on one preallocated array with a single MessageDigest,
+  // so the rounds themselves don't allocate.
+  public static byte[] getMemoryBoundHash(byte[] data, int fillRounds,
+    int jumpRounds, ProgressChanged progress)
+    throws NoSuchAlgorithmException, IOException
   {
     if (fillRounds < 1)
     {
@@ -163,37 +338,83 @@ public class CryptoUtil
       jumpRounds = 1;
     }
 
-    ByteIOStream buffer = new ByteIOStream();
-    byte[] hashValue = getHash(data);
-    for (int i = 0; i < fillRounds; i++)
+    if (data == null || data.length == 0)
     {
-      buffer.write(hashValue);
-      hashValue = getHash(hashValue);
+      throw new IllegalArgumentException("Nothing to hash");
     }
 
-    int bufferLength = buffer.getLength();
-    if (bufferLength <= 8)
+    int totalRounds = fillRounds + jumpRounds;
+    MessageDigest sha = MessageDigest.getInstance(CryptoUtil.HASH_ALGORITHM);
+    int hashLength = sha.getDigestLength();
+    int bufferLength = fillRounds * hashLength;
+    if (bufferLength / hashLength != fillRounds)
+    {
+      throw new IOException("Stream too long");
+    }
+
+    // The extra eight bytes stay zero; they stand in for reading past the
+    // end of the buffer.
+    byte[] buffer = new byte[bufferLength + 8];
+    try
     {
-      return getHash(buffer.toByteArray());
+      sha.update(data);
+      sha.digest(buffer, 0, hashLength);
+      for (int i = 1; i < fillRounds; i++)
+      {
+        if (!reportProgress(progress, i, totalRounds))
+        {
+          return null;
+        }
+
+        sha.update(buffer, (i - 1) * hashLength, hashLength);
+        sha.digest(buffer, i * hashLength, hashLength);
+      }
+    }
+    catch (DigestException ex)
+    {
+      // Can't happen; the output always has room for the digest.
+      throw new IOException(ex);
     }
 
-    int condensedLength = 8;
-    buffer.setPosition(-4);
+    int position = bufferLength - 4;
     int offset;
-    byte[] offsetData = null;
-    byte[] offsetHash = null;
+    long offsetHash = 0;
     for (int i = 0; i < jumpRounds; i++)
     {
-      offset = getInt(buffer.read(4)) % bufferLength;
-      offset -= (offset % condensedLength);
-      buffer.setPosition(offset);
-      offsetHash = getFNV1aHash64(buffer.read(condensedLength));
-      offset = getInt(offsetHash) % bufferLength;
+      if (!reportProgress(progress, fillRounds + i, totalRounds))
+      {
+        return null;
+      }
+
+      offset = (buffer[position] << 24
+        | (buffer[position + 1] & 0xff) << 16
+        | (buffer[position + 2] & 0xff) << 8
+        | (buffer[position + 3] & 0xff)) % bufferLength;
+      offset -= (offset % 8);
+      position = (offset < 0 ? bufferLength + offset : offset);
+
+      // FNV-1a over the eight bytes at the current position. The bytes are
+      // sign-extended on purpose to match getFNV1aHash64().
+      offsetHash = FNV_OFFSET_BASIS_64;
+      for (int j = 0; j < 8; j++)
+      {
+        offsetHash ^= buffer[position + j];
+        offsetHash *= FNV_PRIME_64;
+      }
+
+      // The top four bytes of the hash, read as a big-endian int
+      offset = (int)(offsetHash >>> 32) % bufferLength;
       offset -= (offset % 4);
-      buffer.setPosition(offset);
+      position = (offset < 0 ? bufferLength + offset : offset);
+    }
+
+    if (progress != null && !progress.progressChanged(totalRounds,
+      totalRounds))
+    {
+      return null;
     }
 
-    return getHash(offsetHash);
+    return sha.digest(getBytes(offsetHash));
   }
 
   public static byte[] getMemoryBoundHash(byte[] data, int rounds)
@@ -205,7 +426,7 @@ public class CryptoUtil
   public static byte[] getMemoryBoundHash(byte[] data)
     throws NoSuchAlgorithmException, IOException
   {
-    return getMemoryBoundHash(data,32767, 32767);
+    return getMemoryBoundHash(data, MEMORY_HASH_ROUNDS, MEMORY_HASH_ROUNDS);
   }
 
   public static String toBase64String(byte[] data)
@@ -218,6 +439,19 @@ public class CryptoUtil
     return DatatypeConverter.printHexBinary(data);
   }
 
+  // Only calls back every 1024 rounds; once per round would cost more than
+  // the rounds themselves.
+  private static boolean reportProgress(ProgressChanged progress,
+    int completed, int total)
+  {
+    if (progress == null || (completed & 0x3ff) != 0)
+    {
+      return true;
+    }
+
+    return progress.progressChanged(completed, total);
+  }
+
   private static byte[] getBytes(long hashValue)
   {
     byte[] result = new byte[8];
@@ -241,30 +475,4 @@ public class CryptoUtil
 
     return result;
   }
-
-  private static int getInt(byte[] intBytes, int offset)
-  {
-    // Zero-extend the byte array if it isn't at least 4 bytes
-    byte[] bytes = new byte[4];
-    if (intBytes.length < 4)
-    {
-      System.arraycopy(intBytes, 0, bytes, 0, intBytes.length);
-      Arrays.fill(bytes, intBytes.length, 3, (byte)0);
-    }
-    else
-    {
-      System.arraycopy(intBytes, 0, bytes, 0,
-        (intBytes.length > 4 ? 4 : intBytes.length));
-    }
-
-    return bytes[0] << 24
-      | (bytes[1] & 0xff) << 16
-      | (bytes[2] & 0xff) << 8
-      | (bytes[3] & 0xff);
-  }
-
-  private static int getInt(byte[] bytes)
-  {
-    return getInt(bytes, 0);
-  }
 }
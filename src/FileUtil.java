@@ -0,0 +1,53 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+// Helpers for the files PunyChat keeps in the user's home directory. Keys and
+// chat history are kept where only the current user can read them, where the
+// file system supports it.
+public class FileUtil
+{
+  // Creates an empty file that only the current user can read. A file that
+  // already exists is left as it is.
+  public static void createPrivateFile(Path path) throws IOException
+  {
+    try
+    {
+      Files.createFile(path, PosixFilePermissions.asFileAttribute(
+        PosixFilePermissions.fromString("rw-------")));
+    }
+    catch (UnsupportedOperationException ex)
+    {
+      // Not a POSIX file system
+      Files.createFile(path);
+    }
+    catch (FileAlreadyExistsException ex)
+    {
+      // Left over from before
+    }
+  }
+
+  // Creates the directory (and any missing parents) and makes sure only the
+  // current user can get into it, including when it already existed, so
+  // nothing inside it can be read by anyone else.
+  public static void createPrivateDirectory(File directory) throws IOException
+  {
+    if (!directory.isDirectory() && !directory.mkdirs())
+    {
+      throw new IOException("Couldn't create " + directory);
+    }
+
+    try
+    {
+      Files.setPosixFilePermissions(directory.toPath(),
+        PosixFilePermissions.fromString("rwx------"));
+    }
+    catch (UnsupportedOperationException ex)
+    {
+      // Not a POSIX file system
+    }
+  }
+}
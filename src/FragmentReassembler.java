@@ -0,0 +1,289 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Puts fragmented messages (see ChatMessage.split) back together. Anyone can
+// send fragments that never complete, so the table of partial messages is
+// bounded in every direction:
+//
+//   - a message can't claim more than maxFragments fragments
+//   - each sender can only have maxPerSender messages in progress; starting
+//     another evicts that sender's oldest. A sender is the random id its
+//     client stamps every packet with, so a peer can't crowd out someone
+//     else's messages by using their display name. Messages from older
+//     clients, which don't stamp packets, fall back to the name within the
+//     channel.
+//   - there can only be maxPending messages in progress overall; starting
+//     another evicts the oldest one
+//   - anything that hasn't completed within the timeout is thrown away
+//
+// That caps memory at roughly maxPending * maxFragments packets' worth of
+// text no matter what arrives.
+public class FragmentReassembler
+{
+  public static final int DEFAULT_MAX_PENDING = 256;
+  public static final int DEFAULT_MAX_PER_SENDER = 8;
+  public static final int DEFAULT_MAX_FRAGMENTS = 64;
+  public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+  // Identifies a single message in progress
+  private static class MessageKey
+  {
+    private Channel channel_;
+    private int senderId_;
+    // Only used when there's no sender id
+    private String name_;
+    private int id_;
+
+    private MessageKey(Channel channel, ChatMessage message)
+    {
+      channel_ = channel;
+      senderId_ = message.getSenderId();
+      name_ = (senderId_ != 0 || message.getName() == null ? ""
+        : message.getName());
+      id_ = message.getId();
+    }
+
+    @Override
+    public boolean equals(Object rhs)
+    {
+      if (!(rhs instanceof MessageKey))
+      {
+        return false;
+      }
+
+      MessageKey key = (MessageKey)rhs;
+      return id_ == key.id_ && senderId_ == key.senderId_ &&
+        name_.equals(key.name_) && channel_.equals(key.channel_);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return ((channel_.hashCode() * 31 + senderId_) * 31 +
+        name_.hashCode()) * 31 + id_;
+    }
+
+    private String getSender()
+    {
+      return (senderId_ != 0 ? Integer.toHexString(senderId_)
+        : channel_.getName() + "\0" + name_);
+    }
+  }
+
+  private static class Partial
+  {
+    private String[] parts_;
+    private int received_ = 0;
+    private int senderId_ = 0;
+    private int sequence_ = 0;
+    private long firstSeen_;
+  }
+
+  private int maxPending_;
+  private int maxPerSender_;
+  private int maxFragments_;
+  private long timeoutMillis_;
+  // Insertion order is arrival order, so the eldest entry is always first.
+  private LinkedHashMap<MessageKey, Partial> pending_ = new LinkedHashMap<>();
+  private HashMap<String, Integer> pendingPerSender_ = new HashMap<>();
+  private long completedCount_ = 0;
+  private long evictedCount_ = 0;
+  private long expiredCount_ = 0;
+  private long rejectedCount_ = 0;
+
+  public FragmentReassembler(int maxPending, int maxPerSender,
+    int maxFragments, long timeoutMillis)
+  {
+    maxPending_ = (maxPending < 1 ? DEFAULT_MAX_PENDING : maxPending);
+    maxPerSender_ = (maxPerSender < 1 ? DEFAULT_MAX_PER_SENDER : maxPerSender);
+    maxFragments_ = (maxFragments < 2 ? DEFAULT_MAX_FRAGMENTS : maxFragments);
+    timeoutMillis_ = (timeoutMillis < 1 ? DEFAULT_TIMEOUT_MILLIS
+      : timeoutMillis);
+  }
+
+  public FragmentReassembler()
+  {
+    this(DEFAULT_MAX_PENDING, DEFAULT_MAX_PER_SENDER, DEFAULT_MAX_FRAGMENTS,
+      DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  public int getMaxFragments()
+  {
+    return maxFragments_;
+  }
+
+  public synchronized int getPendingCount()
+  {
+    return pending_.size();
+  }
+
+  public synchronized long getCompletedCount()
+  {
+    return completedCount_;
+  }
+
+  // Partial messages thrown away to make room for newer ones
+  public synchronized long getEvictedCount()
+  {
+    return evictedCount_;
+  }
+
+  // Partial messages thrown away because they took too long
+  public synchronized long getExpiredCount()
+  {
+    return expiredCount_;
+  }
+
+  // Fragments that didn't make sense (bad index or count)
+  public synchronized long getRejectedCount()
+  {
+    return rejectedCount_;
+  }
+
+  // Adds a fragment. Returns the whole message once its last fragment has
+  // arrived; otherwise returns null.
+  public synchronized ChatEntry add(ChatEntry entry)
+  {
+    ChatMessage message = entry.getMessage();
+    int count = message.getCount();
+    int fragment = message.getFragment();
+    if (count > maxFragments_ || fragment < 0 || fragment >= count)
+    {
+      rejectedCount_++;
+      return null;
+    }
+
+    long now = System.currentTimeMillis();
+    expire(now);
+
+    MessageKey key = new MessageKey(entry.getChannel(), message);
+    Partial partial = pending_.get(key);
+    if (partial == null)
+    {
+      makeRoom(key.getSender());
+      partial = new Partial();
+      partial.parts_ = new String[count];
+      partial.firstSeen_ = now;
+      pending_.put(key, partial);
+      adjustSenderCount(key.getSender(), 1);
+    }
+    else if (partial.parts_.length != count)
+    {
+      // Fragments of the same message have to agree on the count.
+      rejectedCount_++;
+      return null;
+    }
+
+    if (partial.parts_[fragment] == null)
+    {
+      partial.parts_[fragment] = (message.getText() == null ? ""
+        : message.getText());
+      partial.received_++;
+      if (fragment == 0)
+      {
+        // The whole message goes by its first fragment's stamp.
+        partial.senderId_ = message.getSenderId();
+        partial.sequence_ = message.getSequence();
+      }
+    }
+
+    if (partial.received_ < count)
+    {
+      return null;
+    }
+
+    remove(key);
+    completedCount_++;
+    StringBuilder text = new StringBuilder();
+    for (String part : partial.parts_)
+    {
+      text.append(part);
+    }
+
+    ChatMessage whole = new ChatMessage(message.getName(), text.toString());
+    whole.setSender(partial.senderId_, partial.sequence_);
+    return new ChatEntry(entry.getChannel(), whole);
+  }
+
+  // Throws away the partial messages for a channel that's been left.
+  public synchronized void removeChannel(Channel channel)
+  {
+    Iterator<MessageKey> keys = pending_.keySet().iterator();
+    while (keys.hasNext())
+    {
+      MessageKey key = keys.next();
+      if (key.channel_.equals(channel))
+      {
+        keys.remove();
+        adjustSenderCount(key.getSender(), -1);
+      }
+    }
+  }
+
+  private void expire(long now)
+  {
+    Iterator<Map.Entry<MessageKey, Partial>> entries =
+      pending_.entrySet().iterator();
+    while (entries.hasNext())
+    {
+      Map.Entry<MessageKey, Partial> entry = entries.next();
+      if (now - entry.getValue().firstSeen_ < timeoutMillis_)
+      {
+        // Everything after this arrived later, so it can't have expired.
+        break;
+      }
+
+      entries.remove();
+      adjustSenderCount(entry.getKey().getSender(), -1);
+      expiredCount_++;
+    }
+  }
+
+  private void makeRoom(String sender)
+  {
+    Integer senderCount = pendingPerSender_.get(sender);
+    if (senderCount != null && senderCount >= maxPerSender_)
+    {
+      // Evict this sender's oldest message
+      for (MessageKey key : pending_.keySet())
+      {
+        if (key.getSender().equals(sender))
+        {
+          remove(key);
+          evictedCount_++;
+          break;
+        }
+      }
+    }
+
+    if (pending_.size() >= maxPending_)
+    {
+      remove(pending_.keySet().iterator().next());
+      evictedCount_++;
+    }
+  }
+
+  private void remove(MessageKey key)
+  {
+    if (pending_.remove(key) != null)
+    {
+      adjustSenderCount(key.getSender(), -1);
+    }
+  }
+
+  private void adjustSenderCount(String sender, int delta)
+  {
+    Integer senderCount = pendingPerSender_.get(sender);
+    int newCount = (senderCount == null ? 0 : senderCount) + delta;
+    if (newCount <= 0)
+    {
+      pendingPerSender_.remove(sender);
+    }
+    else
+    {
+      pendingPerSender_.put(sender, newCount);
+    }
+  }
+}
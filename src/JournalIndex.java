@@ -0,0 +1,438 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+// A sparse index over the message journal, so a page of a channel's history
+// can be found without reading the journal from the start. For each channel,
+// every INTERVAL-th record (counting only that channel's records) is noted
+// along with its timestamp and journal position, and so is the channel's last
+// record. Each journal record links back to the channel's record before it,
+// so finding the n-th record of a channel, or the first one after some time,
+// means starting at the next noted record after it (or the last one) and
+// following the links back through at most INTERVAL of the channel's records,
+// without reading any other channel's.
+//
+// The index is kept in a side file next to the journal and is added to as
+// records are committed. Every so often a checkpoint is written with each
+// channel's record count and last record, and how far into the journal the
+// index goes, and the file is forced. After a crash, the index is cut back to its last good
+// checkpoint and brought up to date by reading the journal from there, so
+// recovery only has to cover what was written since. If the file is missing
+// or doesn't match the journal, the index is rebuilt from scratch.
+//
+// Only the journal's writer thread adds to the index; readers can use it from
+// any thread.
+public class JournalIndex
+{
+  // Every this many of a channel's records are noted in the index.
+  public static final int INTERVAL = 64;
+  // Records written between checkpoints
+  public static final int CHECKPOINT_INTERVAL = 4096;
+  private static final String FILE_NAME = "journal.index";
+  private static final byte ENTRY = 1;
+  private static final byte CHECKPOINT = 3;
+  // Hash, ordinal, timestamp and position
+  private static final int ENTRY_LENGTH = ChatEntry.HASH_LENGTH + 8 + 8 + 8;
+
+  // The noted records for one channel. Entry i is the channel's record
+  // number i * INTERVAL.
+  private static class ChannelEntries
+  {
+    private byte[] hash_;
+    private long count_ = 0;
+    // The position of the channel's last record
+    private long last_ = -1;
+    private int size_ = 0;
+    private long[] timestamps_ = new long[16];
+    private long[] positions_ = new long[16];
+
+    private ChannelEntries(byte[] hash)
+    {
+      hash_ = hash;
+    }
+
+    private void add(long timestamp, long position)
+    {
+      if (size_ == positions_.length)
+      {
+        timestamps_ = Arrays.copyOf(timestamps_, size_ * 2);
+        positions_ = Arrays.copyOf(positions_, size_ * 2);
+      }
+
+      timestamps_[size_] = timestamp;
+      positions_[size_] = position;
+      size_++;
+    }
+  }
+
+  private File file_;
+  private FileChannel channel_;
+  private HashMap<String, ChannelEntries> channels_ = new HashMap<>();
+  // The journal position the index is up to date with
+  private long endPosition_;
+  private int sinceCheckpoint_ = 0;
+
+  private JournalIndex(File file)
+  {
+    file_ = file;
+  }
+
+  // Opens the index for the journal in the given directory. The caller brings
+  // it up to date by passing every record from getEndPosition() onward to
+  // add(), then calls checkpoint().
+  public static JournalIndex open(File directory, long journalStart,
+    long journalEnd)
+    throws IOException
+  {
+    JournalIndex index = new JournalIndex(new File(directory, FILE_NAME));
+    FileUtil.createPrivateFile(index.file_.toPath());
+    index.channel_ = FileChannel.open(index.file_.toPath(),
+      StandardOpenOption.READ, StandardOpenOption.WRITE);
+    index.recover(journalStart, journalEnd);
+    return index;
+  }
+
+  public File getFile()
+  {
+    return file_;
+  }
+
+  public synchronized long getEndPosition()
+  {
+    return endPosition_;
+  }
+
+  // How many records the channel has in the journal
+  public synchronized long getCount(byte[] hash)
+  {
+    ChannelEntries entries = channels_.get(getKey(hash));
+    return (entries == null ? 0 : entries.count_);
+  }
+
+  // The position of the channel's last record, or -1 if it has none
+  public synchronized long getLastPosition(byte[] hash)
+  {
+    ChannelEntries entries = channels_.get(getKey(hash));
+    return (entries == null ? -1 : entries.last_);
+  }
+
+  // The position of every channel's last record, by channel key
+  public synchronized HashMap<String, Long> getLastPositions()
+  {
+    HashMap<String, Long> result = new HashMap<>();
+    for (String key : channels_.keySet())
+    {
+      result.put(key, channels_.get(key).last_);
+    }
+
+    return result;
+  }
+
+  // The position of the channel's record number INTERVAL * (ordinal /
+  // INTERVAL), the nearest noted record at or before the given one. Returns
+  // -1 if the channel doesn't have that many records.
+  public synchronized long findPosition(byte[] hash, long ordinal)
+  {
+    ChannelEntries entries = channels_.get(getKey(hash));
+    if (entries == null || ordinal < 0 || ordinal >= entries.count_)
+    {
+      return -1;
+    }
+
+    return entries.positions_[(int)(ordinal / INTERVAL)];
+  }
+
+  // The ordinal of the last noted record from before the given time, or 0 if
+  // there isn't one. Every record of the channel from that time on comes at
+  // or after it.
+  public synchronized long findOrdinalBefore(byte[] hash, long timestamp)
+  {
+    ChannelEntries entries = channels_.get(getKey(hash));
+    if (entries == null)
+    {
+      return 0;
+    }
+
+    // Timestamps come from the system clock, which can step backwards, so
+    // this only narrows the search; callers still check each record's time.
+    int low = 0;
+    int high = entries.size_ - 1;
+    int found = 0;
+    while (low <= high)
+    {
+      int middle = (low + high) >>> 1;
+      if (entries.timestamps_[middle] < timestamp)
+      {
+        found = middle;
+        low = middle + 1;
+      }
+      else
+      {
+        high = middle - 1;
+      }
+    }
+
+    return (long)found * INTERVAL;
+  }
+
+  // The ordinal of the last noted record positioned before the given journal
+  // position, or -1 if there isn't one.
+  public synchronized long findOrdinalBeforePosition(byte[] hash,
+    long position)
+  {
+    ChannelEntries entries = channels_.get(getKey(hash));
+    if (entries == null)
+    {
+      return -1;
+    }
+
+    int index = Arrays.binarySearch(entries.positions_, 0, entries.size_,
+      position);
+    // An exact match is the record at the position, which isn't before it.
+    index = (index >= 0 ? index - 1 : -index - 2);
+    return (index < 0 ? -1 : (long)index * INTERVAL);
+  }
+
+  // Notes a committed record. Records have to be added in journal order.
+  public synchronized void add(byte[] hash, long timestamp, long position,
+    long endPosition)
+    throws IOException
+  {
+    String key = getKey(hash);
+    ChannelEntries entries = channels_.get(key);
+    if (entries == null)
+    {
+      entries = new ChannelEntries(Arrays.copyOf(hash,
+        ChatEntry.HASH_LENGTH));
+      channels_.put(key, entries);
+    }
+
+    if (entries.count_ % INTERVAL == 0)
+    {
+      entries.add(timestamp, position);
+      ByteBuffer payload = ByteBuffer.allocate(ENTRY_LENGTH);
+      payload.put(entries.hash_);
+      payload.putLong(entries.count_);
+      payload.putLong(timestamp);
+      payload.putLong(position);
+      write(ENTRY, payload.array());
+    }
+
+    entries.count_++;
+    entries.last_ = position;
+    endPosition_ = endPosition;
+    if (++sinceCheckpoint_ >= CHECKPOINT_INTERVAL)
+    {
+      checkpoint();
+    }
+  }
+
+  // Records how far the index goes and makes everything so far durable.
+  public synchronized void checkpoint() throws IOException
+  {
+    ByteBuffer payload = ByteBuffer.allocate(8 + 4 +
+      channels_.size() * (ChatEntry.HASH_LENGTH + 8 + 8));
+    payload.putLong(endPosition_);
+    payload.putInt(channels_.size());
+    for (ChannelEntries entries : channels_.values())
+    {
+      payload.put(entries.hash_);
+      payload.putLong(entries.count_);
+      payload.putLong(entries.last_);
+    }
+
+    write(CHECKPOINT, payload.array());
+    channel_.force(false);
+    sinceCheckpoint_ = 0;
+  }
+
+  public synchronized void close() throws IOException
+  {
+    checkpoint();
+    channel_.close();
+  }
+
+  private void recover(long journalStart, long journalEnd) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate((int)channel_.size());
+    while (buffer.hasRemaining())
+    {
+      if (channel_.read(buffer, buffer.position()) < 0)
+      {
+        break;
+      }
+    }
+
+    buffer.flip();
+    HashMap<String, ChannelEntries> channels = new HashMap<>();
+    // What the last checkpoint covered, and where it ends in the file
+    HashMap<String, ChannelEntries> checkpointed = null;
+    long checkpointEnd = -1;
+    long checkpointFileEnd = 0;
+    while (true)
+    {
+      byte[] payload = readRecord(buffer);
+      if (payload == null)
+      {
+        break;
+      }
+
+      byte type = payload[0];
+      ByteBuffer data = ByteBuffer.wrap(payload, 1, payload.length - 1);
+      if (type == ENTRY && payload.length - 1 == ENTRY_LENGTH)
+      {
+        byte[] hash = new byte[ChatEntry.HASH_LENGTH];
+        data.get(hash);
+        long ordinal = data.getLong();
+        long timestamp = data.getLong();
+        long position = data.getLong();
+        ChannelEntries entries = channels.get(getKey(hash));
+        if (entries == null)
+        {
+          entries = new ChannelEntries(hash);
+          channels.put(getKey(hash), entries);
+        }
+
+        if (ordinal != (long)entries.size_ * INTERVAL)
+        {
+          break;
+        }
+
+        entries.add(timestamp, position);
+      }
+      else if (type == CHECKPOINT)
+      {
+        long endPosition = data.getLong();
+        int count = data.getInt();
+        boolean valid = true;
+        for (int i = 0; i < count; i++)
+        {
+          byte[] hash = new byte[ChatEntry.HASH_LENGTH];
+          data.get(hash);
+          long channelCount = data.getLong();
+          long last = data.getLong();
+          ChannelEntries entries = channels.get(getKey(hash));
+          // Entry i has to exist exactly when the count has reached
+          // i * INTERVAL.
+          if (entries == null ||
+            entries.size_ != (channelCount + INTERVAL - 1) / INTERVAL)
+          {
+            valid = false;
+            break;
+          }
+
+          entries.count_ = channelCount;
+          entries.last_ = last;
+        }
+
+        if (!valid || count != channels.size())
+        {
+          break;
+        }
+
+        checkpointed = copy(channels);
+        checkpointEnd = endPosition;
+        checkpointFileEnd = buffer.position();
+      }
+      else
+      {
+        break;
+      }
+    }
+
+    if (checkpointed == null || checkpointEnd < journalStart ||
+      checkpointEnd > journalEnd)
+    {
+      // Nothing usable, or the journal has lost records the index knows
+      // about; start over.
+      if (channel_.size() > 0)
+      {
+        System.err.println("Rebuilding the journal index.");
+      }
+
+      channels_.clear();
+      endPosition_ = journalStart;
+      checkpointFileEnd = 0;
+    }
+    else
+    {
+      channels_ = checkpointed;
+      endPosition_ = checkpointEnd;
+    }
+
+    // Anything after the checkpoint will be noted again as the journal is
+    // read from there.
+    channel_.truncate(checkpointFileEnd);
+    channel_.position(checkpointFileEnd);
+  }
+
+  private static HashMap<String, ChannelEntries> copy(
+    HashMap<String, ChannelEntries> channels)
+  {
+    HashMap<String, ChannelEntries> result = new HashMap<>();
+    for (String key : channels.keySet())
+    {
+      ChannelEntries entries = channels.get(key);
+      ChannelEntries clone = new ChannelEntries(entries.hash_);
+      clone.count_ = entries.count_;
+      clone.last_ = entries.last_;
+      clone.size_ = entries.size_;
+      clone.timestamps_ = entries.timestamps_.clone();
+      clone.positions_ = entries.positions_.clone();
+      result.put(key, clone);
+    }
+
+    return result;
+  }
+
+  // Each record in the file is its length, its type and payload, and a
+  // CRC-32 of the type and payload.
+  private void write(byte type, byte[] payload) throws IOException
+  {
+    CRC32 crc = new CRC32();
+    crc.update(type);
+    crc.update(payload, 0, payload.length);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + payload.length + 4);
+    buffer.putInt(1 + payload.length);
+    buffer.put(type);
+    buffer.put(payload);
+    buffer.putInt((int)crc.getValue());
+    buffer.flip();
+    while (buffer.hasRemaining())
+    {
+      channel_.write(buffer);
+    }
+  }
+
+  // Returns the type and payload of the record at the buffer's position, or
+  // null if there isn't a whole, intact one.
+  private static byte[] readRecord(ByteBuffer buffer)
+  {
+    if (buffer.remaining() < 4 + 1 + 4)
+    {
+      return null;
+    }
+
+    int length = buffer.getInt();
+    if (length < 1 || buffer.remaining() < length + 4)
+    {
+      return null;
+    }
+
+    byte[] record = new byte[length];
+    buffer.get(record);
+    CRC32 crc = new CRC32();
+    crc.update(record, 0, length);
+    return (buffer.getInt() == (int)crc.getValue() ? record : null);
+  }
+
+  private static String getKey(byte[] hash)
+  {
+    return CryptoUtil.toHexString(Arrays.copyOf(hash, ChatEntry.HASH_LENGTH));
+  }
+}
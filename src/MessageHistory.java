@@ -0,0 +1,287 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// The messages kept for one channel. Only the most recent messages are kept
+// in memory, in a fixed-size ring buffer; once it's full, each new message
+// pushes out the oldest. If a spill file is set, pushed-out messages are
+// appended to it rather than being lost, and can be read back with
+// readSpilled() (the "Older Messages" window does).
+//
+// Not thread-safe; ChatUIFrame only touches it from the event dispatch
+// thread.
+public class MessageHistory
+{
+  public static final int DEFAULT_CAPACITY = 1000;
+  // Rough per-message cost on top of the text: the ChatMessage object, its
+  // two String objects and their arrays, and the ring slot.
+  private static final int MESSAGE_OVERHEAD = 120;
+
+  private ChatMessage[] messages_;
+  // Index of the oldest message
+  private int head_ = 0;
+  private int size_ = 0;
+  private long estimatedBytes_ = 0;
+  private File spillFile_ = null;
+  private DataOutputStream spillStream_ = null;
+  private long spilledCount_ = 0;
+
+  public MessageHistory(int capacity)
+  {
+    messages_ = new ChatMessage[capacity < 1 ? DEFAULT_CAPACITY : capacity];
+  }
+
+  public MessageHistory()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public int getCapacity()
+  {
+    return messages_.length;
+  }
+
+  public int size()
+  {
+    return size_;
+  }
+
+  // Messages written to the spill file since it was set, which doesn't
+  // count any it already held
+  public long getSpilledCount()
+  {
+    return spilledCount_;
+  }
+
+  // An estimate of the memory the in-memory messages take up
+  public long getEstimatedBytes()
+  {
+    return estimatedBytes_;
+  }
+
+  public File getSpillFile()
+  {
+    return spillFile_;
+  }
+
+  // Pushed-out messages are appended to the file from now on. Pass null to
+  // just drop them.
+  public void setSpillFile(File spillFile)
+  {
+    closeSpill();
+    spillFile_ = spillFile;
+  }
+
+  // Oldest message first
+  public ChatMessage get(int index)
+  {
+    if (index < 0 || index >= size_)
+    {
+      throw new IndexOutOfBoundsException(Integer.toString(index));
+    }
+
+    return messages_[(head_ + index) % messages_.length];
+  }
+
+  public void add(ChatMessage message)
+  {
+    int tail = (head_ + size_) % messages_.length;
+    if (size_ == messages_.length)
+    {
+      ChatMessage oldest = messages_[head_];
+      estimatedBytes_ -= estimateBytes(oldest);
+      spill(oldest);
+      head_ = (head_ + 1) % messages_.length;
+    }
+    else
+    {
+      size_++;
+    }
+
+    messages_[tail] = message;
+    estimatedBytes_ += estimateBytes(message);
+  }
+
+  // Puts messages from before the oldest one in front of it; they're given
+  // oldest first. Only as many of the most recent of them as there's room
+  // for are kept, so nothing already here is pushed out. Returns how many
+  // were added.
+  public int addEarlier(List<ChatMessage> messages)
+  {
+    int added = Math.min(messages.size(), messages_.length - size_);
+    for (int i = messages.size() - 1; i >= messages.size() - added; i--)
+    {
+      head_ = (head_ + messages_.length - 1) % messages_.length;
+      messages_[head_] = messages.get(i);
+      estimatedBytes_ += estimateBytes(messages.get(i));
+      size_++;
+    }
+
+    return added;
+  }
+
+  // Changes the capacity, keeping the most recent messages. Messages that no
+  // longer fit are spilled like any other pushed-out message.
+  public void setCapacity(int capacity)
+  {
+    if (capacity < 1)
+    {
+      capacity = DEFAULT_CAPACITY;
+    }
+
+    if (capacity == messages_.length)
+    {
+      return;
+    }
+
+    ChatMessage[] messages = new ChatMessage[capacity];
+    int dropped = Math.max(0, size_ - capacity);
+    for (int i = 0; i < dropped; i++)
+    {
+      ChatMessage oldest = get(i);
+      estimatedBytes_ -= estimateBytes(oldest);
+      spill(oldest);
+    }
+
+    for (int i = dropped; i < size_; i++)
+    {
+      messages[i - dropped] = get(i);
+    }
+
+    messages_ = messages;
+    head_ = 0;
+    size_ -= dropped;
+  }
+
+  // Drops every message and closes the spill file (which is left on disk).
+  public void clear()
+  {
+    closeSpill();
+    messages_ = new ChatMessage[messages_.length];
+    head_ = 0;
+    size_ = 0;
+    estimatedBytes_ = 0;
+  }
+
+  // Reads back the last limit messages spilled to a file, oldest first. It
+  // only sees what's been written out, so close the history's spill first
+  // (see closeSpill). Doesn't touch any history, so it can be called from
+  // any thread; a record still being appended is left off the end.
+  public static List<ChatMessage> readSpilled(File spillFile, int limit)
+    throws IOException
+  {
+    ArrayDeque<ChatMessage> result = new ArrayDeque<>();
+    if (spillFile == null || !spillFile.isFile() || limit < 1)
+    {
+      return new ArrayList<>(result);
+    }
+
+    try (DataInputStream input = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(spillFile))))
+    {
+      while (true)
+      {
+        ChatMessage message;
+        try
+        {
+          byte[] data = new byte[input.readInt()];
+          input.readFully(data);
+          message = ChatMessage.fromByteArray(data);
+        }
+        catch (EOFException ex)
+        {
+          break;
+        }
+
+        if (message != null)
+        {
+          result.addLast(message);
+          if (result.size() > limit)
+          {
+            result.removeFirst();
+          }
+        }
+      }
+    }
+
+    return new ArrayList<>(result);
+  }
+
+  private void spill(ChatMessage message)
+  {
+    if (spillFile_ == null)
+    {
+      return;
+    }
+
+    try
+    {
+      if (spillStream_ == null)
+      {
+        // Spilled messages are plain text, so only the current user can read
+        // them.
+        File directory = spillFile_.getParentFile();
+        if (directory != null)
+        {
+          FileUtil.createPrivateDirectory(directory);
+        }
+
+        FileUtil.createPrivateFile(spillFile_.toPath());
+        spillStream_ = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(spillFile_, true)));
+      }
+
+      // Each record is the serialized message prefixed with its length. The
+      // stream is flushed when it's closed.
+      byte[] data = message.toByteArray();
+      spillStream_.writeInt(data.length);
+      spillStream_.write(data);
+      spilledCount_++;
+    }
+    catch (IOException ex)
+    {
+      // Losing the oldest message is no worse than not spilling at all.
+      ex.printStackTrace();
+      closeSpill();
+      spillFile_ = null;
+    }
+  }
+
+  // Writes out anything waiting to be spilled and closes the file. It's
+  // opened again if anything else is spilled.
+  public void closeSpill()
+  {
+    if (spillStream_ == null)
+    {
+      return;
+    }
+
+    try
+    {
+      spillStream_.close();
+    }
+    catch (IOException ex)
+    {
+      ex.printStackTrace();
+    }
+
+    spillStream_ = null;
+  }
+
+  private static long estimateBytes(ChatMessage message)
+  {
+    String name = message.getName();
+    String text = message.getText();
+    return MESSAGE_OVERHEAD + 2L * ((name == null ? 0 : name.length()) +
+      (text == null ? 0 : text.length()));
+  }
+}
@@ -0,0 +1,1236 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+// An opt-in, append-only record of every message sent and received, so chat
+// history survives a restart.
+//
+// The journal is a directory of segment files, each filled up to a size limit
+// before the next one is started. Appending never waits on the disk: records
+// are queued, and a single writer thread takes everything that's waiting,
+// writes it with one FileChannel write and makes it durable with one force(),
+// so a burst of messages costs one sync rather than one each. Reads go
+// through memory-mapped segments and only ever see records that have been
+// forced, so a reader never sees half a record.
+//
+// Each record is its length, a body, and a CRC-32 of the body. The body holds
+// the direction, the time it was recorded, the channel hash, the position of
+// the channel's previous record and the serialized message. The back-links
+// let a page of one channel's history be read without touching any other
+// channel's records (see JournalIndex). On open, the last segment is checked
+// record by record and cut off at the first one that's incomplete or
+// corrupt, which is what a crash mid-write leaves behind.
+//
+// Records are located by a position: the segment number in the high 32 bits
+// and the offset within the segment in the low 32 bits. Messages are stored
+// as plain text, so the journal directory and everything in it are created
+// so that only the current user can read them.
+public class MessageJournal
+{
+  // Stored by ordinal, so new directions can only go on the end.
+  public enum Direction
+  {
+    RECEIVED,
+    SENT
+  }
+
+  public static final long DEFAULT_SEGMENT_SIZE = 16L << 20;
+  public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+  // The most records the writer commits at once
+  public static final int MAX_BATCH_SIZE = 256;
+  private static final String SEGMENT_SUFFIX = ".journal";
+  // Where the previous record's position goes, after the direction, timestamp
+  // and channel hash
+  private static final int PREVIOUS_OFFSET = 1 + 8 + ChatEntry.HASH_LENGTH;
+  private static final int BODY_HEADER_LENGTH = PREVIOUS_OFFSET + 8;
+  // Length before the body and CRC after it
+  private static final int RECORD_OVERHEAD = 4 + 4;
+  // Anything longer than this can only be corruption.
+  private static final int MAX_BODY_LENGTH = 1 << 20;
+
+  public interface RecordVisitor
+  {
+    // Returns false to stop at this record
+    boolean visit(Record record);
+  }
+
+  // A record read back from the journal
+  public static class Record
+  {
+    private long position_;
+    // The position just past this record
+    private long end_;
+    private Direction direction_;
+    private long timestamp_;
+    private byte[] channelHash_;
+    // The position of the channel's record before this one, or -1
+    private long previous_;
+    private ChatMessage message_;
+
+    public long getPosition()
+    {
+      return position_;
+    }
+
+    // The position of whatever record comes next
+    public long getEndPosition()
+    {
+      return end_;
+    }
+
+    public Direction getDirection()
+    {
+      return direction_;
+    }
+
+    // When the record was appended, in milliseconds since the epoch
+    public long getTimestamp()
+    {
+      return timestamp_;
+    }
+
+    public byte[] getChannelHash()
+    {
+      return channelHash_;
+    }
+
+    public long getPreviousPosition()
+    {
+      return previous_;
+    }
+
+    public ChatMessage getMessage()
+    {
+      return message_;
+    }
+  }
+
+  // A record waiting for the writer thread
+  private static class Pending
+  {
+    private byte[] body_;
+    private CompletableFuture<Long> result_ = new CompletableFuture<>();
+  }
+
+  private static class Segment
+  {
+    private int number_;
+    private File file_;
+    // How much of the file holds forced records
+    private volatile long size_;
+    private MappedByteBuffer mapped_ = null;
+
+    private Segment(int number, File file, long size)
+    {
+      number_ = number;
+      file_ = file;
+      size_ = size;
+    }
+
+    // A mapping of everything forced so far. The active segment keeps
+    // growing, so it's mapped again whenever the old mapping falls short.
+    private synchronized ByteBuffer map() throws IOException
+    {
+      long size = size_;
+      if (mapped_ == null || mapped_.capacity() < size)
+      {
+        try (FileChannel channel = FileChannel.open(file_.toPath(),
+          StandardOpenOption.READ))
+        {
+          mapped_ = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+      }
+
+      // Each reader gets its own position and limit.
+      ByteBuffer buffer = mapped_.duplicate();
+      buffer.limit((int)size);
+      return buffer;
+    }
+  }
+
+  // Pending record that tells the writer thread to finish up
+  private static final Pending STOP = new Pending();
+
+  private File directory_;
+  private long segmentSize_;
+  private CopyOnWriteArrayList<Segment> segments_ =
+    new CopyOnWriteArrayList<>();
+  // Only touched by the writer thread once it's started
+  private FileChannel activeChannel_;
+  // The end of the journal when it was opened; everything before it was
+  // written by an earlier run.
+  private long openPosition_;
+  // The position of each channel's last record, which its next one links
+  // back to. Only touched by the writer thread once it's started.
+  private HashMap<String, Long> lastPositions_ = new HashMap<>();
+  private BlockingQueue<Pending> queue_;
+  private volatile Pending lastQueued_ = null;
+  // Null if the index couldn't be opened (or has failed since), in which case
+  // reads fall back to scanning the whole journal.
+  private volatile JournalIndex index_ = null;
+  private Thread writerThread_;
+  private volatile boolean closed_ = false;
+  private AtomicLong appendedCount_ = new AtomicLong();
+  private AtomicLong droppedCount_ = new AtomicLong();
+  private AtomicLong commitCount_ = new AtomicLong();
+
+  private MessageJournal(File directory, long segmentSize, int queueCapacity)
+  {
+    directory_ = directory;
+    segmentSize_ = segmentSize;
+    queue_ = new LinkedBlockingQueue<>(queueCapacity);
+  }
+
+  public static File getDefaultDirectory()
+  {
+    return new File(ChannelKeyCache.getDefaultDirectory(), "journal");
+  }
+
+  // Opens (or creates) the journal in the given directory, recovering from
+  // any partly written record at its end, and starts the writer thread.
+  public static MessageJournal open(File directory, long segmentSize,
+    int queueCapacity)
+    throws IOException
+  {
+    FileUtil.createPrivateDirectory(directory);
+
+    // Offsets within a segment have to fit in 31 bits.
+    MessageJournal journal = new MessageJournal(directory,
+      segmentSize < 1024 || segmentSize > Integer.MAX_VALUE
+        ? DEFAULT_SEGMENT_SIZE : segmentSize,
+      queueCapacity < 1 ? DEFAULT_QUEUE_CAPACITY : queueCapacity);
+    journal.recover();
+    journal.openIndex();
+    journal.findLastPositions();
+    journal.start();
+    return journal;
+  }
+
+  public static MessageJournal open(File directory) throws IOException
+  {
+    return open(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  public static MessageJournal tryOpen(File directory)
+  {
+    try
+    {
+      return open(directory);
+    }
+    catch (Exception ex)
+    {
+      ex.printStackTrace();
+      return null;
+    }
+  }
+
+  public File getDirectory()
+  {
+    return directory_;
+  }
+
+  public long getOpenPosition()
+  {
+    return openPosition_;
+  }
+
+  // The position just past the last forced record
+  public long getEndPosition()
+  {
+    Segment last = segments_.get(segments_.size() - 1);
+    return toPosition(last.number_, last.size_);
+  }
+
+  public long getAppendedCount()
+  {
+    return appendedCount_.get();
+  }
+
+  // Records dropped because the writer had fallen too far behind
+  public long getDroppedCount()
+  {
+    return droppedCount_.get();
+  }
+
+  // Batches forced to disk so far
+  public long getCommitCount()
+  {
+    return commitCount_.get();
+  }
+
+  public int getSegmentCount()
+  {
+    return segments_.size();
+  }
+
+  public JournalIndex getIndex()
+  {
+    return index_;
+  }
+
+  // Queues a message to be recorded and returns right away; this never
+  // blocks, so it's safe to call from the receive path. The future completes
+  // with the record's position once it's on disk, or exceptionally if it was
+  // dropped or couldn't be written.
+  public CompletableFuture<Long> append(byte[] channelHash, ChatMessage message,
+    Direction direction)
+  {
+    Pending pending = new Pending();
+    try
+    {
+      if (closed_)
+      {
+        throw new IOException("The journal is closed");
+      }
+
+      if (channelHash == null || channelHash.length < ChatEntry.HASH_LENGTH)
+      {
+        throw new IOException("Invalid channel hash");
+      }
+
+      byte[] messageBytes = message.toByteArray();
+      ByteBuffer body = ByteBuffer.allocate(BODY_HEADER_LENGTH +
+        messageBytes.length);
+      body.put((byte)direction.ordinal());
+      body.putLong(System.currentTimeMillis());
+      body.put(channelHash, 0, ChatEntry.HASH_LENGTH);
+      // The writer fills in the previous record's position.
+      body.putLong(-1);
+      body.put(messageBytes);
+      pending.body_ = body.array();
+      if (!queue_.offer(pending))
+      {
+        droppedCount_.incrementAndGet();
+        throw new IOException("The journal queue is full");
+      }
+
+      lastQueued_ = pending;
+    }
+    catch (IOException ex)
+    {
+      pending.result_.completeExceptionally(ex);
+    }
+
+    return pending.result_;
+  }
+
+  public CompletableFuture<Long> append(ChatEntry entry, Direction direction)
+  {
+    return append(entry.getChannel().getHash(), entry.getMessage(), direction);
+  }
+
+  // Up to the last limit messages for the channel that were recorded before
+  // endPosition, oldest first. A message recorded twice (sent, and then
+  // received back from the group) only appears once.
+  public List<Record> read(byte[] channelHash, int limit, long endPosition)
+    throws IOException
+  {
+    final ArrayDeque<Record> result = new ArrayDeque<>();
+    if (limit < 1)
+    {
+      return new ArrayList<>(result);
+    }
+
+    final int finalLimit = limit;
+    final HashSet<Long> seen = new HashSet<>();
+    RecordVisitor keeper = new RecordVisitor()
+    {
+      @Override
+      public boolean visit(Record record)
+      {
+        Long key = getDuplicateKey(record.message_);
+        if (key != null && !seen.add(key))
+        {
+          return true;
+        }
+
+        result.addLast(record);
+        if (result.size() > finalLimit)
+        {
+          Long oldestKey = getDuplicateKey(result.removeFirst().message_);
+          if (oldestKey != null)
+          {
+            seen.remove(oldestKey);
+          }
+        }
+
+        return true;
+      }
+    };
+
+    JournalIndex index = index_;
+    if (index == null)
+    {
+      scan(channelHash, getStartPosition(), endPosition, keeper);
+      return new ArrayList<>(result);
+    }
+
+    long ordinal = index.findOrdinalBeforePosition(channelHash, endPosition);
+    if (ordinal < 0)
+    {
+      return new ArrayList<>(result);
+    }
+
+    // Read back a noted record's worth at a time from the one holding the
+    // end until there are at least limit messages (duplicates mean that can
+    // take more than limit records) or the channel's first record is
+    // reached.
+    long chunk = ordinal / JournalIndex.INTERVAL;
+    ArrayDeque<List<Record>> chunks = new ArrayDeque<>();
+    HashSet<Long> keys = new HashSet<>();
+    int messages = 0;
+    while (true)
+    {
+      List<Record> chunkRecords = readChunk(index, channelHash, chunk);
+      List<Record> kept = new ArrayList<>(chunkRecords.size());
+      for (Record record : chunkRecords)
+      {
+        if (record.position_ >= endPosition)
+        {
+          break;
+        }
+
+        kept.add(record);
+        Long key = getDuplicateKey(record.message_);
+        if (key == null || keys.add(key))
+        {
+          messages++;
+        }
+      }
+
+      chunks.addFirst(kept);
+      if (messages >= limit || chunk == 0)
+      {
+        break;
+      }
+
+      chunk--;
+    }
+
+    for (List<Record> kept : chunks)
+    {
+      for (Record record : kept)
+      {
+        keeper.visit(record);
+      }
+    }
+
+    return new ArrayList<>(result);
+  }
+
+  // How many records the channel has in the journal, counting a message
+  // that was recorded twice as two
+  public long getMessageCount(byte[] channelHash) throws IOException
+  {
+    JournalIndex index = index_;
+    if (index != null)
+    {
+      return index.getCount(channelHash);
+    }
+
+    final long[] count = { 0 };
+    scan(channelHash, getStartPosition(), getEndPosition(), new RecordVisitor()
+    {
+      @Override
+      public boolean visit(Record record)
+      {
+        count[0]++;
+        return true;
+      }
+    });
+
+    return count[0];
+  }
+
+  // Up to count of the channel's records, starting with its record number
+  // firstOrdinal (the first being 0), for paging through history.
+  public List<Record> readRange(byte[] channelHash, long firstOrdinal,
+    int count)
+    throws IOException
+  {
+    return collect(channelHash, firstOrdinal / JournalIndex.INTERVAL,
+      firstOrdinal, Long.MIN_VALUE, count);
+  }
+
+  // Up to limit of the channel's records from the given time (in
+  // milliseconds since the epoch) onward, oldest first.
+  public List<Record> readSince(byte[] channelHash, long timestamp, int limit)
+    throws IOException
+  {
+    long chunk = 0;
+    JournalIndex index = index_;
+    if (index != null)
+    {
+      chunk = index.findOrdinalBefore(channelHash, timestamp) /
+        JournalIndex.INTERVAL;
+    }
+
+    return collect(channelHash, chunk, 0, timestamp, limit);
+  }
+
+  // Reads the channel's records forward from its noted record number chunk,
+  // keeping those from firstOrdinal and minTimestamp on, until there are
+  // limit of them. Without the index, the journal is read from the start.
+  private List<Record> collect(byte[] channelHash, long chunk,
+    final long firstOrdinal, final long minTimestamp, final int limit)
+    throws IOException
+  {
+    final List<Record> result = new ArrayList<>();
+    if (limit < 1 || firstOrdinal < 0)
+    {
+      return result;
+    }
+
+    JournalIndex index = index_;
+    // The ordinal of the first record read
+    final long startOrdinal = (index == null ? 0
+      : chunk * JournalIndex.INTERVAL);
+    final HashSet<Long> seen = new HashSet<>();
+    RecordVisitor keeper = new RecordVisitor()
+    {
+      private long ordinal_ = startOrdinal;
+
+      @Override
+      public boolean visit(Record record)
+      {
+        if (ordinal_++ < firstOrdinal || record.timestamp_ < minTimestamp)
+        {
+          return true;
+        }
+
+        Long key = getDuplicateKey(record.message_);
+        if (key == null || seen.add(key))
+        {
+          result.add(record);
+        }
+
+        return result.size() < limit;
+      }
+    };
+
+    if (index == null)
+    {
+      scan(channelHash, getStartPosition(), getEndPosition(), keeper);
+      return result;
+    }
+
+    while (true)
+    {
+      List<Record> chunkRecords = readChunk(index, channelHash, chunk);
+      if (chunkRecords.isEmpty())
+      {
+        return result;
+      }
+
+      for (Record record : chunkRecords)
+      {
+        if (!keeper.visit(record))
+        {
+          return result;
+        }
+      }
+
+      chunk++;
+    }
+  }
+
+  // The channel's records from its noted record number chunk up to the next
+  // noted one, oldest first. They're found by following the back-links from
+  // the next noted record (or the channel's last record), so no other
+  // channel's records are read.
+  private List<Record> readChunk(JournalIndex index, byte[] channelHash,
+    long chunk)
+    throws IOException
+  {
+    List<Record> result = new ArrayList<>();
+    long first = index.findPosition(channelHash,
+      chunk * JournalIndex.INTERVAL);
+    if (first < 0)
+    {
+      return result;
+    }
+
+    long position;
+    long next = index.findPosition(channelHash,
+      (chunk + 1) * JournalIndex.INTERVAL);
+    if (next >= 0)
+    {
+      Record nextRecord = readAt(next);
+      position = (nextRecord == null ? -1 : nextRecord.previous_);
+    }
+    else
+    {
+      position = index.getLastPosition(channelHash);
+    }
+
+    while (position >= first)
+    {
+      Record record = readAt(position);
+      if (record == null || record.previous_ >= position)
+      {
+        throw new IOException("Broken journal link at " + position);
+      }
+
+      result.add(record);
+      position = record.previous_;
+    }
+
+    Collections.reverse(result);
+    // Records committed since the next noted record was looked up belong to
+    // the next chunk.
+    return (result.size() > JournalIndex.INTERVAL
+      ? new ArrayList<>(result.subList(0, JournalIndex.INTERVAL)) : result);
+  }
+
+  // Calls the visitor with each record from startPosition up to endPosition,
+  // in journal order, until it returns false. If a channel hash is given,
+  // only that channel's records are read; the rest are skipped without
+  // being parsed.
+  public void scan(byte[] channelHash, long startPosition, long endPosition,
+    RecordVisitor visitor)
+    throws IOException
+  {
+    for (Segment segment : segments_)
+    {
+      if (segment.number_ < getSegment(startPosition))
+      {
+        continue;
+      }
+
+      if (toPosition(segment.number_, 0) >= endPosition)
+      {
+        return;
+      }
+
+      ByteBuffer buffer = segment.map();
+      if (segment.number_ == getSegment(startPosition))
+      {
+        buffer.position(Math.min(buffer.limit(), getOffset(startPosition)));
+      }
+
+      while (buffer.remaining() > 0)
+      {
+        long position = toPosition(segment.number_, buffer.position());
+        if (position >= endPosition)
+        {
+          return;
+        }
+
+        if (channelHash != null && !matchesChannel(buffer, channelHash))
+        {
+          if (!skipRecord(buffer))
+          {
+            break;
+          }
+
+          continue;
+        }
+
+        Record record = readRecord(buffer, position);
+        if (record == null)
+        {
+          break;
+        }
+
+        record.end_ = toPosition(segment.number_, buffer.position());
+        if (!visitor.visit(record))
+        {
+          return;
+        }
+      }
+    }
+  }
+
+  // The record at the given position, or null if there isn't a whole one
+  // there.
+  public Record readAt(long position) throws IOException
+  {
+    for (Segment segment : segments_)
+    {
+      if (segment.number_ != getSegment(position))
+      {
+        continue;
+      }
+
+      ByteBuffer buffer = segment.map();
+      if (getOffset(position) < 0 || getOffset(position) >= buffer.limit())
+      {
+        return null;
+      }
+
+      buffer.position(getOffset(position));
+      Record record = readRecord(buffer, position);
+      if (record != null)
+      {
+        record.end_ = toPosition(segment.number_, buffer.position());
+      }
+
+      return record;
+    }
+
+    return null;
+  }
+
+  // The position of the first record in the journal
+  public long getStartPosition()
+  {
+    return toPosition(segments_.get(0).number_, 0);
+  }
+
+  public List<Record> tryRead(byte[] channelHash, int limit, long endPosition)
+  {
+    try
+    {
+      return read(channelHash, limit, endPosition);
+    }
+    catch (Exception ex)
+    {
+      ex.printStackTrace();
+      return new ArrayList<>();
+    }
+  }
+
+  // Waits for everything queued so far to be written.
+  public void flush() throws InterruptedException
+  {
+    // Records are written in the order they're queued, so once the last one
+    // is done, so is everything before it.
+    Pending last = lastQueued_;
+    if (last == null)
+    {
+      return;
+    }
+
+    try
+    {
+      last.result_.get();
+    }
+    catch (ExecutionException ex)
+    {
+      // The record failed, but it's still been dealt with.
+    }
+  }
+
+  // Writes whatever's still queued and stops the writer thread.
+  public void close() throws InterruptedException
+  {
+    if (closed_)
+    {
+      return;
+    }
+
+    closed_ = true;
+    queue_.put(STOP);
+    writerThread_.join();
+    JournalIndex index = index_;
+    if (index != null)
+    {
+      try
+      {
+        index.close();
+      }
+      catch (IOException ex)
+      {
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  public static long toPosition(int segment, long offset)
+  {
+    return ((long)segment << 32) | offset;
+  }
+
+  public static int getSegment(long position)
+  {
+    return (int)(position >>> 32);
+  }
+
+  public static int getOffset(long position)
+  {
+    return (int)position;
+  }
+
+  private void recover() throws IOException
+  {
+    File[] files = directory_.listFiles();
+    List<Integer> numbers = new ArrayList<>();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        Integer number = parseSegmentNumber(file.getName());
+        if (number != null)
+        {
+          numbers.add(number);
+        }
+      }
+    }
+
+    Integer[] sorted = numbers.toArray(new Integer[0]);
+    Arrays.sort(sorted);
+    for (int number : sorted)
+    {
+      File file = getSegmentFile(number);
+      segments_.add(new Segment(number, file, file.length()));
+    }
+
+    if (segments_.isEmpty())
+    {
+      openSegment(1);
+    }
+    else
+    {
+      Segment last = segments_.get(segments_.size() - 1);
+      activeChannel_ = FileChannel.open(last.file_.toPath(),
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+      long validSize = findValidSize(activeChannel_);
+      if (validSize < last.size_)
+      {
+        System.err.println("Truncating damaged journal segment " + last.file_ +
+          " from " + last.size_ + " to " + validSize + " bytes.");
+        activeChannel_.truncate(validSize);
+        activeChannel_.force(true);
+        last.size_ = validSize;
+      }
+
+      activeChannel_.position(validSize);
+    }
+
+    openPosition_ = getEndPosition();
+  }
+
+  // Opens the index and brings it up to date with anything the journal has
+  // that it doesn't. The journal still works without an index, just more
+  // slowly, so failing here isn't fatal.
+  private void openIndex()
+  {
+    try
+    {
+      final JournalIndex index = JournalIndex.open(directory_,
+        getStartPosition(), getEndPosition());
+      scan(null, index.getEndPosition(), getEndPosition(), new RecordVisitor()
+      {
+        @Override
+        public boolean visit(Record record)
+        {
+          try
+          {
+            index.add(record.channelHash_, record.timestamp_,
+              record.position_, record.end_);
+          }
+          catch (IOException ex)
+          {
+            throw new UncheckedIOException(ex);
+          }
+
+          return true;
+        }
+      });
+      index.checkpoint();
+      index_ = index;
+    }
+    catch (IOException | UncheckedIOException ex)
+    {
+      System.err.println("Couldn't open the journal index.");
+      ex.printStackTrace();
+    }
+  }
+
+  // Finds each channel's last record, so the writer can link the next one
+  // back to it. The index already knows them, up to where it ends.
+  private void findLastPositions() throws IOException
+  {
+    long startPosition = getStartPosition();
+    JournalIndex index = index_;
+    if (index != null)
+    {
+      lastPositions_.putAll(index.getLastPositions());
+      startPosition = index.getEndPosition();
+    }
+
+    scan(null, startPosition, getEndPosition(), new RecordVisitor()
+    {
+      @Override
+      public boolean visit(Record record)
+      {
+        lastPositions_.put(getKey(record.channelHash_), record.position_);
+        return true;
+      }
+    });
+  }
+
+  // Where the last whole, intact record in the file ends
+  private static long findValidSize(FileChannel channel) throws IOException
+  {
+    long size = channel.size();
+    if (size == 0)
+    {
+      return 0;
+    }
+
+    ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    while (buffer.remaining() > 0)
+    {
+      int start = buffer.position();
+      if (readRecord(buffer, 0) == null)
+      {
+        return start;
+      }
+    }
+
+    return buffer.position();
+  }
+
+  private void openSegment(int number) throws IOException
+  {
+    File file = getSegmentFile(number);
+    FileUtil.createPrivateFile(file.toPath());
+    activeChannel_ = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+      StandardOpenOption.WRITE);
+    segments_.add(new Segment(number, file, 0));
+  }
+
+  private File getSegmentFile(int number)
+  {
+    return new File(directory_, String.format("%08x%s", number,
+      SEGMENT_SUFFIX));
+  }
+
+  private static Integer parseSegmentNumber(String name)
+  {
+    if (!name.endsWith(SEGMENT_SUFFIX))
+    {
+      return null;
+    }
+
+    try
+    {
+      return (int)Long.parseLong(name.substring(0,
+        name.length() - SEGMENT_SUFFIX.length()), 16);
+    }
+    catch (NumberFormatException ex)
+    {
+      return null;
+    }
+  }
+
+  private void start()
+  {
+    writerThread_ = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        writeLoop();
+      }
+    }, "PunyChat journal");
+    writerThread_.setDaemon(true);
+    writerThread_.start();
+  }
+
+  private void writeLoop()
+  {
+    List<Pending> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    boolean stopping = false;
+    while (!stopping)
+    {
+      batch.clear();
+      try
+      {
+        batch.add(queue_.take());
+      }
+      catch (InterruptedException ex)
+      {
+        break;
+      }
+
+      queue_.drainTo(batch, MAX_BATCH_SIZE - 1);
+      if (batch.remove(STOP))
+      {
+        // Anything queued before the stop still gets written.
+        stopping = true;
+      }
+
+      commit(batch);
+    }
+
+    try
+    {
+      activeChannel_.close();
+    }
+    catch (IOException ex)
+    {
+      ex.printStackTrace();
+    }
+  }
+
+  // Writes a batch with as few writes and forces as possible, starting a new
+  // segment whenever the current one is full.
+  private void commit(List<Pending> batch)
+  {
+    int index = 0;
+    while (index < batch.size())
+    {
+      Segment segment = segments_.get(segments_.size() - 1);
+      long offset = segment.size_;
+      if (offset > 0 &&
+        offset + getRecordLength(batch.get(index)) > segmentSize_)
+      {
+        try
+        {
+          openSegment(segment.number_ + 1);
+        }
+        catch (IOException ex)
+        {
+          fail(batch, index, batch.size(), ex);
+          return;
+        }
+
+        continue;
+      }
+
+      // Take as many records as fit in this segment (always at least one).
+      int end = index;
+      long length = 0;
+      while (end < batch.size() && (end == index ||
+        offset + length + getRecordLength(batch.get(end)) <= segmentSize_))
+      {
+        length += getRecordLength(batch.get(end));
+        end++;
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate((int)length);
+      long[] positions = new long[end - index];
+      // Each channel's last record, as of this write; only kept if it works.
+      HashMap<String, Long> lastPositions = new HashMap<>();
+      CRC32 crc = new CRC32();
+      for (int i = index; i < end; i++)
+      {
+        byte[] body = batch.get(i).body_;
+        positions[i - index] = toPosition(segment.number_,
+          offset + buffer.position());
+        String key = getKey(Arrays.copyOfRange(body, 9, PREVIOUS_OFFSET));
+        Long previous = lastPositions.get(key);
+        if (previous == null)
+        {
+          previous = lastPositions_.get(key);
+        }
+
+        ByteBuffer.wrap(body).putLong(PREVIOUS_OFFSET,
+          previous == null ? -1 : previous);
+        lastPositions.put(key, positions[i - index]);
+        crc.reset();
+        crc.update(body, 0, body.length);
+        buffer.putInt(body.length);
+        buffer.put(body);
+        buffer.putInt((int)crc.getValue());
+      }
+
+      buffer.flip();
+      try
+      {
+        while (buffer.hasRemaining())
+        {
+          activeChannel_.write(buffer);
+        }
+
+        activeChannel_.force(false);
+      }
+      catch (IOException ex)
+      {
+        fail(batch, index, end, ex);
+        // Cut off whatever part of the batch made it out.
+        try
+        {
+          activeChannel_.truncate(offset);
+          activeChannel_.position(offset);
+        }
+        catch (IOException truncateEx)
+        {
+          truncateEx.printStackTrace();
+        }
+
+        index = end;
+        continue;
+      }
+
+      segment.size_ = offset + length;
+      lastPositions_.putAll(lastPositions);
+      commitCount_.incrementAndGet();
+      addToIndex(batch, index, end, positions);
+      for (int i = index; i < end; i++)
+      {
+        appendedCount_.incrementAndGet();
+        batch.get(i).result_.complete(positions[i - index]);
+      }
+
+      index = end;
+    }
+  }
+
+  private void addToIndex(List<Pending> batch, int start, int end,
+    long[] positions)
+  {
+    JournalIndex index = index_;
+    if (index == null)
+    {
+      return;
+    }
+
+    try
+    {
+      for (int i = start; i < end; i++)
+      {
+        ByteBuffer body = ByteBuffer.wrap(batch.get(i).body_);
+        byte[] hash = new byte[ChatEntry.HASH_LENGTH];
+        body.position(1 + 8);
+        body.get(hash);
+        index.add(hash, body.getLong(1), positions[i - start],
+          positions[i - start] + getRecordLength(batch.get(i)));
+      }
+    }
+    catch (IOException ex)
+    {
+      // The index can be rebuilt from the journal next time.
+      System.err.println("Giving up on the journal index.");
+      ex.printStackTrace();
+      index_ = null;
+    }
+  }
+
+  private static void fail(List<Pending> batch, int start, int end,
+    IOException ex)
+  {
+    for (int i = start; i < end; i++)
+    {
+      batch.get(i).result_.completeExceptionally(ex);
+    }
+  }
+
+  private static int getRecordLength(Pending pending)
+  {
+    return RECORD_OVERHEAD + pending.body_.length;
+  }
+
+  // Checks the channel hash of the record at the buffer's position without
+  // moving it.
+  private static boolean matchesChannel(ByteBuffer buffer, byte[] channelHash)
+  {
+    int start = buffer.position() + 4 + 1 + 8;
+    if (buffer.limit() - start < ChatEntry.HASH_LENGTH)
+    {
+      return false;
+    }
+
+    for (int i = 0; i < ChatEntry.HASH_LENGTH; i++)
+    {
+      if (buffer.get(start + i) != channelHash[i])
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  // Moves past the record at the buffer's position. Returns false if there
+  // isn't a whole record there.
+  private static boolean skipRecord(ByteBuffer buffer)
+  {
+    if (buffer.remaining() < RECORD_OVERHEAD + BODY_HEADER_LENGTH)
+    {
+      return false;
+    }
+
+    int length = buffer.getInt(buffer.position());
+    if (length < BODY_HEADER_LENGTH || length > MAX_BODY_LENGTH ||
+      buffer.remaining() < RECORD_OVERHEAD + length)
+    {
+      return false;
+    }
+
+    buffer.position(buffer.position() + RECORD_OVERHEAD + length);
+    return true;
+  }
+
+  // Reads and checks the record at the buffer's position, leaving the buffer
+  // just past it. Returns null (with the buffer wherever it got to) if
+  // there isn't a whole, intact record there.
+  private static Record readRecord(ByteBuffer buffer, long position)
+  {
+    if (buffer.remaining() < RECORD_OVERHEAD + BODY_HEADER_LENGTH)
+    {
+      return null;
+    }
+
+    int length = buffer.getInt();
+    if (length < BODY_HEADER_LENGTH || length > MAX_BODY_LENGTH ||
+      buffer.remaining() < length + 4)
+    {
+      return null;
+    }
+
+    byte[] body = new byte[length];
+    buffer.get(body);
+    CRC32 crc = new CRC32();
+    crc.update(body, 0, length);
+    if (buffer.getInt() != (int)crc.getValue())
+    {
+      return null;
+    }
+
+    int direction = body[0];
+    if (direction < 0 || direction >= Direction.values().length)
+    {
+      return null;
+    }
+
+    Record record = new Record();
+    record.position_ = position;
+    record.direction_ = Direction.values()[direction];
+    record.timestamp_ = ByteBuffer.wrap(body, 1, 8).getLong();
+    record.channelHash_ = Arrays.copyOfRange(body, 9, PREVIOUS_OFFSET);
+    record.previous_ = ByteBuffer.wrap(body).getLong(PREVIOUS_OFFSET);
+    record.message_ = ChatMessage.fromByteArray(body, BODY_HEADER_LENGTH,
+      length - BODY_HEADER_LENGTH);
+    return record;
+  }
+
+  // Channels are keyed the same way as in the index.
+  private static String getKey(byte[] hash)
+  {
+    return CryptoUtil.toHexString(Arrays.copyOf(hash, ChatEntry.HASH_LENGTH));
+  }
+
+  // Identifies a message by its sender and sequence number, or null if it
+  // doesn't have them.
+  private static Long getDuplicateKey(ChatMessage message)
+  {
+    if (message.getSenderId() == 0)
+    {
+      return null;
+    }
+
+    return ((long)message.getSenderId() << 32) |
+      (message.getSequence() & 0xffffffffL);
+  }
+}
@@ -0,0 +1,99 @@
+import javax.swing.AbstractListModel;
+import java.util.List;
+
+// Presents a channel's MessageHistory to a JList. The list asks for rows by
+// index, so with a fixed cell size it only ever looks at the rows that are on
+// screen, however long the history gets; nothing is copied out of the
+// history and there's no text to lay out for the rest of it.
+//
+// Messages have to be added through the model rather than straight to the
+// history so the list hears about them. Like MessageHistory, this is only
+// meant to be used from the event dispatch thread.
+public class MessageListModel extends AbstractListModel<ChatMessage>
+{
+  private MessageHistory history_;
+
+  public MessageListModel(MessageHistory history)
+  {
+    history_ = history;
+  }
+
+  public MessageHistory getHistory()
+  {
+    return history_;
+  }
+
+  @Override
+  public int getSize()
+  {
+    return history_.size();
+  }
+
+  @Override
+  public ChatMessage getElementAt(int index)
+  {
+    return history_.get(index);
+  }
+
+  // Adds a batch of messages with one removal event for whatever they push
+  // out of the history and one insertion event for the new rows.
+  public void addAll(List<ChatMessage> messages)
+  {
+    if (messages.isEmpty())
+    {
+      return;
+    }
+
+    int sizeBefore = history_.size();
+    for (ChatMessage message : messages)
+    {
+      history_.add(message);
+    }
+
+    int sizeAfter = history_.size();
+    int removed = Math.min(sizeBefore,
+      sizeBefore + messages.size() - sizeAfter);
+    if (removed > 0)
+    {
+      fireIntervalRemoved(this, 0, removed - 1);
+    }
+
+    int added = sizeAfter - (sizeBefore - removed);
+    if (added > 0)
+    {
+      fireIntervalAdded(this, sizeAfter - added, sizeAfter - 1);
+    }
+  }
+
+  // Adds messages from before the oldest row as new rows at the top, as far
+  // as there's room for them (see MessageHistory.addEarlier).
+  public void addEarlier(List<ChatMessage> messages)
+  {
+    int added = history_.addEarlier(messages);
+    if (added > 0)
+    {
+      fireIntervalAdded(this, 0, added - 1);
+    }
+  }
+
+  public void setCapacity(int capacity)
+  {
+    int sizeBefore = history_.size();
+    history_.setCapacity(capacity);
+    int removed = sizeBefore - history_.size();
+    if (removed > 0)
+    {
+      fireIntervalRemoved(this, 0, removed - 1);
+    }
+  }
+
+  public void clear()
+  {
+    int sizeBefore = history_.size();
+    history_.clear();
+    if (sizeBefore > 0)
+    {
+      fireIntervalRemoved(this, 0, sizeBefore - 1);
+    }
+  }
+}
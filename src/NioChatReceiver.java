@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+// Receives chat packets from a non-blocking DatagramChannel using a Selector.
+// Stopping is wakeup-based, so there's no receive timeout to wait out.
+public class NioChatReceiver extends AbstractChatReceiver
+{
+  // Same 4kB (one page) default as the blocking receiver
+  private static final int DEFAULT_BUFFER_SIZE = 4096;
+  private static final int MIN_BUFFER_SIZE = 16;
+
+  private DatagramChannel channel_;
+  private Selector selector_;
+  private ByteBuffer buffer_;
+
+  public NioChatReceiver(ChatEntryReceived callback, DatagramChannel channel,
+    int bufferSize)
+    throws IOException
+  {
+    super(callback);
+    if (bufferSize < MIN_BUFFER_SIZE)
+    {
+      bufferSize = DEFAULT_BUFFER_SIZE;
+    }
+
+    channel_ = channel;
+    // A heap buffer is used on purpose: the packet decoder works on byte
+    // arrays, so the backing array can be handed over without a copy.
+    buffer_ = ByteBuffer.allocate(bufferSize);
+    // The selector is opened here rather than in run() so requestStop() always
+    // has something to wake up, even if it's called before the thread starts.
+    selector_ = Selector.open();
+    channel_.configureBlocking(false);
+    channel_.register(selector_, SelectionKey.OP_READ);
+  }
+
+  public NioChatReceiver(ChatEntryReceived callback, DatagramChannel channel)
+    throws IOException
+  {
+    this(callback, channel, DEFAULT_BUFFER_SIZE);
+  }
+
+  @Override
+  public void requestStop()
+  {
+    super.requestStop();
+    // Unblocks select() immediately instead of waiting for a timeout
+    selector_.wakeup();
+  }
+
+  public void run()
+  {
+    running_ = true;
+    try
+    {
+      while (!stopRequested_.get())
+      {
+        selector_.select();
+        if (stopRequested_.get())
+        {
+          break;
+        }
+
+        Iterator<SelectionKey> keys = selector_.selectedKeys().iterator();
+        while (keys.hasNext())
+        {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (key.isValid() && key.isReadable())
+          {
+            drain();
+          }
+        }
+      }
+    }
+    catch (ClosedChannelException | ClosedSelectorException closedEx)
+    {
+      // The channel was closed out from under us; treat it as a stop.
+    }
+    catch (IOException ioEx)
+    {
+      // The socket can't be read any more, so stop and let the owner find
+      // out why.
+      ioEx.printStackTrace();
+      error_ = ioEx;
+    }
+    finally
+    {
+      try
+      {
+        selector_.close();
+      }
+      catch (IOException ex)
+      {
+        // nothing else to do with it
+      }
+
+      stopRequested_.set(false);
+      running_ = false;
+    }
+  }
+
+  // Reads every datagram that's currently queued on the channel so a single
+  // wakeup can service a whole burst.
+  private void drain() throws IOException
+  {
+    while (!stopRequested_.get())
+    {
+      buffer_.clear();
+      SocketAddress source = channel_.receive(buffer_);
+      if (source == null)
+      {
+        // Nothing left to read
+        return;
+      }
+
+      dispatch(buffer_.array(), buffer_.position(),
+        (source instanceof InetSocketAddress
+          ? ((InetSocketAddress)source).getAddress()
+          : null));
+    }
+  }
+}
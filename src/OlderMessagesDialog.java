@@ -0,0 +1,146 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+// Shows the messages a channel's history has pushed out to its spill file.
+// The file is read on a worker thread, since it can grow without bound.
+public class OlderMessagesDialog extends JDialog
+{
+  // The most messages read back from the end of the file
+  public static final int MESSAGE_LIMIT = 10000;
+
+  // UI components
+  private JPanel contentPanel;
+  private JPanel buttonPanel;
+  private JLabel statusLabel;
+  private JList<String> messagesList;
+  private DefaultListModel<String> messagesModel = new DefaultListModel<>();
+  private JButton closeButton;
+
+  // property fields
+  private File spillFile_;
+
+  public OlderMessagesDialog(Frame owner, Channel channel, File spillFile)
+  {
+    super(owner, "Older Messages - " + channel.toString(), false);
+    spillFile_ = spillFile;
+    initializeDialog();
+    load();
+  }
+
+  private void load()
+  {
+    statusLabel.setText("Loading...");
+    new SwingWorker<List<ChatMessage>, Void>()
+    {
+      @Override
+      protected List<ChatMessage> doInBackground() throws Exception
+      {
+        return MessageHistory.readSpilled(spillFile_, MESSAGE_LIMIT);
+      }
+
+      @Override
+      protected void done()
+      {
+        List<ChatMessage> messages;
+        try
+        {
+          messages = get();
+        }
+        catch (InterruptedException | ExecutionException ex)
+        {
+          ex.printStackTrace();
+          statusLabel.setText("The older messages couldn't be read.");
+          return;
+        }
+
+        for (ChatMessage message : messages)
+        {
+          messagesModel.addElement(message.toString());
+        }
+
+        statusLabel.setText(String.format(messages.size() < MESSAGE_LIMIT
+          ? "%d older messages" : "The last %d older messages",
+          messages.size()));
+        if (!messages.isEmpty())
+        {
+          messagesList.ensureIndexIsVisible(messages.size() - 1);
+        }
+      }
+    }.execute();
+  }
+
+  private void initializeDialog()
+  {
+    setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+    setLayout(new GridBagLayout());
+
+    GridBagConstraints rootConstraints = new GridBagConstraints();
+    rootConstraints.insets = new Insets(4, 4, 4, 4);
+
+    // Content panel
+    rootConstraints.gridx = 0;
+    rootConstraints.gridy = 0;
+    rootConstraints.weightx = 1;
+    rootConstraints.weighty = 1;
+    rootConstraints.fill = GridBagConstraints.BOTH;
+    add((contentPanel = new JPanel(new GridBagLayout())), rootConstraints);
+
+    // Button panel
+    rootConstraints.gridy++;
+    rootConstraints.weighty = 0;
+    rootConstraints.fill = GridBagConstraints.NONE;
+    add((buttonPanel = new JPanel(new FlowLayout())), rootConstraints);
+
+    // Messages list. Rows are one line each, so only the visible ones are
+    // laid out; the tool tip shows a row that doesn't fit.
+    GridBagConstraints constraints = new GridBagConstraints();
+    constraints.insets = new Insets(4, 4, 4, 4);
+    constraints.gridx = 0;
+    constraints.gridy = 0;
+    constraints.weightx = 1;
+    constraints.weighty = 1;
+    constraints.fill = GridBagConstraints.BOTH;
+    messagesList = new JList<String>(messagesModel)
+    {
+      @Override
+      public String getToolTipText(MouseEvent e)
+      {
+        int index = locationToIndex(e.getPoint());
+        return (index < 0 ? null : getModel().getElementAt(index));
+      }
+    };
+    messagesList.setToolTipText("");
+    messagesList.setFixedCellHeight(
+      messagesList.getFontMetrics(messagesList.getFont()).getHeight() + 2);
+    messagesList.setFixedCellWidth(1);
+    messagesList.setVisibleRowCount(20);
+    JScrollPane messagesScrollPane = new JScrollPane(messagesList);
+    messagesScrollPane.setHorizontalScrollBarPolicy(
+      JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+    messagesScrollPane.setPreferredSize(new Dimension(640, 360));
+    contentPanel.add(messagesScrollPane, constraints);
+
+    // Status label
+    constraints.gridy++;
+    constraints.weighty = 0;
+    constraints.fill = GridBagConstraints.HORIZONTAL;
+    contentPanel.add((statusLabel = new JLabel(" ")), constraints);
+
+    // Close button
+    buttonPanel.add((closeButton = new JButton("Close")));
+    closeButton.addActionListener(new ActionListener()
+    {
+      @Override
+      public void actionPerformed(ActionEvent e)
+      {
+        dispose();
+      }
+    });
+  }
+}
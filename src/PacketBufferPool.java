@@ -0,0 +1,116 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A pool of fixed-size byte arrays used for packet and plaintext data on the
+// receive path. Every buffer is the same size, so any released buffer can
+// satisfy any later request; once the pool is warmed up, receiving a packet
+// doesn't need to allocate any new arrays.
+public class PacketBufferPool
+{
+  // Big enough for any packet ChatEntry will accept and for the plaintext
+  // decrypted from one.
+  public static final int DEFAULT_BUFFER_SIZE = ChatEntry.MAX_PACKET_SIZE;
+  public static final int DEFAULT_MAX_RETAINED = 4096;
+
+  // Shared by the receivers, the receive pipeline and ChatEntry.decrypt
+  private static final PacketBufferPool SharedPool = new PacketBufferPool(
+    DEFAULT_BUFFER_SIZE, DEFAULT_MAX_RETAINED);
+
+  private int bufferSize_;
+  // ArrayBlockingQueue is used on purpose: unlike the linked queues, it
+  // doesn't allocate a node for every buffer that's returned to it.
+  private ArrayBlockingQueue<byte[]> freeBuffers_;
+  private AtomicLong allocatedCount_ = new AtomicLong();
+  private AtomicLong reusedCount_ = new AtomicLong();
+  private AtomicLong discardedCount_ = new AtomicLong();
+
+  public PacketBufferPool(int bufferSize, int maxRetained)
+  {
+    if (bufferSize < 1)
+    {
+      bufferSize = DEFAULT_BUFFER_SIZE;
+    }
+
+    if (maxRetained < 1)
+    {
+      maxRetained = DEFAULT_MAX_RETAINED;
+    }
+
+    bufferSize_ = bufferSize;
+    freeBuffers_ = new ArrayBlockingQueue<>(maxRetained);
+  }
+
+  public static PacketBufferPool getShared()
+  {
+    return SharedPool;
+  }
+
+  public int getBufferSize()
+  {
+    return bufferSize_;
+  }
+
+  // Number of buffers that had to be newly allocated
+  public long getAllocatedCount()
+  {
+    return allocatedCount_.get();
+  }
+
+  // Number of requests that were satisfied by a previously released buffer
+  public long getReusedCount()
+  {
+    return reusedCount_.get();
+  }
+
+  // Number of released buffers that were dropped because the pool was full
+  public long getDiscardedCount()
+  {
+    return discardedCount_.get();
+  }
+
+  // Number of buffers currently sitting in the pool
+  public int getRetainedCount()
+  {
+    return freeBuffers_.size();
+  }
+
+  // The returned buffer's contents are undefined; callers should only rely on
+  // the bytes they write to it.
+  public byte[] acquire()
+  {
+    byte[] buffer = freeBuffers_.poll();
+    if (buffer != null)
+    {
+      reusedCount_.incrementAndGet();
+      return buffer;
+    }
+
+    allocatedCount_.incrementAndGet();
+    return new byte[bufferSize_];
+  }
+
+  // Returns a buffer to the pool. The caller must not touch the buffer after
+  // releasing it. Buffers that didn't come from this pool are ignored.
+  public void release(byte[] buffer)
+  {
+    if (buffer == null || buffer.length != bufferSize_)
+    {
+      return;
+    }
+
+    if (!freeBuffers_.offer(buffer))
+    {
+      discardedCount_.incrementAndGet();
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format(
+      "{bufferSize = %d; allocated = %d; reused = %d; discarded = %d; " +
+      "retained = %d}",
+      bufferSize_, getAllocatedCount(), getReusedCount(),
+      getDiscardedCount(), getRetainedCount());
+  }
+}
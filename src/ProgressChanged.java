@@ -0,0 +1,5 @@
+public interface ProgressChanged
+{
+  // Returns false to ask the operation to stop early
+  boolean progressChanged(int completed, int total);
+}
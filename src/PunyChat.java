@@ -2,6 +2,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.io.File;
 import java.io.IOException;
 
 public class PunyChat implements Runnable
@@ -9,6 +10,8 @@ public class PunyChat implements Runnable
   private Configuration config_;
   private ChatClient client_ = new ChatClient();
   private ChatUIFrame chatUIFrame_ = null;
+  // Open whenever the journal is
+  private SearchIndex searchIndex_ = null;
 
   public static void main(String[] args)
   {
@@ -23,6 +26,14 @@ public class PunyChat implements Runnable
     // Show the splash frame
     showSplashFrame();
 
+    // Open the channel key cache if it was turned on in an earlier run, so
+    // channels joined from here on can use it.
+    File keyCacheDirectory = ChannelKeyCache.getDefaultDirectory();
+    if (ChannelKeyCache.exists(keyCacheDirectory))
+    {
+      Channel.setKeyCache(ChannelKeyCache.tryOpen(keyCacheDirectory));
+    }
+
     // Get the initial configuration
     boolean keepGoing = showConfigurationDialog();
     if (!keepGoing)
@@ -42,6 +53,8 @@ public class PunyChat implements Runnable
   public void showMainUI()
   {
     chatUIFrame_ = new ChatUIFrame(client_);
+    chatUIFrame_.setSearchIndex(searchIndex_);
+    applyDisplaySettings();
     chatUIFrame_.setLocationRelativeTo(null);
     chatUIFrame_.pack();
     WindowUtil.center(chatUIFrame_);
@@ -132,11 +145,14 @@ public class PunyChat implements Runnable
     dlg.setModal(true);
     WindowUtil.center(dlg);
     dlg.setVisible(true);
+    // The dialog derives the channel keys in the background, so incoming
+    // messages keep rendering while it's open.
     if (!dlg.wasCancelled())
     {
       result = dlg.getChannel();
     }
 
+    dlg.dispose();
     return result;
   }
 
@@ -154,6 +170,10 @@ public class PunyChat implements Runnable
   {
     boolean result = false;
     ConfigurationDialog dlg = new ConfigurationDialog();
+    dlg.setJournalEnabled(client_.getJournal() != null);
+    dlg.setHistorySpillEnabled(config_ != null &&
+      config_.isHistorySpillEnabled());
+    dlg.setMessageListView(config_ != null && config_.isMessageListView());
     dlg.setLocationRelativeTo(null);
     dlg.pack();
     dlg.setModal(true);
@@ -162,6 +182,9 @@ public class PunyChat implements Runnable
     if (!dlg.wasCancelled())
     {
       config_ = dlg.getConfiguration();
+      applyKeyCache();
+      applyJournal();
+      applyDisplaySettings();
       try
       {
         client_.configure(config_);
@@ -182,11 +205,97 @@ public class PunyChat implements Runnable
     return result;
   }
 
+  // Loads the channel key cache if it's been turned on (and isn't loaded
+  // already), or drops and deletes it if it's been turned off. Either way,
+  // the choice carries over to the next launch.
+  private void applyKeyCache()
+  {
+    if (!config_.isKeyCacheEnabled())
+    {
+      Channel.setKeyCache(null);
+      ChannelKeyCache.tryDelete(ChannelKeyCache.getDefaultDirectory());
+      return;
+    }
+
+    if (Channel.getKeyCache() == null)
+    {
+      Channel.setKeyCache(ChannelKeyCache.tryOpen(
+        ChannelKeyCache.getDefaultDirectory()));
+    }
+  }
+
+  // Opens the message journal if it's been turned on (and isn't open
+  // already), or closes it if it's been turned off.
+  private void applyJournal()
+  {
+    MessageJournal journal = client_.getJournal();
+    if (!config_.isJournalEnabled())
+    {
+      client_.setJournal(null);
+      closeJournal(journal);
+    }
+    else if (journal == null)
+    {
+      journal = MessageJournal.tryOpen(MessageJournal.getDefaultDirectory());
+      client_.setJournal(journal);
+      // Indexes on its own thread, so this doesn't hold anything up.
+      searchIndex_ = (journal == null ? null : SearchIndex.open(journal));
+    }
+
+    if (chatUIFrame_ != null)
+    {
+      chatUIFrame_.setSearchIndex(searchIndex_);
+    }
+  }
+
+  // Closes the journal along with its search index.
+  private void closeJournal(MessageJournal journal)
+  {
+    try
+    {
+      if (searchIndex_ != null)
+      {
+        searchIndex_.close();
+        searchIndex_ = null;
+      }
+
+      if (journal != null)
+      {
+        journal.close();
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      // do nothing; whatever was queued is lost
+    }
+  }
+
+  private void applyDisplaySettings()
+  {
+    if (chatUIFrame_ == null)
+    {
+      return;
+    }
+
+    chatUIFrame_.setHistorySettings(config_.getHistoryCapacity(),
+      config_.isHistorySpillEnabled()
+        ? new File(ChannelKeyCache.getDefaultDirectory(), "history")
+        : null);
+    chatUIFrame_.setMaxRenderLatency(config_.getMaxRenderLatency());
+    chatUIFrame_.setListView(config_.isMessageListView());
+  }
+
   public void terminate()
   {
     if (client_ != null)
     {
       client_.terminate();
+      closeJournal(client_.getJournal());
+    }
+
+    if (chatUIFrame_ != null)
+    {
+      chatUIFrame_.closeHistories();
     }
 
     System.exit(0);
@@ -265,12 +374,39 @@ public class PunyChat implements Runnable
     //Tests.TestListInterfaces();
     //Tests.TestFirstValidInterface();
     //Tests.TestEncryption();
+    //Tests.TestCipherCache();
     //Tests.TestMemoryHash();
+    //Tests.TestMemoryHashVectors();
+    //Tests.TestMemoryHashSpeed();
+    //Benchmarks.runAll();
     //Tests.TestDecryption();
     //Tests.TestDatagrams();
     //Tests.TestChat();
     //Tests.TestConfigDialog();
     //Tests.TestConfigInput();
+    //Tests.TestFragmentReassembler();
+    //Tests.TestReplayWindow();
+    //Tests.TestChannelIndex();
+    //Tests.TestSendPacer();
+    //Tests.TestSourceRateLimiter();
+    //Tests.TestReceivePipeline();
+    //Tests.TestChatSender();
+    //Tests.TestMessageJournal();
+    //Tests.TestJournalSpeed();
+    //Tests.TestJournalIndex();
+    //Tests.TestJournalIndexSpeed();
+    //Tests.TestSearchIndex();
+    //Tests.TestSearchSpeed();
+    //Tests.TestPacketBufferPool();
+    //Tests.TestChannelIndexSpeed();
+    //Tests.TestMessageHistory();
+    //Tests.TestRenderBatcher();
+    //Tests.TestMessageViewSpeed();
+    //Tests.TestLeaveChannel();
+    //Tests.TestPacketFilter();
+    //Tests.TestReplayOverLoopback();
+    //Tests.TestKeyCacheSpeed();
+    //Tests.TestPacedLoopback();
     Tests.TestAddChannelDialog();
     Tests.TestChatUI();
   }
@@ -0,0 +1,380 @@
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Moves everything but the socket read off of the receiver thread. Packets go
+// through four stages, each connected to the next by a bounded queue:
+//
+//   1. receive  - the receiver thread copies the datagram and submits it
+//   2. lookup   - a single thread matches the packet to a joined channel and
+//                 numbers it within that channel
+//   3. decrypt  - a pool of workers decrypts and parses the packets
+//   4. delivery - a single thread puts each channel's packets back into the
+//                 order they arrived in and hands them to the callback
+//
+// Only the submit queue ever drops packets (when it's full); the later stages
+// block instead, which pushes back on the lookup stage until the submit queue
+// fills up.
+public class ReceivePipeline
+{
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+  // A packet as it moves through the stages. Packets are recycled once
+  // they've been delivered, and their data buffers come from the shared
+  // PacketBufferPool.
+  private static class Packet
+  {
+    private byte[] data_ = null;
+    private int length_ = 0;
+    private Channel channel_ = null;
+    private long sequence_ = 0;
+    private ChatEntry entry_ = null;
+  }
+
+  // Delivery bookkeeping for a single channel
+  private static class ChannelOrder
+  {
+    private long nextSequence_ = 0;
+    private HashMap<Long, Packet> pending_ = new HashMap<>();
+  }
+
+  private volatile ChatEntryReceived callback_;
+  private PacketBufferPool bufferPool_ = PacketBufferPool.getShared();
+  private BlockingQueue<Packet> freePackets_;
+  private BlockingQueue<Packet> lookupQueue_;
+  private BlockingQueue<Packet> decryptQueue_;
+  private BlockingQueue<Packet> deliveryQueue_;
+  private Thread lookupThread_;
+  private Thread[] decryptThreads_;
+  private Thread deliveryThread_;
+  private AtomicLong submittedCount_ = new AtomicLong();
+  private AtomicLong droppedCount_ = new AtomicLong();
+  private AtomicLong deliveredCount_ = new AtomicLong();
+  // Only touched by the lookup thread. The counters are single-element
+  // arrays so bumping them doesn't box a new Long for every packet. Both
+  // maps go by the Channel object rather than its hash, so a channel that's
+  // left and joined again starts over instead of picking up the old one's
+  // numbering.
+  private IdentityHashMap<Channel, long[]> sequences_ =
+    new IdentityHashMap<>();
+  // Only touched by the delivery thread
+  private IdentityHashMap<Channel, ChannelOrder> order_ =
+    new IdentityHashMap<>();
+  // Channels that have been left, for each of those threads to forget
+  private ConcurrentLinkedQueue<Channel> leftLookup_ =
+    new ConcurrentLinkedQueue<>();
+  private ConcurrentLinkedQueue<Channel> leftDelivery_ =
+    new ConcurrentLinkedQueue<>();
+
+  public ReceivePipeline(ChatEntryReceived callback, int workerCount,
+    int queueCapacity)
+  {
+    if (workerCount < 1)
+    {
+      workerCount = 1;
+    }
+
+    if (queueCapacity < 1)
+    {
+      queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    }
+
+    callback_ = callback;
+    lookupQueue_ = new ArrayBlockingQueue<>(queueCapacity);
+    decryptQueue_ = new ArrayBlockingQueue<>(queueCapacity);
+    deliveryQueue_ = new ArrayBlockingQueue<>(queueCapacity);
+    // Enough to cover every queue being full with every worker busy
+    freePackets_ = new ArrayBlockingQueue<>(queueCapacity * 3 + workerCount);
+
+    lookupThread_ = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        runLookup();
+      }
+    }, "PunyChat lookup");
+
+    decryptThreads_ = new Thread[workerCount];
+    for (int i = 0; i < workerCount; i++)
+    {
+      decryptThreads_[i] = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          runDecrypt();
+        }
+      }, "PunyChat decrypt " + i);
+    }
+
+    deliveryThread_ = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        runDelivery();
+      }
+    }, "PunyChat delivery");
+  }
+
+  public ReceivePipeline(ChatEntryReceived callback, int workerCount)
+  {
+    this(callback, workerCount, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  public void setCallback(ChatEntryReceived callback)
+  {
+    callback_ = callback;
+  }
+
+  public int getWorkerCount()
+  {
+    return decryptThreads_.length;
+  }
+
+  public long getSubmittedCount()
+  {
+    return submittedCount_.get();
+  }
+
+  public long getDroppedCount()
+  {
+    return droppedCount_.get();
+  }
+
+  public long getDeliveredCount()
+  {
+    return deliveredCount_.get();
+  }
+
+  public void start()
+  {
+    deliveryThread_.setDaemon(true);
+    deliveryThread_.start();
+    for (Thread decryptThread : decryptThreads_)
+    {
+      decryptThread.setDaemon(true);
+      decryptThread.start();
+    }
+
+    lookupThread_.setDaemon(true);
+    lookupThread_.start();
+  }
+
+  // Stops every stage. Packets that are still in flight are discarded.
+  public void stop() throws InterruptedException
+  {
+    lookupThread_.interrupt();
+    for (Thread decryptThread : decryptThreads_)
+    {
+      decryptThread.interrupt();
+    }
+
+    deliveryThread_.interrupt();
+
+    lookupThread_.join();
+    for (Thread decryptThread : decryptThreads_)
+    {
+      decryptThread.join();
+    }
+
+    deliveryThread_.join();
+  }
+
+  // Forgets the channel once it's been left. Its packets still in the
+  // pipeline are thrown away rather than delivered.
+  public void removeChannel(Channel channel)
+  {
+    leftLookup_.add(channel);
+    leftDelivery_.add(channel);
+  }
+
+  // Called from the receiver thread. The packet data is copied, so the caller
+  // is free to reuse its buffer as soon as this returns. Returns false if the
+  // packet was dropped because the pipeline is backed up (or is too large to
+  // be a chat packet in the first place).
+  public boolean submit(byte[] packetData, int packetLength)
+  {
+    submittedCount_.incrementAndGet();
+    if (packetLength > bufferPool_.getBufferSize())
+    {
+      droppedCount_.incrementAndGet();
+      return false;
+    }
+
+    Packet packet = freePackets_.poll();
+    if (packet == null)
+    {
+      packet = new Packet();
+    }
+
+    packet.data_ = bufferPool_.acquire();
+    packet.length_ = packetLength;
+    System.arraycopy(packetData, 0, packet.data_, 0, packetLength);
+    if (!lookupQueue_.offer(packet))
+    {
+      droppedCount_.incrementAndGet();
+      recycle(packet);
+      return false;
+    }
+
+    return true;
+  }
+
+  private void recycle(Packet packet)
+  {
+    bufferPool_.release(packet.data_);
+    packet.data_ = null;
+    packet.length_ = 0;
+    packet.channel_ = null;
+    packet.sequence_ = 0;
+    packet.entry_ = null;
+    freePackets_.offer(packet);
+  }
+
+  private void runLookup()
+  {
+    try
+    {
+      while (true)
+      {
+        Packet packet = lookupQueue_.take();
+        Channel left;
+        while ((left = leftLookup_.poll()) != null)
+        {
+          sequences_.remove(left);
+        }
+
+        packet.channel_ = ChatEntry.findChannel(packet.data_,
+          packet.length_);
+        if (packet.channel_ == null)
+        {
+          // Foreign traffic; it never gets a sequence number, so there's no
+          // gap for the delivery stage to wait on.
+          recycle(packet);
+          continue;
+        }
+
+        long[] sequence = sequences_.get(packet.channel_);
+        if (sequence == null)
+        {
+          sequence = new long[1];
+          sequences_.put(packet.channel_, sequence);
+        }
+
+        packet.sequence_ = sequence[0]++;
+        decryptQueue_.put(packet);
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      // stop() was called
+    }
+  }
+
+  private void runDecrypt()
+  {
+    try
+    {
+      while (true)
+      {
+        Packet packet = decryptQueue_.take();
+        // No point decrypting for a channel that's been left; its key is
+        // gone.
+        packet.entry_ = (packet.channel_.isJoined()
+          ? ChatEntry.decrypt(packet.channel_, packet.data_, packet.length_)
+          : null);
+        // The raw data isn't needed past this point
+        bufferPool_.release(packet.data_);
+        packet.data_ = null;
+        // Packets that failed to decrypt are still passed along (with a null
+        // entry) so the delivery stage doesn't wait on them forever.
+        deliveryQueue_.put(packet);
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      // stop() was called
+    }
+  }
+
+  private void runDelivery()
+  {
+    try
+    {
+      while (true)
+      {
+        Packet packet = deliveryQueue_.take();
+        Channel left;
+        while ((left = leftDelivery_.poll()) != null)
+        {
+          forget(left);
+        }
+
+        if (!packet.channel_.isJoined())
+        {
+          // Left while the packet was on its way through
+          forget(packet.channel_);
+          recycle(packet);
+          continue;
+        }
+
+        ChannelOrder channelOrder = order_.get(packet.channel_);
+        if (channelOrder == null)
+        {
+          channelOrder = new ChannelOrder();
+          order_.put(packet.channel_, channelOrder);
+        }
+
+        if (packet.sequence_ != channelOrder.nextSequence_)
+        {
+          // An earlier packet for this channel is still being decrypted.
+          channelOrder.pending_.put(packet.sequence_, packet);
+          continue;
+        }
+
+        // Deliver this packet and any that were waiting behind it
+        while (packet != null)
+        {
+          deliver(packet);
+          channelOrder.nextSequence_++;
+          packet = channelOrder.pending_.remove(channelOrder.nextSequence_);
+        }
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      // stop() was called
+    }
+  }
+
+  private void forget(Channel channel)
+  {
+    ChannelOrder channelOrder = order_.remove(channel);
+    if (channelOrder != null)
+    {
+      for (Packet packet : channelOrder.pending_.values())
+      {
+        recycle(packet);
+      }
+    }
+  }
+
+  private void deliver(Packet packet)
+  {
+    ChatEntry entry = packet.entry_;
+    recycle(packet);
+    ChatEntryReceived callback = callback_;
+    if (entry == null || callback == null)
+    {
+      return;
+    }
+
+    deliveredCount_.incrementAndGet();
+    callback.received(entry);
+  }
+}
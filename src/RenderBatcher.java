@@ -0,0 +1,110 @@
+import javax.swing.Timer;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Collects received entries from any thread and hands them to the UI in
+// batches on the event dispatch thread. Instead of one invokeLater (and one
+// document update) per message, the first entry to arrive after a flush
+// starts a timer, and everything that arrives before it fires is rendered
+// together. No entry waits longer than the maximum latency, and a burst of
+// thousands of messages a second costs the event queue only a few flushes.
+public class RenderBatcher
+{
+  public static final int DEFAULT_MAX_LATENCY_MILLIS = 30;
+
+  public interface Renderer
+  {
+    // Called on the event dispatch thread with the entries in the order they
+    // were submitted
+    void render(List<ChatEntry> entries);
+  }
+
+  private Renderer renderer_;
+  private ConcurrentLinkedQueue<ChatEntry> pending_ =
+    new ConcurrentLinkedQueue<>();
+  // Set while a flush is scheduled, so only the first entry of a batch
+  // starts the timer.
+  private AtomicBoolean scheduled_ = new AtomicBoolean(false);
+  private Timer timer_;
+  private AtomicLong submittedCount_ = new AtomicLong();
+  private AtomicLong flushCount_ = new AtomicLong();
+
+  public RenderBatcher(Renderer renderer, int maxLatencyMillis)
+  {
+    renderer_ = renderer;
+    timer_ = new Timer(Math.max(1, maxLatencyMillis), new ActionListener()
+    {
+      @Override
+      public void actionPerformed(ActionEvent e)
+      {
+        flush();
+      }
+    });
+    timer_.setRepeats(false);
+    timer_.setCoalesce(true);
+  }
+
+  public RenderBatcher(Renderer renderer)
+  {
+    this(renderer, DEFAULT_MAX_LATENCY_MILLIS);
+  }
+
+  public int getMaxLatency()
+  {
+    return timer_.getInitialDelay();
+  }
+
+  public void setMaxLatency(int maxLatencyMillis)
+  {
+    timer_.setInitialDelay(Math.max(1, maxLatencyMillis));
+  }
+
+  public long getSubmittedCount()
+  {
+    return submittedCount_.get();
+  }
+
+  // Number of batches rendered so far
+  public long getFlushCount()
+  {
+    return flushCount_.get();
+  }
+
+  // Safe to call from any thread.
+  public void submit(ChatEntry entry)
+  {
+    pending_.add(entry);
+    submittedCount_.incrementAndGet();
+    if (scheduled_.compareAndSet(false, true))
+    {
+      timer_.restart();
+    }
+  }
+
+  // Renders everything that's waiting. Called on the event dispatch thread.
+  public void flush()
+  {
+    // Clear the flag before draining, so an entry that shows up while this
+    // runs schedules the next flush instead of being stranded.
+    scheduled_.set(false);
+    List<ChatEntry> entries = new ArrayList<>();
+    ChatEntry entry;
+    while ((entry = pending_.poll()) != null)
+    {
+      entries.add(entry);
+    }
+
+    if (entries.isEmpty())
+    {
+      return;
+    }
+
+    flushCount_.incrementAndGet();
+    renderer_.render(entries);
+  }
+}
@@ -0,0 +1,194 @@
+// Rejects duplicated and replayed messages. Every client stamps its messages
+// with a random sender id and a sequence number that goes up by one per
+// packet (see ChatMessage). For each sender, this remembers the highest
+// sequence seen and a 64-bit bitmap of which of the 64 sequences below it
+// have been seen, so a duplicate is spotted in constant time with a fixed
+// amount of memory per sender. Anything more than 64 behind the highest
+// sequence is too old to tell apart from a replay, so it's rejected too.
+//
+// Senders are kept in an open-addressing table of parallel primitive arrays.
+// When the table is full, a sender that hasn't been heard from recently is
+// forgotten to make room; its window starts over if it's heard from again.
+//
+// Messages without a sender id (from clients that predate this) can't be
+// checked and are always accepted.
+public class ReplayWindow
+{
+  public static final int DEFAULT_CAPACITY = 4096;
+  public static final int WINDOW_SIZE = 64;
+  private static final int EVICTION_WINDOW = 8;
+
+  private int capacity_;
+  private int size_ = 0;
+  private long clock_ = 0;
+  // One slot per sender; an id of zero marks an empty slot.
+  private int[] senders_;
+  private int[] highest_;
+  private long[] seen_;
+  private long[] lastUsed_;
+  private long acceptedCount_ = 0;
+  private long rejectedCount_ = 0;
+  private long evictedCount_ = 0;
+
+  public ReplayWindow(int capacity)
+  {
+    capacity_ = (capacity < 1 ? DEFAULT_CAPACITY : capacity);
+    // Keep the table at most half full so probe chains stay short.
+    int slots = 16;
+    while (slots < capacity_ * 2)
+    {
+      slots <<= 1;
+    }
+
+    senders_ = new int[slots];
+    highest_ = new int[slots];
+    seen_ = new long[slots];
+    lastUsed_ = new long[slots];
+  }
+
+  public ReplayWindow()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public synchronized int size()
+  {
+    return size_;
+  }
+
+  public synchronized long getAcceptedCount()
+  {
+    return acceptedCount_;
+  }
+
+  // Duplicates, replays and messages that arrived too late to check
+  public synchronized long getRejectedCount()
+  {
+    return rejectedCount_;
+  }
+
+  public synchronized long getEvictedCount()
+  {
+    return evictedCount_;
+  }
+
+  // Returns true the first time a sender/sequence pair is seen, and false
+  // for any repeat of it.
+  public synchronized boolean accept(int senderId, int sequence)
+  {
+    if (senderId == 0)
+    {
+      return true;
+    }
+
+    clock_++;
+    int slot = findSlot(senderId);
+    if (senders_[slot] == 0)
+    {
+      if (size_ >= capacity_)
+      {
+        evictLeastRecent(senderId);
+        slot = findSlot(senderId);
+      }
+
+      senders_[slot] = senderId;
+      highest_[slot] = sequence;
+      seen_[slot] = 1;
+      lastUsed_[slot] = clock_;
+      size_++;
+      acceptedCount_++;
+      return true;
+    }
+
+    lastUsed_[slot] = clock_;
+    // Subtracting first keeps this right when the sequence wraps around.
+    int ahead = sequence - highest_[slot];
+    if (ahead > 0)
+    {
+      // Newer than anything so far; slide the window up to it.
+      seen_[slot] = (ahead >= WINDOW_SIZE ? 0 : seen_[slot] << ahead) | 1;
+      highest_[slot] = sequence;
+      acceptedCount_++;
+      return true;
+    }
+
+    int behind = -ahead;
+    long bit = 1L << behind;
+    if (behind >= WINDOW_SIZE || (seen_[slot] & bit) != 0)
+    {
+      rejectedCount_++;
+      return false;
+    }
+
+    seen_[slot] |= bit;
+    acceptedCount_++;
+    return true;
+  }
+
+  private int findSlot(int senderId)
+  {
+    int mask = senders_.length - 1;
+    int slot = getHomeSlot(senderId);
+    while (senders_[slot] != 0 && senders_[slot] != senderId)
+    {
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  private int getHomeSlot(int senderId)
+  {
+    // Sender ids are random, but mix them anyway in case one isn't.
+    int hash = senderId * 0x9e3779b9;
+    return (hash ^ (hash >>> 16)) & (senders_.length - 1);
+  }
+
+  // Same approach as SourceRateLimiter: only the next few senders are
+  // considered, so making room stays cheap.
+  private void evictLeastRecent(int senderId)
+  {
+    int mask = senders_.length - 1;
+    int oldest = -1;
+    int candidates = 0;
+    int window = Math.min(EVICTION_WINDOW, size_);
+    for (int slot = getHomeSlot(senderId); candidates < window;
+      slot = (slot + 1) & mask)
+    {
+      if (senders_[slot] == 0)
+      {
+        continue;
+      }
+
+      candidates++;
+      if (oldest < 0 || lastUsed_[slot] < lastUsed_[oldest])
+      {
+        oldest = slot;
+      }
+    }
+
+    evictedCount_++;
+    removeSlot(oldest);
+  }
+
+  private void removeSlot(int slot)
+  {
+    int mask = senders_.length - 1;
+    senders_[slot] = 0;
+    size_--;
+    for (int next = (slot + 1) & mask; senders_[next] != 0;
+      next = (next + 1) & mask)
+    {
+      int home = getHomeSlot(senders_[next]);
+      if (((next - home) & mask) >= ((next - slot) & mask))
+      {
+        senders_[slot] = senders_[next];
+        highest_[slot] = highest_[next];
+        seen_[slot] = seen_[next];
+        lastUsed_[slot] = lastUsed_[next];
+        senders_[next] = 0;
+        slot = next;
+      }
+    }
+  }
+}
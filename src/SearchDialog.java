@@ -0,0 +1,207 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseEvent;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+// Searches saved chat history, either in the channel that was selected when
+// the dialog was opened or in every channel.
+public class SearchDialog extends JDialog
+{
+  // UI components
+  private JPanel contentPanel;
+  private JPanel buttonPanel;
+  private JTextField queryText;
+  private JCheckBox channelOnlyCheck;
+  private JLabel statusLabel;
+  private JList<String> resultsList;
+  private DefaultListModel<String> resultsModel = new DefaultListModel<>();
+  private JButton searchButton;
+  private JButton closeButton;
+
+  // property fields
+  private SearchIndex searchIndex_;
+  private Channel channel_;
+
+  public SearchDialog(Frame owner, SearchIndex searchIndex, Channel channel)
+  {
+    super(owner, "Search History", false);
+    searchIndex_ = searchIndex;
+    channel_ = channel;
+    initializeDialog();
+  }
+
+  // Runs the search on a worker thread, since the index may still be loading
+  // or the postings may be long; the results are shown when it's done.
+  private void search()
+  {
+    if (!searchButton.isEnabled())
+    {
+      // One's already running
+      return;
+    }
+
+    resultsModel.clear();
+    searchButton.setEnabled(false);
+    statusLabel.setText("Searching...");
+    final String query = queryText.getText();
+    final byte[] channelHash = (channelOnlyCheck.isSelected() &&
+      channel_ != null ? channel_.getHash() : null);
+    final long start = System.nanoTime();
+    new SwingWorker<List<MessageJournal.Record>, Void>()
+    {
+      @Override
+      protected List<MessageJournal.Record> doInBackground()
+      {
+        return searchIndex_.trySearch(query, channelHash,
+          SearchIndex.DEFAULT_RESULT_LIMIT);
+      }
+
+      @Override
+      protected void done()
+      {
+        searchButton.setEnabled(true);
+        List<MessageJournal.Record> records;
+        try
+        {
+          records = get();
+        }
+        catch (InterruptedException | ExecutionException ex)
+        {
+          ex.printStackTrace();
+          statusLabel.setText("The search failed.");
+          return;
+        }
+
+        showResults(records, (System.nanoTime() - start) / 1000);
+      }
+    }.execute();
+  }
+
+  private void showResults(List<MessageJournal.Record> records, long micros)
+  {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+    for (MessageJournal.Record record : records)
+    {
+      Channel channel = Channel.find(record.getChannelHash());
+      resultsModel.addElement(String.format("[%s] %s %s",
+        format.format(new Date(record.getTimestamp())),
+        channel == null ? "(left channel)" : channel.toString(),
+        record.getMessage().toString()));
+    }
+
+    String status = String.format("%d found in %.1f ms", records.size(),
+      micros / 1000.0);
+    if (!searchIndex_.isLoaded())
+    {
+      status += " (still loading the index)";
+    }
+
+    statusLabel.setText(status);
+  }
+
+  private void initializeDialog()
+  {
+    setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+    setLayout(new GridBagLayout());
+
+    GridBagConstraints rootConstraints = new GridBagConstraints();
+    rootConstraints.insets = new Insets(4, 4, 4, 4);
+
+    // Content panel
+    rootConstraints.gridx = 0;
+    rootConstraints.gridy = 0;
+    rootConstraints.weightx = 1;
+    rootConstraints.weighty = 1;
+    rootConstraints.fill = GridBagConstraints.BOTH;
+    add((contentPanel = new JPanel(new GridBagLayout())), rootConstraints);
+
+    // Button panel
+    rootConstraints.gridy++;
+    rootConstraints.weighty = 0;
+    rootConstraints.fill = GridBagConstraints.NONE;
+    add((buttonPanel = new JPanel(new FlowLayout())), rootConstraints);
+
+    GridBagConstraints constraints = new GridBagConstraints();
+    constraints.insets = new Insets(4, 4, 4, 4);
+    constraints.gridx = 0;
+    constraints.gridy = 0;
+    constraints.anchor = GridBagConstraints.WEST;
+    contentPanel.add(new JLabel("Find: "), constraints);
+
+    // Query text box (Enter searches)
+    constraints.gridx++;
+    constraints.weightx = 1;
+    constraints.fill = GridBagConstraints.HORIZONTAL;
+    contentPanel.add((queryText = new JTextField(40)), constraints);
+    ActionListener searchListener = new ActionListener()
+    {
+      @Override
+      public void actionPerformed(ActionEvent e)
+      {
+        search();
+      }
+    };
+    queryText.addActionListener(searchListener);
+
+    // Channel only check box
+    constraints.gridy++;
+    contentPanel.add((channelOnlyCheck = new JCheckBox()), constraints);
+    channelOnlyCheck.setText(channel_ == null ? "Only this channel"
+      : "Only " + channel_.toString());
+    channelOnlyCheck.setSelected(channel_ != null);
+    channelOnlyCheck.setEnabled(channel_ != null);
+
+    // Results list. Rows are one line each, so only the visible ones are
+    // laid out; the tool tip shows a row that doesn't fit.
+    constraints.gridx = 0;
+    constraints.gridy++;
+    constraints.gridwidth = 2;
+    constraints.weighty = 1;
+    constraints.fill = GridBagConstraints.BOTH;
+    resultsList = new JList<String>(resultsModel)
+    {
+      @Override
+      public String getToolTipText(MouseEvent e)
+      {
+        int index = locationToIndex(e.getPoint());
+        return (index < 0 ? null : getModel().getElementAt(index));
+      }
+    };
+    resultsList.setToolTipText("");
+    resultsList.setFixedCellHeight(
+      resultsList.getFontMetrics(resultsList.getFont()).getHeight() + 2);
+    resultsList.setFixedCellWidth(1);
+    resultsList.setVisibleRowCount(20);
+    JScrollPane resultsScrollPane = new JScrollPane(resultsList);
+    resultsScrollPane.setHorizontalScrollBarPolicy(
+      JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+    resultsScrollPane.setPreferredSize(new Dimension(640, 360));
+    contentPanel.add(resultsScrollPane, constraints);
+
+    // Status label
+    constraints.gridy++;
+    constraints.weighty = 0;
+    constraints.fill = GridBagConstraints.HORIZONTAL;
+    contentPanel.add((statusLabel = new JLabel(" ")), constraints);
+
+    // Search button
+    buttonPanel.add((searchButton = new JButton("Search")));
+    searchButton.addActionListener(searchListener);
+
+    // Close button
+    buttonPanel.add((closeButton = new JButton("Close")));
+    closeButton.addActionListener(new ActionListener()
+    {
+      @Override
+      public void actionPerformed(ActionEvent e)
+      {
+        dispose();
+      }
+    });
+  }
+}
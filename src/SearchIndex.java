@@ -0,0 +1,809 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+// A full-text index over the message journal, so old messages can be found
+// without scrolling back through them. Every word of every message's text and
+// sender name maps to the journal positions of the messages that contain it;
+// a search looks up each word of the query, intersects the lists, and reads
+// only the matching records back from the journal.
+//
+// The index is kept up to date by its own thread, which follows the journal
+// and indexes whatever has been committed since it last looked. Nothing on
+// the receive path waits for it; a message just becomes searchable a moment
+// after it's written. The index is saved next to the journal every so often
+// and when it's closed by appending what's been added since the last save,
+// so the file grows with the journal rather than being written out whole;
+// it's rewritten in one go on load once the repeated words make it much
+// bigger than the index.
+// On the next run the additions are read back and indexing picks up from
+// where they leave off. If the file is missing or doesn't match the journal,
+// the whole journal is indexed again in the background.
+//
+// Words are runs of letters and digits, compared without regard to case.
+public class SearchIndex
+{
+  public static final int DEFAULT_RESULT_LIMIT = 200;
+  // How long the indexer waits before looking for new records again
+  private static final long POLL_MILLIS = 250;
+  // The index is saved at most this often while records are coming in.
+  private static final long SAVE_INTERVAL_MILLIS = 30000;
+  private static final String FILE_NAME = "search.index";
+  private static final String FILE_HEADER = "PunyChat search 2";
+  // The file is read through a buffer of this size rather than all at once.
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  // On load, the file is rewritten if it's at least this many times the size
+  // a single save of the whole index would take (each save repeats the words
+  // it has new postings for), and bigger than COMPACT_MIN_BYTES.
+  private static final int COMPACT_RATIO = 2;
+  private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+  // A rewritten file is split into records of about this size, so reading
+  // one back doesn't need a buffer the size of the whole index.
+  private static final int COMPACT_RECORD_BYTES = 1024 * 1024;
+  // Longer words are cut off; nobody searches for them in full.
+  private static final int MAX_WORD_LENGTH = 32;
+
+  // The records containing one word, in journal order
+  private static class Postings
+  {
+    private long[] positions_ = new long[4];
+    // Index into channelHashes_ of each record's channel
+    private int[] channels_ = new int[4];
+    private int size_ = 0;
+
+    private void add(long position, int channel)
+    {
+      if (size_ == positions_.length)
+      {
+        positions_ = Arrays.copyOf(positions_, size_ * 2);
+        channels_ = Arrays.copyOf(channels_, size_ * 2);
+      }
+
+      positions_[size_] = position;
+      channels_[size_] = channel;
+      size_++;
+    }
+
+    private void addAll(Postings postings)
+    {
+      for (int i = 0; i < postings.size_; i++)
+      {
+        add(postings.positions_[i], postings.channels_[i]);
+      }
+    }
+
+    private boolean contains(long position)
+    {
+      return Arrays.binarySearch(positions_, 0, size_, position) >= 0;
+    }
+  }
+
+  private MessageJournal journal_;
+  private File file_;
+  private HashMap<String, Postings> words_ = new HashMap<>();
+  private List<byte[]> channelHashes_ = new ArrayList<>();
+  private HashMap<String, Integer> channelNumbers_ = new HashMap<>();
+  // What's been indexed since the last save, which the next save appends
+  private HashMap<String, Postings> unsaved_ = new HashMap<>();
+  private int savedChannelCount_ = 0;
+  // Everything in the journal before this position has been indexed.
+  private long indexedPosition_;
+  private long savedPosition_;
+  private long indexedCount_ = 0;
+  private volatile boolean loaded_ = false;
+  private volatile boolean stopped_ = false;
+  private Thread indexerThread_;
+  // Only used by the indexer thread
+  private FileChannel fileChannel_;
+  private long fileEnd_ = 0;
+
+  private SearchIndex(MessageJournal journal)
+  {
+    journal_ = journal;
+    file_ = new File(journal.getDirectory(), FILE_NAME);
+    indexedPosition_ = journal.getStartPosition();
+    savedPosition_ = -1;
+  }
+
+  // Starts indexing the journal in the background. The saved index is
+  // loaded on the indexer thread too, so this returns right away.
+  public static SearchIndex open(MessageJournal journal)
+  {
+    SearchIndex index = new SearchIndex(journal);
+    index.start();
+    return index;
+  }
+
+  public MessageJournal getJournal()
+  {
+    return journal_;
+  }
+
+  // False until the saved index has been loaded (or found to be unusable)
+  public boolean isLoaded()
+  {
+    return loaded_;
+  }
+
+  public synchronized long getIndexedPosition()
+  {
+    return indexedPosition_;
+  }
+
+  // Records indexed since this was opened
+  public synchronized long getIndexedCount()
+  {
+    return indexedCount_;
+  }
+
+  public synchronized int getWordCount()
+  {
+    return words_.size();
+  }
+
+  // Finds the most recent messages containing every word in the query, in
+  // the given channel or (if the hash is null) in any channel. Results are
+  // newest first, and a message recorded twice only appears once.
+  public List<MessageJournal.Record> search(String query, byte[] channelHash,
+    int limit)
+    throws IOException
+  {
+    List<MessageJournal.Record> result = new ArrayList<>();
+    List<String> words = new ArrayList<>(new LinkedHashSet<>(split(query)));
+    if (words.isEmpty() || limit < 1)
+    {
+      return result;
+    }
+
+    // Find the matching positions under the lock, then read the records
+    // without it so the indexer isn't held up.
+    List<Long> positions = new ArrayList<>();
+    synchronized (this)
+    {
+      Postings[] postings = new Postings[words.size()];
+      for (int i = 0; i < postings.length; i++)
+      {
+        postings[i] = words_.get(words.get(i));
+        if (postings[i] == null)
+        {
+          return result;
+        }
+      }
+
+      // Walk the shortest list and check the others for each record in it.
+      Arrays.sort(postings, new Comparator<Postings>()
+      {
+        @Override
+        public int compare(Postings lhs, Postings rhs)
+        {
+          return Integer.compare(lhs.size_, rhs.size_);
+        }
+      });
+      int channel = -1;
+      if (channelHash != null)
+      {
+        Integer number = channelNumbers_.get(getKey(channelHash));
+        if (number == null)
+        {
+          return result;
+        }
+
+        channel = number;
+      }
+
+      Postings shortest = postings[0];
+      // Leave room for duplicates, which are only spotted once the records
+      // are read.
+      int wanted = limit * 2;
+      for (int i = shortest.size_ - 1; i >= 0 && positions.size() < wanted;
+        i--)
+      {
+        if (channel >= 0 && shortest.channels_[i] != channel)
+        {
+          continue;
+        }
+
+        long position = shortest.positions_[i];
+        boolean matches = true;
+        for (int j = 1; j < postings.length && matches; j++)
+        {
+          matches = postings[j].contains(position);
+        }
+
+        if (matches)
+        {
+          positions.add(position);
+        }
+      }
+    }
+
+    HashSet<Long> seen = new HashSet<>();
+    for (long position : positions)
+    {
+      MessageJournal.Record record = journal_.readAt(position);
+      if (record == null)
+      {
+        continue;
+      }
+
+      ChatMessage message = record.getMessage();
+      if (message.getSenderId() != 0 &&
+        !seen.add(((long)message.getSenderId() << 32) |
+          (message.getSequence() & 0xffffffffL)))
+      {
+        continue;
+      }
+
+      result.add(record);
+      if (result.size() >= limit)
+      {
+        break;
+      }
+    }
+
+    return result;
+  }
+
+  public List<MessageJournal.Record> trySearch(String query,
+    byte[] channelHash, int limit)
+  {
+    try
+    {
+      return search(query, channelHash, limit);
+    }
+    catch (Exception ex)
+    {
+      ex.printStackTrace();
+      return new ArrayList<>();
+    }
+  }
+
+  // Stops the indexer and saves the index. The journal has to stay open
+  // until this returns.
+  public void close() throws InterruptedException
+  {
+    stopped_ = true;
+    indexerThread_.join();
+  }
+
+  // Splits text into lower-case words.
+  public static List<String> split(String text)
+  {
+    List<String> words = new ArrayList<>();
+    if (text == null)
+    {
+      return words;
+    }
+
+    String lower = text.toLowerCase(Locale.ROOT);
+    StringBuilder word = new StringBuilder();
+    int index = 0;
+    while (index <= lower.length())
+    {
+      int codePoint = (index < lower.length() ? lower.codePointAt(index) : -1);
+      if (codePoint >= 0 && Character.isLetterOrDigit(codePoint))
+      {
+        if (word.length() < MAX_WORD_LENGTH)
+        {
+          word.appendCodePoint(codePoint);
+        }
+      }
+      else if (word.length() > 0)
+      {
+        words.add(word.toString());
+        word.setLength(0);
+      }
+
+      index += (codePoint >= 0 ? Character.charCount(codePoint) : 1);
+    }
+
+    return words;
+  }
+
+  private void start()
+  {
+    indexerThread_ = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        indexLoop();
+      }
+    }, "PunyChat indexer");
+    indexerThread_.setDaemon(true);
+    // Searching is never urgent compared to chatting.
+    indexerThread_.setPriority(Thread.MIN_PRIORITY);
+    indexerThread_.start();
+  }
+
+  private void indexLoop()
+  {
+    tryLoad();
+    loaded_ = true;
+    long lastSave = System.currentTimeMillis();
+    while (!stopped_)
+    {
+      try
+      {
+        catchUp();
+      }
+      catch (IOException ex)
+      {
+        ex.printStackTrace();
+      }
+
+      if (System.currentTimeMillis() - lastSave >= SAVE_INTERVAL_MILLIS)
+      {
+        trySave();
+        lastSave = System.currentTimeMillis();
+      }
+
+      try
+      {
+        Thread.sleep(POLL_MILLIS);
+      }
+      catch (InterruptedException ex)
+      {
+        break;
+      }
+    }
+
+    // Anything not indexed yet is picked up on the next run.
+    trySave();
+    tryCloseFile();
+  }
+
+  // Indexes every record committed since the last call.
+  private void catchUp() throws IOException
+  {
+    long end = journal_.getEndPosition();
+    if (getIndexedPosition() >= end)
+    {
+      return;
+    }
+
+    journal_.scan(null, getIndexedPosition(), end,
+      new MessageJournal.RecordVisitor()
+      {
+        @Override
+        public boolean visit(MessageJournal.Record record)
+        {
+          add(record);
+          return !stopped_;
+        }
+      });
+  }
+
+  private synchronized void add(MessageJournal.Record record)
+  {
+    String key = getKey(record.getChannelHash());
+    Integer channel = channelNumbers_.get(key);
+    if (channel == null)
+    {
+      channel = channelHashes_.size();
+      channelHashes_.add(record.getChannelHash());
+      channelNumbers_.put(key, channel);
+    }
+
+    ChatMessage message = record.getMessage();
+    LinkedHashSet<String> words = new LinkedHashSet<>(split(message.getText()));
+    words.addAll(split(message.getName()));
+    for (String word : words)
+    {
+      Postings postings = words_.get(word);
+      if (postings == null)
+      {
+        postings = new Postings();
+        words_.put(word, postings);
+      }
+
+      postings.add(record.getPosition(), channel);
+      Postings unsaved = unsaved_.get(word);
+      if (unsaved == null)
+      {
+        unsaved = new Postings();
+        unsaved_.put(word, unsaved);
+      }
+
+      unsaved.add(record.getPosition(), channel);
+    }
+
+    indexedPosition_ = record.getEndPosition();
+    indexedCount_++;
+  }
+
+  // Reads the saved index back, or starts the file over if there isn't a
+  // usable one. The file is a header followed by the additions from each
+  // save; anything after the last intact addition is cut off. It's read a
+  // record at a time, so only the largest record has to fit in memory, and
+  // rewritten without the repeated words if it's grown well past what the
+  // index needs.
+  private void load() throws IOException
+  {
+    FileUtil.createPrivateFile(file_.toPath());
+    fileChannel_ = FileChannel.open(file_.toPath(), StandardOpenOption.READ,
+      StandardOpenOption.WRITE);
+    long fileSize = fileChannel_.size();
+    // The stream isn't closed, since that would close the file with it.
+    DataInputStream fileInput = new DataInputStream(new BufferedInputStream(
+      Channels.newInputStream(fileChannel_.position(0)), READ_BUFFER_SIZE));
+    HashMap<String, Postings> words = new HashMap<>();
+    List<byte[]> channelHashes = new ArrayList<>();
+    HashMap<String, Integer> channelNumbers = new HashMap<>();
+    long indexedPosition = journal_.getStartPosition();
+    long fileEnd = 0;
+    byte[] header = readRecord(fileInput, fileSize);
+    if (header != null && isHeader(header))
+    {
+      fileEnd = getRecordSize(header);
+      while (true)
+      {
+        byte[] record = readRecord(fileInput, fileSize - fileEnd);
+        if (record == null)
+        {
+          break;
+        }
+
+        DataInputStream input = new DataInputStream(
+          new ByteArrayInputStream(record));
+        long endPosition = input.readLong();
+        // A save the journal doesn't have all the records for (because they
+        // were lost in a crash) is indexed again from the journal. A
+        // rewritten file repeats the end position in each of its records.
+        if (endPosition < indexedPosition ||
+          endPosition > journal_.getEndPosition())
+        {
+          break;
+        }
+
+        int channelCount = input.readInt();
+        for (int i = 0; i < channelCount; i++)
+        {
+          byte[] hash = new byte[ChatEntry.HASH_LENGTH];
+          input.readFully(hash);
+          channelNumbers.put(getKey(hash), channelHashes.size());
+          channelHashes.add(hash);
+        }
+
+        int wordCount = input.readInt();
+        for (int i = 0; i < wordCount; i++)
+        {
+          String word = input.readUTF();
+          Postings postings = words.get(word);
+          if (postings == null)
+          {
+            postings = new Postings();
+            words.put(word, postings);
+          }
+
+          int size = input.readInt();
+          for (int j = 0; j < size; j++)
+          {
+            postings.add(input.readLong(), input.readInt());
+          }
+        }
+
+        indexedPosition = endPosition;
+        fileEnd += getRecordSize(record);
+      }
+    }
+    else
+    {
+      if (fileSize > 0)
+      {
+        System.err.println("Rebuilding the search index.");
+      }
+
+      fileChannel_.truncate(0);
+      fileEnd = write(getHeader(), 0);
+      fileChannel_.force(false);
+    }
+
+    fileChannel_.truncate(fileEnd);
+    long compactSize = getCompactSize(words, channelHashes.size());
+    if (fileEnd > COMPACT_MIN_BYTES && fileEnd > compactSize * COMPACT_RATIO)
+    {
+      fileEnd = compact(words, channelHashes, indexedPosition);
+    }
+
+    synchronized (this)
+    {
+      words_ = words;
+      channelHashes_ = channelHashes;
+      channelNumbers_ = channelNumbers;
+      indexedPosition_ = indexedPosition;
+      savedPosition_ = indexedPosition;
+      savedChannelCount_ = channelHashes.size();
+      fileEnd_ = fileEnd;
+    }
+  }
+
+  // Rewrites the file as a header and the whole index, split into records
+  // that all end at indexedPosition. It's written next to the file and moved
+  // over it, so a crash leaves one or the other. Returns the new file's end.
+  private long compact(HashMap<String, Postings> words,
+    List<byte[]> channelHashes, long indexedPosition) throws IOException
+  {
+    File compactFile = new File(file_.getPath() + ".tmp");
+    tryCloseFile();
+    Files.deleteIfExists(compactFile.toPath());
+    FileUtil.createPrivateFile(compactFile.toPath());
+    fileChannel_ = FileChannel.open(compactFile.toPath(),
+      StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long fileEnd = write(getHeader(), 0);
+    List<byte[]> recordChannels = channelHashes;
+    HashMap<String, Postings> recordWords = new HashMap<>();
+    long recordSize = 0;
+    for (String word : words.keySet())
+    {
+      Postings postings = words.get(word);
+      recordWords.put(word, postings);
+      recordSize += getCompactSize(word, postings);
+      if (recordSize >= COMPACT_RECORD_BYTES)
+      {
+        fileEnd = write(getDelta(indexedPosition, recordChannels, recordWords),
+          fileEnd);
+        recordChannels = new ArrayList<>();
+        recordWords = new HashMap<>();
+        recordSize = 0;
+      }
+    }
+
+    if (!recordWords.isEmpty() || !recordChannels.isEmpty())
+    {
+      fileEnd = write(getDelta(indexedPosition, recordChannels, recordWords),
+        fileEnd);
+    }
+
+    fileChannel_.force(false);
+    tryCloseFile();
+    Files.move(compactFile.toPath(), file_.toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    fileChannel_ = FileChannel.open(file_.toPath(), StandardOpenOption.READ,
+      StandardOpenOption.WRITE);
+    return fileEnd;
+  }
+
+  // About how many bytes a single save of the whole index would take
+  private static long getCompactSize(HashMap<String, Postings> words,
+    int channelCount)
+  {
+    long size = 4 + 8 + 4 + (long)channelCount * ChatEntry.HASH_LENGTH + 4 + 4;
+    for (String word : words.keySet())
+    {
+      size += getCompactSize(word, words.get(word));
+    }
+
+    return size;
+  }
+
+  private static long getCompactSize(String word, Postings postings)
+  {
+    return 2 + word.length() + 4 + postings.size_ * (8L + 4);
+  }
+
+  // Appends what's been indexed since the last save to the file. What's new
+  // is taken under the lock and written without it, so searching doesn't
+  // wait on the disk, and a save costs only what's new rather than the whole
+  // index.
+  private void save() throws IOException
+  {
+    HashMap<String, Postings> words;
+    List<byte[]> channelHashes;
+    long indexedPosition;
+    synchronized (this)
+    {
+      if (fileChannel_ == null || indexedPosition_ == savedPosition_)
+      {
+        return;
+      }
+
+      words = unsaved_;
+      unsaved_ = new HashMap<>();
+      channelHashes = new ArrayList<>(channelHashes_.subList(
+        savedChannelCount_, channelHashes_.size()));
+      indexedPosition = indexedPosition_;
+    }
+
+    byte[] delta = getDelta(indexedPosition, channelHashes, words);
+    try
+    {
+      long fileEnd = write(delta, fileEnd_);
+      fileChannel_.force(false);
+      synchronized (this)
+      {
+        fileEnd_ = fileEnd;
+        savedChannelCount_ += channelHashes.size();
+        savedPosition_ = indexedPosition;
+      }
+    }
+    catch (IOException ex)
+    {
+      // Put the additions back in front of anything indexed since, so the
+      // next save writes them again over whatever made it to the file.
+      synchronized (this)
+      {
+        for (String word : unsaved_.keySet())
+        {
+          Postings earlier = words.get(word);
+          if (earlier == null)
+          {
+            words.put(word, unsaved_.get(word));
+          }
+          else
+          {
+            earlier.addAll(unsaved_.get(word));
+          }
+        }
+
+        unsaved_ = words;
+      }
+
+      throw ex;
+    }
+  }
+
+  // An addition to the file: the journal position it's indexed up to, the
+  // channels first seen since the last one, and the new postings of each
+  // word.
+  private static byte[] getDelta(long indexedPosition,
+    List<byte[]> channelHashes, HashMap<String, Postings> words)
+    throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    output.writeLong(indexedPosition);
+    output.writeInt(channelHashes.size());
+    for (byte[] hash : channelHashes)
+    {
+      output.write(hash, 0, ChatEntry.HASH_LENGTH);
+    }
+
+    output.writeInt(words.size());
+    for (String word : words.keySet())
+    {
+      Postings postings = words.get(word);
+      output.writeUTF(word);
+      output.writeInt(postings.size_);
+      for (int i = 0; i < postings.size_; i++)
+      {
+        output.writeLong(postings.positions_[i]);
+        output.writeInt(postings.channels_[i]);
+      }
+    }
+
+    output.flush();
+    return bytes.toByteArray();
+  }
+
+  // Each record in the file is its length, its payload, and a CRC-32 of the
+  // payload. Returns the position just past the record.
+  private long write(byte[] payload, long position) throws IOException
+  {
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + payload.length + 4);
+    buffer.putInt(payload.length);
+    buffer.put(payload);
+    buffer.putInt((int)crc.getValue());
+    buffer.flip();
+    long end = position + buffer.remaining();
+    while (buffer.hasRemaining())
+    {
+      position += fileChannel_.write(buffer, position);
+    }
+
+    return end;
+  }
+
+  // Returns the payload of the next record in the file, or null if there
+  // isn't a whole, intact one in the remaining bytes.
+  private static byte[] readRecord(DataInputStream input, long remaining)
+    throws IOException
+  {
+    if (remaining < 4 + 4)
+    {
+      return null;
+    }
+
+    int length = input.readInt();
+    if (length < 0 || remaining - 4 - 4 < length)
+    {
+      return null;
+    }
+
+    byte[] record = new byte[length];
+    input.readFully(record);
+    CRC32 crc = new CRC32();
+    crc.update(record, 0, length);
+    return (input.readInt() == (int)crc.getValue() ? record : null);
+  }
+
+  private static long getRecordSize(byte[] payload)
+  {
+    return 4 + payload.length + 4;
+  }
+
+  // The file's first record, which ties it to this journal
+  private byte[] getHeader() throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    output.writeUTF(FILE_HEADER);
+    output.writeLong(journal_.getStartPosition());
+    output.flush();
+    return bytes.toByteArray();
+  }
+
+  private boolean isHeader(byte[] record) throws IOException
+  {
+    return Arrays.equals(record, getHeader());
+  }
+
+  private void tryLoad()
+  {
+    try
+    {
+      load();
+    }
+    catch (Exception ex)
+    {
+      // Searches still work; the index just isn't kept for next time.
+      ex.printStackTrace();
+      tryCloseFile();
+    }
+  }
+
+  private void trySave()
+  {
+    try
+    {
+      save();
+    }
+    catch (Exception ex)
+    {
+      ex.printStackTrace();
+    }
+  }
+
+  private void tryCloseFile()
+  {
+    try
+    {
+      if (fileChannel_ != null)
+      {
+        fileChannel_.close();
+      }
+    }
+    catch (IOException ex)
+    {
+      ex.printStackTrace();
+    }
+
+    fileChannel_ = null;
+  }
+
+  private static String getKey(byte[] hash)
+  {
+    return CryptoUtil.toHexString(Arrays.copyOf(hash, ChatEntry.HASH_LENGTH));
+  }
+}
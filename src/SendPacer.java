@@ -0,0 +1,126 @@
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Smooths outgoing traffic so a burst of sends doesn't overrun slower
+// receivers. Every packet has to get past two token buckets: a global one
+// shared by all channels and one for the packet's channel. A packet that
+// would exceed either rate waits (on the sending thread) until it's allowed
+// through, so bursts go out at the target rate instead of all at once.
+public class SendPacer
+{
+  private TokenBucket global_;
+  private double channelRate_;
+  private int channelBurst_;
+  private HashMap<Channel, TokenBucket> channels_ = new HashMap<>();
+  private AtomicLong packetCount_ = new AtomicLong();
+  private AtomicLong delayedCount_ = new AtomicLong();
+  private AtomicLong delayNanos_ = new AtomicLong();
+
+  // Rates are in packets per second; zero means unlimited.
+  public SendPacer(double globalRate, int globalBurst, double channelRate,
+    int channelBurst)
+  {
+    global_ = new TokenBucket(globalRate, globalBurst);
+    channelRate_ = channelRate;
+    channelBurst_ = channelBurst;
+  }
+
+  public double getGlobalRate()
+  {
+    return global_.getRate();
+  }
+
+  public synchronized double getChannelRate()
+  {
+    return channelRate_;
+  }
+
+  // Changes apply from the next packet on. Packets already waiting keep the
+  // delay they were given under the old rates.
+  public synchronized void setRates(double globalRate, int globalBurst,
+    double channelRate, int channelBurst)
+  {
+    global_.setRate(globalRate, globalBurst);
+    channelRate_ = channelRate;
+    channelBurst_ = channelBurst;
+    for (TokenBucket bucket : channels_.values())
+    {
+      bucket.setRate(channelRate, channelBurst);
+    }
+  }
+
+  // Packets that have gone through the pacer
+  public long getPacketCount()
+  {
+    return packetCount_.get();
+  }
+
+  // Packets that had to wait
+  public long getDelayedCount()
+  {
+    return delayedCount_.get();
+  }
+
+  // Total time packets have spent waiting
+  public long getDelayMillis()
+  {
+    return TimeUnit.NANOSECONDS.toMillis(delayNanos_.get());
+  }
+
+  // Tokens left in the global bucket; negative while packets are waiting.
+  public double getGlobalAvailable()
+  {
+    return global_.getAvailable();
+  }
+
+  // Forgets the channel's bucket once the channel has been left.
+  public synchronized void removeChannel(Channel channel)
+  {
+    channels_.remove(channel);
+  }
+
+  // Waits until a packet for the channel is allowed out.
+  public void pace(Channel channel) throws InterruptedException
+  {
+    packetCount_.incrementAndGet();
+    // Both waits run at the same time, so only the longer one matters.
+    long waitNanos = Math.max(global_.reserve(1),
+      getChannelBucket(channel).reserve(1));
+    if (waitNanos <= 0)
+    {
+      return;
+    }
+
+    delayedCount_.incrementAndGet();
+    delayNanos_.addAndGet(waitNanos);
+    TimeUnit.NANOSECONDS.sleep(waitNanos);
+  }
+
+  private synchronized TokenBucket getChannelBucket(Channel channel)
+  {
+    TokenBucket bucket = channels_.get(channel);
+    if (bucket == null)
+    {
+      bucket = new TokenBucket(channelRate_, channelBurst_);
+      // A packet still on its way out after the channel was left doesn't
+      // bring its bucket back.
+      if (channel.isJoined())
+      {
+        channels_.put(channel, bucket);
+      }
+    }
+
+    return bucket;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format(
+      "{ packets = %d; delayed = %d; delay = %d ms; global rate = %.0f/s; " +
+        "channel rate = %.0f/s }",
+      getPacketCount(), getDelayedCount(), getDelayMillis(), getGlobalRate(),
+      getChannelRate());
+  }
+}
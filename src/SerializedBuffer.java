@@ -21,15 +21,27 @@ public class SerializedBuffer
     stream_ = new ByteIOStream(inputBuffer_);
   }
 
+  // Reads from a region of an existing array without copying it. The caller
+  // must not modify the array while the buffer is being read.
+  public SerializedBuffer(byte[] inputData, int offset, int length)
+  {
+    inputBuffer_ = inputData;
+    stream_ = ByteIOStream.wrap(inputData, offset, length);
+  }
+
+  // Null and empty arrays are written as a zero length so whatever follows
+  // them is still read back from the right place.
   public SerializedBuffer write(byte[] data)
     throws IOException
   {
-    if (data != null && data.length > 0)
+    if (data == null || data.length == 0)
     {
-      writeLEB128Int(data.length);
-      stream_.write(data);
+      writeLEB128Int(0);
+      return this;
     }
 
+    writeLEB128Int(data.length);
+    stream_.write(data);
     return this;
   }
 
@@ -38,13 +50,7 @@ public class SerializedBuffer
   public SerializedBuffer write(String s)
     throws IOException
   {
-    if (s != null && s.length() > 0)
-    {
-      byte[] stringBytes = s.getBytes();
-      write(stringBytes);
-    }
-
-    return this;
+    return write(s == null ? null : s.getBytes());
   }
 
   public SerializedBuffer write(int value)
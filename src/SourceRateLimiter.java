@@ -0,0 +1,238 @@
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Limits how many packets each source address can have decrypted per second.
+// Anyone on the network can send packets with a known channel hash, and each
+// of those costs a full decrypt; this sheds a flood from one source before it
+// gets that far, without affecting anyone else.
+//
+// Each source gets a token bucket, kept in an open-addressing table of
+// parallel primitive arrays so the per-packet check doesn't allocate. Sources
+// that have been quiet for a while are aged out, and when the table is full
+// a source that hasn't been seen recently makes room for a new one. The table
+// is only ever updated from the receiver thread, but statistics can be read
+// from anywhere.
+public class SourceRateLimiter
+{
+  public static final int DEFAULT_CAPACITY = 1024;
+  public static final long DEFAULT_IDLE_MILLIS = 60000;
+  private static final int EVICTION_WINDOW = 8;
+
+  private double rate_;
+  private double burst_;
+  private long idleNanos_;
+  private int capacity_;
+  private int size_ = 0;
+  private long lastAging_;
+  // One slot per source; addresses_[i] == null marks an empty slot.
+  private InetAddress[] addresses_;
+  private double[] tokens_;
+  private long[] lastSeen_;
+  private long[] shed_;
+  private long shedCount_ = 0;
+  private long evictedCount_ = 0;
+
+  // Rate is in packets per second per source; zero (or less) means unlimited.
+  public SourceRateLimiter(double rate, int burst, int capacity,
+    long idleMillis)
+  {
+    rate_ = Math.max(0, rate);
+    burst_ = Math.max(1, burst);
+    idleNanos_ = (idleMillis < 1 ? DEFAULT_IDLE_MILLIS : idleMillis) *
+      1000000L;
+    capacity_ = (capacity < 1 ? DEFAULT_CAPACITY : capacity);
+    // Keep the table at most half full so probe chains stay short.
+    int slots = 16;
+    while (slots < capacity_ * 2)
+    {
+      slots <<= 1;
+    }
+
+    addresses_ = new InetAddress[slots];
+    tokens_ = new double[slots];
+    lastSeen_ = new long[slots];
+    shed_ = new long[slots];
+    lastAging_ = System.nanoTime();
+  }
+
+  public SourceRateLimiter(double rate, int burst)
+  {
+    this(rate, burst, DEFAULT_CAPACITY, DEFAULT_IDLE_MILLIS);
+  }
+
+  public synchronized double getRate()
+  {
+    return rate_;
+  }
+
+  // Sources currently being tracked
+  public synchronized int size()
+  {
+    return size_;
+  }
+
+  // Packets shed from every source since this limiter was created
+  public synchronized long getShedCount()
+  {
+    return shedCount_;
+  }
+
+  // Sources forgotten to make room for new ones
+  public synchronized long getEvictedCount()
+  {
+    return evictedCount_;
+  }
+
+  // Packets shed from each tracked source that has had any shed
+  public synchronized Map<InetAddress, Long> getShedCounts()
+  {
+    Map<InetAddress, Long> result = new LinkedHashMap<>();
+    for (int i = 0; i < addresses_.length; i++)
+    {
+      if (addresses_[i] != null && shed_[i] > 0)
+      {
+        result.put(addresses_[i], shed_[i]);
+      }
+    }
+
+    return result;
+  }
+
+  // Returns true if a packet from the source should be processed, or false
+  // if it should be shed.
+  public synchronized boolean allow(InetAddress source)
+  {
+    if (rate_ <= 0 || source == null)
+    {
+      return true;
+    }
+
+    long now = System.nanoTime();
+    if (now - lastAging_ > idleNanos_)
+    {
+      age(now);
+    }
+
+    int slot = findSlot(source);
+    if (addresses_[slot] == null)
+    {
+      if (size_ >= capacity_)
+      {
+        evictLeastRecent(source);
+        slot = findSlot(source);
+      }
+
+      addresses_[slot] = source;
+      tokens_[slot] = burst_;
+      lastSeen_[slot] = now;
+      shed_[slot] = 0;
+      size_++;
+    }
+
+    tokens_[slot] = Math.min(burst_,
+      tokens_[slot] + (now - lastSeen_[slot]) * rate_ / 1e9);
+    lastSeen_[slot] = now;
+    if (tokens_[slot] < 1)
+    {
+      shed_[slot]++;
+      shedCount_++;
+      return false;
+    }
+
+    tokens_[slot] -= 1;
+    return true;
+  }
+
+  // Returns the slot holding the source, or the empty slot it would go in.
+  private int findSlot(InetAddress source)
+  {
+    int mask = addresses_.length - 1;
+    int slot = getHomeSlot(source);
+    while (addresses_[slot] != null && !addresses_[slot].equals(source))
+    {
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  private int getHomeSlot(InetAddress source)
+  {
+    int hash = source.hashCode();
+    return (hash ^ (hash >>> 16)) & (addresses_.length - 1);
+  }
+
+  // Forgets sources that haven't sent anything for a while.
+  private void age(long now)
+  {
+    lastAging_ = now;
+    int slot = 0;
+    while (slot < addresses_.length)
+    {
+      if (addresses_[slot] != null && now - lastSeen_[slot] > idleNanos_)
+      {
+        // Another source may be shifted into this slot, so look at it again.
+        removeSlot(slot);
+      }
+      else
+      {
+        slot++;
+      }
+    }
+  }
+
+  // Makes room for the new source by evicting whichever of the next few
+  // sources from its slot onward was seen least recently. Looking at only a
+  // few sources keeps this cheap even when a flood of new addresses is filling
+  // the table.
+  private void evictLeastRecent(InetAddress source)
+  {
+    int mask = addresses_.length - 1;
+    int oldest = -1;
+    int candidates = 0;
+    int window = Math.min(EVICTION_WINDOW, size_);
+    for (int slot = getHomeSlot(source); candidates < window;
+      slot = (slot + 1) & mask)
+    {
+      if (addresses_[slot] == null)
+      {
+        continue;
+      }
+
+      candidates++;
+      if (oldest < 0 || lastSeen_[slot] - lastSeen_[oldest] < 0)
+      {
+        oldest = slot;
+      }
+    }
+
+    evictedCount_++;
+    removeSlot(oldest);
+  }
+
+  // Empties a slot, shifting later sources in the same probe chain back so
+  // none of them become unreachable.
+  private void removeSlot(int slot)
+  {
+    int mask = addresses_.length - 1;
+    addresses_[slot] = null;
+    size_--;
+    for (int next = (slot + 1) & mask; addresses_[next] != null;
+      next = (next + 1) & mask)
+    {
+      // Move the source back if the empty slot is between its home slot and
+      // where it is now.
+      int home = getHomeSlot(addresses_[next]);
+      if (((next - home) & mask) >= ((next - slot) & mask))
+      {
+        addresses_[slot] = addresses_[next];
+        tokens_[slot] = tokens_[next];
+        lastSeen_[slot] = lastSeen_[next];
+        shed_[slot] = shed_[next];
+        addresses_[next] = null;
+        slot = next;
+      }
+    }
+  }
+}
@@ -0,0 +1,301 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Shows the client's counters, refreshed every second while the dialog is
+// open. The client's parts are looked up on each refresh, since configuring
+// it replaces them.
+public class StatsDialog extends JDialog
+{
+  private static final int REFRESH_MILLIS = 1000;
+
+  // One row's value, worked out on each refresh
+  private interface Stat
+  {
+    String get();
+  }
+
+  // UI components
+  private JPanel contentPanel;
+  private JPanel buttonPanel;
+  private JButton closeButton;
+  private GridBagConstraints rowConstraints_ = new GridBagConstraints();
+  private List<JLabel> valueLabels_ = new ArrayList<>();
+  private List<Stat> stats_ = new ArrayList<>();
+  private Timer refreshTimer_;
+
+  // property fields
+  private ChatClient client_;
+
+  public StatsDialog(Frame owner, ChatClient client)
+  {
+    super(owner, "Statistics", false);
+    client_ = client;
+    initializeDialog();
+    addSenderStats();
+    addPacerStats();
+    addFilterStats();
+    addSourceLimitStats();
+    refresh();
+  }
+
+  private void addSenderStats()
+  {
+    addSection("Send queue");
+    addRow("Queued", new Stat()
+    {
+      @Override
+      public String get()
+      {
+        ChatSender sender = client_.getSender();
+        return (sender == null ? "-" : String.format("%d of %d",
+          sender.getQueueDepth(), sender.getQueueCapacity()));
+      }
+    });
+    addRow("Sent", new Stat()
+    {
+      @Override
+      public String get()
+      {
+        ChatSender sender = client_.getSender();
+        return (sender == null ? "-" : String.format("%d in %d batches",
+          sender.getSentCount(), sender.getBatchCount()));
+      }
+    });
+    addRow("Dropped (queue full)", new Stat()
+    {
+      @Override
+      public String get()
+      {
+        ChatSender sender = client_.getSender();
+        return (sender == null ? "-" : sender.getDroppedCount() + " (" +
+          sender.getDropPolicy() + ")");
+      }
+    });
+    addRow("Failed", new Stat()
+    {
+      @Override
+      public String get()
+      {
+        ChatSender sender = client_.getSender();
+        return (sender == null ? "-" : Long.toString(sender.getFailedCount()));
+      }
+    });
+  }
+
+  private void addPacerStats()
+  {
+    addSection("Send pacing");
+    addRow("Rates", new Stat()
+    {
+      @Override
+      public String get()
+      {
+        SendPacer pacer = client_.getPacer();
+        return String.format("%s overall, %s per channel",
+          formatRate(pacer.getGlobalRate()),
+          formatRate(pacer.getChannelRate()));
+      }
+    });
+    addRow("Packets paced", new Stat()
+    {
+      @Override
+      public String get()
+      {
+        return Long.toString(client_.getPacer().getPacketCount());
+      }
+    });
+    addRow("Delayed", new Stat()
+    {
+      @Override
+      public String get()
+      {
+        SendPacer pacer = client_.getPacer();
+        return String.format("%d, %.1f s in all", pacer.getDelayedCount(),
+          pacer.getDelayMillis() / 1000.0);
+      }
+    });
+  }
+
+  private void addFilterStats()
+  {
+    addSection("Receive filtering");
+    addRow("Not for a joined channel", new Stat()
+    {
+      @Override
+      public String get()
+      {
+        return Long.toString(client_.getFilteredPacketCount());
+      }
+    });
+    addRow("Failed to authenticate", new Stat()
+    {
+      @Override
+      public String get()
+      {
+        return Long.toString(ChatEntry.getRejectedPacketCount());
+      }
+    });
+  }
+
+  private void addSourceLimitStats()
+  {
+    addSection("Per-source limiting");
+    addRow("Shed", new Stat()
+    {
+      @Override
+      public String get()
+      {
+        SourceRateLimiter limiter = client_.getSourceLimiter();
+        return (limiter == null ? "off" : String.format(
+          "%d at %s per source", limiter.getShedCount(),
+          formatRate(limiter.getRate())));
+      }
+    });
+    addRow("Sources", new Stat()
+    {
+      @Override
+      public String get()
+      {
+        SourceRateLimiter limiter = client_.getSourceLimiter();
+        return (limiter == null ? "-" : String.format(
+          "%d tracked, %d forgotten", limiter.size(),
+          limiter.getEvictedCount()));
+      }
+    });
+    addRow("Most shed", new Stat()
+    {
+      @Override
+      public String get()
+      {
+        SourceRateLimiter limiter = client_.getSourceLimiter();
+        if (limiter == null)
+        {
+          return "-";
+        }
+
+        InetAddress worst = null;
+        long worstCount = 0;
+        for (Map.Entry<InetAddress, Long> entry :
+          limiter.getShedCounts().entrySet())
+        {
+          if (entry.getValue() > worstCount)
+          {
+            worst = entry.getKey();
+            worstCount = entry.getValue();
+          }
+        }
+
+        return (worst == null ? "none" : String.format("%s (%d)",
+          worst.getHostAddress(), worstCount));
+      }
+    });
+  }
+
+  // Rates are packets per second, with zero meaning unlimited.
+  private static String formatRate(double rate)
+  {
+    return (rate <= 0 ? "unlimited" : String.format("%.1f/s", rate));
+  }
+
+  private void addSection(String title)
+  {
+    rowConstraints_.gridx = 0;
+    rowConstraints_.gridy++;
+    rowConstraints_.gridwidth = 2;
+    rowConstraints_.insets = new Insets(rowConstraints_.gridy == 0 ? 4 : 12,
+      4, 4, 4);
+    JLabel label = new JLabel(title);
+    label.setFont(label.getFont().deriveFont(Font.BOLD));
+    contentPanel.add(label, rowConstraints_);
+    rowConstraints_.gridwidth = 1;
+    rowConstraints_.insets = new Insets(2, 16, 2, 4);
+  }
+
+  private void addRow(String name, Stat stat)
+  {
+    rowConstraints_.gridx = 0;
+    rowConstraints_.gridy++;
+    contentPanel.add(new JLabel(name + ":"), rowConstraints_);
+    rowConstraints_.gridx = 1;
+    JLabel valueLabel = new JLabel(" ");
+    contentPanel.add(valueLabel, rowConstraints_);
+    valueLabels_.add(valueLabel);
+    stats_.add(stat);
+  }
+
+  private void refresh()
+  {
+    for (int i = 0; i < stats_.size(); i++)
+    {
+      valueLabels_.get(i).setText(stats_.get(i).get());
+    }
+  }
+
+  private void initializeDialog()
+  {
+    setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+    setLayout(new GridBagLayout());
+
+    GridBagConstraints rootConstraints = new GridBagConstraints();
+    rootConstraints.insets = new Insets(4, 4, 4, 4);
+
+    // Content panel
+    rootConstraints.gridx = 0;
+    rootConstraints.gridy = 0;
+    rootConstraints.weightx = 1;
+    rootConstraints.weighty = 1;
+    rootConstraints.fill = GridBagConstraints.BOTH;
+    add((contentPanel = new JPanel(new GridBagLayout())), rootConstraints);
+    rowConstraints_.gridy = -1;
+    rowConstraints_.anchor = GridBagConstraints.WEST;
+
+    // Button panel
+    rootConstraints.gridy++;
+    rootConstraints.weighty = 0;
+    rootConstraints.fill = GridBagConstraints.NONE;
+    add((buttonPanel = new JPanel(new FlowLayout())), rootConstraints);
+
+    // Close button
+    buttonPanel.add((closeButton = new JButton("Close")));
+    closeButton.addActionListener(new ActionListener()
+    {
+      @Override
+      public void actionPerformed(ActionEvent e)
+      {
+        dispose();
+      }
+    });
+
+    // The counters only need updating while they can be seen.
+    refreshTimer_ = new Timer(REFRESH_MILLIS, new ActionListener()
+    {
+      @Override
+      public void actionPerformed(ActionEvent e)
+      {
+        refresh();
+      }
+    });
+    addWindowListener(new WindowAdapter()
+    {
+      @Override
+      public void windowOpened(WindowEvent e)
+      {
+        refreshTimer_.start();
+      }
+
+      @Override
+      public void windowClosed(WindowEvent e)
+      {
+        refreshTimer_.stop();
+      }
+    });
+  }
+}
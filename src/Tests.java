@@ -1,8 +1,30 @@
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.PlainDocument;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.*;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Tests
 {
@@ -66,6 +88,57 @@ public class Tests
     }
   }
 
+  public static void TestCipherCache()
+  {
+    try
+    {
+      final int iterations = 200000;
+      byte[] key = CryptoUtil.getDerivedKey("this is my password");
+      ChannelCrypto crypto = new ChannelCrypto(key);
+      byte[] message = new ChatMessage("jvsmith", "Hello, world!")
+        .toByteArray();
+      Ciphertext ciphertext = CryptoUtil.encrypt(message, key);
+      byte[] packet = new byte[16 + ciphertext.getData().length];
+      System.arraycopy(ciphertext.getIV(), 0, packet, 0, 16);
+      System.arraycopy(ciphertext.getData(), 0, packet, 16,
+        ciphertext.getData().length);
+      byte[] output = new byte[packet.length];
+
+      // Run each version once untimed so the JIT has a chance to warm up
+      for (int pass = 0; pass < 2; pass++)
+      {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+          CryptoUtil.decrypt(packet, 16, packet.length - 16, packet, 0, key,
+            output, 0);
+        }
+
+        long uncachedTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+          CryptoUtil.decrypt(packet, 16, packet.length - 16, packet, 0,
+            crypto, output, 0);
+        }
+
+        long cachedTime = System.nanoTime() - start;
+        if (pass > 0)
+        {
+          System.out.printf("Uncached decrypt: %d ns/packet\n",
+            uncachedTime / iterations);
+          System.out.printf("Cached decrypt: %d ns/packet\n",
+            cachedTime / iterations);
+        }
+      }
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+    }
+  }
+
   public static void TestMemoryHash()
   {
     try
@@ -83,6 +156,102 @@ public class Tests
     }
   }
 
+  // Known-good outputs of getMemoryBoundHash, recorded from the original
+  // ByteIOStream-based implementation. Any rewrite has to reproduce these
+  // exactly or every channel hash changes.
+  public static void TestMemoryHashVectors()
+  {
+    Object[][] vectors =
+    {
+      { "Hello, world!".getBytes(), 32767, 32767,
+        "6FED40C20AD91FD3CBFBBA4653E554B55BA60D6CB84F38F9B146B55D" },
+      { "general".getBytes(), 32767, 32767,
+        "3A99B1E5021966EA7EEEE1517E45A056956959A1FB429BC6741A5F97" },
+      { "a".getBytes(), 1, 1,
+        "C213F3F734D6EEBB7AE81419644265D622280405722584C3D5B83C93" },
+      { "c++".getBytes(), 2, 3,
+        "514D79DC04F6A3F13B2F689E676E4816AAF415C29F157B53A024AFBC" },
+      // Bytes with the high bit set, to catch sign-extension mistakes
+      { new byte[] { (byte)0xc3, (byte)0xa9, (byte)0xc3, (byte)0xbc,
+        (byte)0xc3, (byte)0xbf, (byte)0xc2, (byte)0x80 }, 100, 50,
+        "A5394F0855A1AB5D58D1FAC690ACF41A48FC93EB83047A2EDCEC906E" },
+      { "programming".getBytes(), 1000, 5000,
+        "3FE726725A39C0B53C9BDF9B8C37E09C7EAB54FC7AB73E359E956FF3" },
+      { "java".getBytes(), 7, 1,
+        "72C190FFD6121E2F2709E777270CB464D1373F54F980938B6DF1B485" },
+    };
+
+    int failures = 0;
+    try
+    {
+      for (Object[] vector : vectors)
+      {
+        byte[] hashValue = CryptoUtil.getMemoryBoundHash((byte[])vector[0],
+          (Integer)vector[1], (Integer)vector[2]);
+        String actual = CryptoUtil.toHexString(hashValue);
+        if (!actual.equals(vector[3]))
+        {
+          failures++;
+          System.err.printf("Mismatch (%d/%d rounds): expected %s, got %s\n",
+            vector[1], vector[2], vector[3], actual);
+        }
+      }
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+
+    System.out.printf("Memory-bound hash vectors: %d of %d passed\n",
+      vectors.length - failures, vectors.length);
+  }
+
+  public static void TestMemoryHashSpeed()
+  {
+    try
+    {
+      final int iterations = 20;
+      byte[] data = "Hello, world!".getBytes();
+      // Warm up the JIT first
+      for (int i = 0; i < 5; i++)
+      {
+        CryptoUtil.getMemoryBoundHash(data);
+      }
+
+      // Allocation is only counted on JVMs that support it.
+      ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+      com.sun.management.ThreadMXBean allocationBean =
+        (threadBean instanceof com.sun.management.ThreadMXBean
+          ? (com.sun.management.ThreadMXBean)threadBean : null);
+      long threadId = Thread.currentThread().getId();
+      long allocated = (allocationBean == null ? 0
+        : allocationBean.getThreadAllocatedBytes(threadId));
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+      {
+        CryptoUtil.getMemoryBoundHash(data);
+      }
+
+      long elapsed = System.nanoTime() - start;
+      System.out.printf("Memory-bound hash: %.2f ms/hash\n",
+        elapsed / (double)iterations / 1000000.0);
+      if (allocationBean != null)
+      {
+        allocated = allocationBean.getThreadAllocatedBytes(threadId) -
+          allocated;
+        System.out.printf("Memory-bound hash: %d KB allocated/hash\n",
+          allocated / iterations / 1024);
+      }
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+    }
+  }
+
   public static void TestDecryption()
   {
     try
@@ -282,14 +451,2618 @@ public class Tests
 
   public static void TestChatUI()
   {
-    Channel.tryFromName("c++");
-    Channel.tryFromName("programming");
-    Channel.tryFromName("java");
-    Channel.tryFromName("general");
+    try
+    {
+      Channel.fromNames(Arrays.asList("c++", "programming", "java",
+        "general"));
+    }
+    catch (InterruptedException ex)
+    {
+      return;
+    }
+
     ChatUIFrame chatUI = new ChatUIFrame(new ChatClient());
     chatUI.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
     chatUI.setLocationRelativeTo(null);
     chatUI.pack();
     chatUI.setVisible(true);
   }
+
+  public static void TestFragmentReassembler()
+  {
+    Channel channel = null;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      channel = Channel.fromName("general");
+
+      // Reassembly, with the fragments arriving out of order
+      FragmentReassembler reassembler = new FragmentReassembler(16, 2, 16,
+        60000);
+      StringBuilder text = new StringBuilder();
+      for (int i = 0; i < 100; i++)
+      {
+        text.append("word").append(i).append(' ');
+      }
+
+      List<ChatMessage> fragments = new ChatMessage("alice", text.toString())
+        .split(1, 120);
+      ChatEntry whole = null;
+      for (int i = fragments.size() - 1; i >= 0; i--)
+      {
+        ChatMessage fragment = fragments.get(i);
+        fragment.setSender(0x1234, i);
+        whole = reassembler.add(new ChatEntry(channel, fragment));
+        checks++;
+        failures += check(i > 0 ? whole == null : whole != null,
+          "fragment " + i + " of " + fragments.size());
+      }
+
+      checks++;
+      failures += check(whole != null &&
+        whole.getMessage().getText().equals(text.toString()) &&
+        whole.getMessage().getSenderId() == 0x1234 &&
+        whole.getMessage().getSequence() == 0, "reassembled text and stamp");
+
+      // Each sender gets two messages in progress; a third evicts its
+      // oldest, and another sender using the same name isn't affected.
+      for (int id = 10; id < 13; id++)
+      {
+        reassembler.add(newFragment(channel, "alice", 0x1234, id, 2, 0));
+      }
+
+      reassembler.add(newFragment(channel, "alice", 0x5678, 20, 2, 0));
+      checks++;
+      failures += check(reassembler.getEvictedCount() == 1 &&
+        reassembler.getPendingCount() == 3, "per-sender eviction");
+      checks++;
+      failures += check(reassembler.add(newFragment(channel, "alice", 0x1234,
+        10, 2, 1)) == null, "evicted message doesn't complete");
+      checks++;
+      failures += check(reassembler.add(newFragment(channel, "alice", 0x5678,
+        20, 2, 1)) != null, "other sender's message completes");
+
+      // Bad fragments
+      reassembler.add(newFragment(channel, "bob", 1, 30, 17, 0));
+      reassembler.add(newFragment(channel, "bob", 1, 31, 2, 2));
+      reassembler.add(newFragment(channel, "bob", 1, 32, 2, 0));
+      reassembler.add(newFragment(channel, "bob", 1, 32, 3, 1));
+      checks++;
+      failures += check(reassembler.getRejectedCount() == 3,
+        "rejected fragments");
+
+      // A long message of mixed-width characters, split to fit each packet
+      // format, encrypted, decrypted and put back together. Text is sent in
+      // the platform's charset, so it comes back as that charset has it
+      // (the widths only vary where that's UTF-8).
+      text.setLength(0);
+      while (text.length() < 3000)
+      {
+        text.append("ascii \u00e9\u00e8 \u4e2d\u6587 \ud83d\ude00 ");
+      }
+
+      String expected = new String(text.toString().getBytes());
+
+      for (ChatEntry.PacketFormat format : ChatEntry.PacketFormat.values())
+      {
+        reassembler = new FragmentReassembler();
+        fragments = new ChatMessage("alice", text.toString()).split(2,
+          ChatEntry.getMaxMessageSize(format));
+        whole = null;
+        for (int i = 0; i < fragments.size(); i++)
+        {
+          ChatMessage fragment = fragments.get(i);
+          fragment.setSender(0x1234, 100 + i);
+          byte[] packet = new ChatEntry(channel, fragment).encrypt(format);
+          whole = reassembler.add(ChatEntry.decrypt(packet, packet.length));
+        }
+
+        checks++;
+        failures += check(fragments.size() > 1 &&
+          fragments.size() <= reassembler.getMaxFragments() &&
+          whole != null && whole.getMessage().getText().equals(expected),
+          format + " round trip in " + fragments.size() +
+          " fragments");
+      }
+
+      // A flood of messages that never complete is held to the table size.
+      reassembler = new FragmentReassembler();
+      for (int i = 0; i < 10000; i++)
+      {
+        reassembler.add(newFragment(channel, "mallory", 1000 + i, i, 2, 0));
+      }
+
+      checks++;
+      failures += check(reassembler.getPendingCount() ==
+        FragmentReassembler.DEFAULT_MAX_PENDING &&
+        reassembler.getEvictedCount() ==
+        10000 - FragmentReassembler.DEFAULT_MAX_PENDING, "flood held to " +
+        reassembler.getPendingCount());
+
+      // Timeout
+      reassembler = new FragmentReassembler(16, 2, 16, 50);
+      reassembler.add(newFragment(channel, "carol", 2, 40, 2, 0));
+      Thread.sleep(100);
+      reassembler.add(newFragment(channel, "carol", 2, 41, 2, 0));
+      checks++;
+      failures += check(reassembler.getExpiredCount() == 1 &&
+        reassembler.getPendingCount() == 1, "timeout");
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      if (channel != null)
+      {
+        channel.leave();
+      }
+    }
+
+    System.out.printf("Fragment reassembler: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestReplayWindow()
+  {
+    // Sender id, sequence, and whether it should be accepted, in order
+    int[][] steps =
+    {
+      { 1, 100, 1 },
+      { 1, 100, 0 },  // duplicate
+      { 1, 101, 1 },
+      { 1, 99, 1 },  // late but inside the window
+      { 1, 99, 0 },
+      { 1, 101 - ReplayWindow.WINDOW_SIZE, 0 },  // just out of the window
+      { 1, 102 - ReplayWindow.WINDOW_SIZE, 1 },  // oldest in the window
+      { 1, 300, 1 },  // jumps past the whole window
+      { 1, 101, 0 },  // the old window is gone
+      { 1, 299, 1 },
+      { 2, 100, 1 },  // other senders are separate
+      { 2, 100, 0 },
+      { 0, 5, 1 },  // no sender id, can't be checked
+      { 0, 5, 1 },
+      { 3, Integer.MAX_VALUE, 1 },  // the sequence wraps around
+      { 3, Integer.MIN_VALUE, 1 },
+      { 3, Integer.MAX_VALUE, 0 },
+    };
+
+    int failures = 0;
+    ReplayWindow window = new ReplayWindow(4);
+    for (int i = 0; i < steps.length; i++)
+    {
+      boolean accepted = window.accept(steps[i][0], steps[i][1]);
+      failures += check(accepted == (steps[i][2] != 0), String.format(
+        "step %d: sender %d sequence %d", i, steps[i][0], steps[i][1]));
+    }
+
+    // Filling the table forgets a sender, whose window then starts over.
+    for (int sender = 10; sender < 20; sender++)
+    {
+      window.accept(sender, 1);
+    }
+
+    int checks = steps.length + 1;
+    failures += check(window.size() == 4 && window.getEvictedCount() > 0 &&
+      window.getRejectedCount() == 6, "eviction and counts");
+    System.out.printf("Replay window: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestReplayOverLoopback()
+  {
+    Channel channel = null;
+    ChatClient client = null;
+    int checks = 0;
+    int failures = 0;
+    try (DatagramSocket socket = new DatagramSocket(0,
+      InetAddress.getLoopbackAddress()))
+    {
+      // A client that sends to itself over loopback
+      channel = Channel.fromName("replay test");
+      DatagramSocket portFinder = new DatagramSocket(0);
+      int port = portFinder.getLocalPort();
+      portFinder.close();
+      Configuration config = new Configuration();
+      config.setUserName("replay");
+      config.setDirect(InetAddress.getLoopbackAddress());
+      config.setPort(port);
+      config.setSourceRate(0);
+      final List<ChatMessage> received = new ArrayList<>();
+      client = new ChatClient();
+      client.setEntryReceivedCallback(new ChatEntryReceived()
+      {
+        @Override
+        public void received(ChatEntry entry)
+        {
+          synchronized (received)
+          {
+            received.add(entry.getMessage());
+          }
+        }
+      });
+      client.configure(config);
+
+      // 20 stamped packets, each sent three times, are delivered once each;
+      // unstamped ones can't be checked, so they're delivered every time.
+      List<byte[]> packets = new ArrayList<>();
+      for (int i = 0; i < 20; i++)
+      {
+        ChatMessage message = new ChatMessage("replay", "Stamped " + i);
+        message.setSender(0x4321, i);
+        packets.add(new ChatEntry(channel, message).encrypt());
+      }
+
+      byte[] unstamped = new ChatEntry(channel,
+        new ChatMessage("replay", "Unstamped")).encrypt();
+      for (int round = 0; round < 3; round++)
+      {
+        for (byte[] packet : packets)
+        {
+          socket.send(new DatagramPacket(packet, packet.length,
+            InetAddress.getLoopbackAddress(), port));
+        }
+
+        socket.send(new DatagramPacket(unstamped, unstamped.length,
+          InetAddress.getLoopbackAddress(), port));
+        Thread.sleep(50);
+      }
+
+      // A message long enough to be fragmented still goes through the
+      // window and comes out whole.
+      StringBuilder text = new StringBuilder();
+      while (text.length() < 2000)
+      {
+        text.append("fragmented ");
+      }
+
+      client.sendAsync(new ChatEntry(channel,
+        new ChatMessage("replay", text.toString()))).get(5, TimeUnit.SECONDS);
+      Thread.sleep(200);
+      synchronized (received)
+      {
+        int stamped = 0;
+        int unstampedCount = 0;
+        int whole = 0;
+        for (ChatMessage message : received)
+        {
+          stamped += (message.getText().startsWith("Stamped") ? 1 : 0);
+          unstampedCount += (message.getText().equals("Unstamped") ? 1 : 0);
+          whole += (message.getText().equals(text.toString()) ? 1 : 0);
+        }
+
+        System.out.printf("Replay over loopback: %d stamped, %d unstamped " +
+          "and %d fragmented delivered, %d rejected\n", stamped,
+          unstampedCount, whole, client.getReplayWindow().getRejectedCount());
+        checks++;
+        failures += check(stamped == 20 &&
+          client.getReplayWindow().getRejectedCount() == 40, "Stamped");
+        checks++;
+        failures += check(unstampedCount == 3, "Unstamped");
+        checks++;
+        failures += check(whole == 1, "Fragmented");
+      }
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      if (client != null)
+      {
+        client.terminate();
+      }
+
+      if (channel != null)
+      {
+        channel.leave();
+      }
+    }
+
+    System.out.printf("Replay over loopback: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestKeyCacheSpeed()
+  {
+    File directory = null;
+    ChannelKeyCache previous = Channel.getKeyCache();
+    Channel derived = null;
+    Channel cached = null;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      directory = Files.createTempDirectory("punychat").toFile();
+      Channel.setKeyCache(ChannelKeyCache.open(directory));
+
+      // The first join derives the channel and stores it; joining again
+      // reads it back from the cache.
+      long start = System.nanoTime();
+      derived = Channel.fromName("key cache test");
+      long deriveTime = System.nanoTime() - start;
+      start = System.nanoTime();
+      cached = Channel.fromName("key cache test");
+      long cachedTime = System.nanoTime() - start;
+      System.out.printf("Derived join: %.1f ms\n", deriveTime / 1e6);
+      System.out.printf("Cached join: %.3f ms\n", cachedTime / 1e6);
+      checks++;
+      failures += check(Arrays.equals(derived.getHash(), cached.getHash()) &&
+        Arrays.equals(derived.getKey(), cached.getKey()), "Same channel");
+      checks++;
+      failures += check(cachedTime < deriveTime / 10, "Cached is faster");
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      if (cached != null)
+      {
+        cached.leave();
+      }
+
+      if (derived != null)
+      {
+        derived.leave();
+      }
+
+      Channel.setKeyCache(previous);
+      deleteDirectory(directory);
+    }
+
+    System.out.printf("Key cache speed: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestPacedLoopback()
+  {
+    Channel channel = null;
+    ChatClient client = null;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      // A client that sends to itself over loopback, with room to queue
+      // every message at once
+      final int count = 800;
+      channel = Channel.fromName("pacing test");
+      DatagramSocket portFinder = new DatagramSocket(0);
+      int port = portFinder.getLocalPort();
+      portFinder.close();
+      Configuration config = new Configuration();
+      config.setUserName("pacer");
+      config.setDirect(InetAddress.getLoopbackAddress());
+      config.setPort(port);
+      config.setSourceRate(0);
+      config.setSendQueueCapacity(count);
+      config.setSendRate(1000);
+      config.setSendBurst(64);
+      config.setChannelSendRate(0);
+      final AtomicInteger received = new AtomicInteger();
+      client = new ChatClient();
+      client.setEntryReceivedCallback(new ChatEntryReceived()
+      {
+        @Override
+        public void received(ChatEntry entry)
+        {
+          received.incrementAndGet();
+        }
+      });
+      client.configure(config);
+
+      // First the global limit alone, then with a slower channel limit on
+      // top. Each pass should take about (count - burst) / rate.
+      double[][] passes = { { 1000, 64, 0, 1 }, { 1000, 64, 400, 20 } };
+      for (double[] pass : passes)
+      {
+        client.getPacer().setRates(pass[0], (int) pass[1], pass[2],
+          (int) pass[3]);
+        // Let both buckets fill up again
+        Thread.sleep(500);
+        received.set(0);
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+        {
+          sends.add(client.sendAsync(new ChatEntry(channel,
+            new ChatMessage("pacer", "Paced " + i))));
+        }
+
+        for (CompletableFuture<Void> send : sends)
+        {
+          send.get(10, TimeUnit.SECONDS);
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double expected = (pass[2] > 0) ? (count - pass[3]) / pass[2] :
+          (count - pass[1]) / pass[0];
+        long deadline = System.currentTimeMillis() + 2000;
+        while (received.get() < count &&
+          System.currentTimeMillis() < deadline)
+        {
+          Thread.sleep(10);
+        }
+
+        System.out.printf("Paced %d at %.0f/s global, %.0f/s channel: " +
+          "%.2f s (%.2f s expected), %d arrived\n", count, pass[0], pass[2],
+          seconds, expected, received.get());
+        checks++;
+        failures += check(seconds > expected * 0.9 &&
+          seconds < expected * 1.25, "Time");
+        checks++;
+        failures += check(received.get() == count, "Arrived");
+      }
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      if (client != null)
+      {
+        client.terminate();
+      }
+
+      if (channel != null)
+      {
+        channel.leave();
+      }
+    }
+
+    System.out.printf("Paced loopback: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestChannelIndex()
+  {
+    List<Channel> channels = null;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      channels = Channel.fromNames(Arrays.asList("index 1", "index 2",
+        "index 3", "index 4", "index 5", "index 6"));
+      ChannelIndex index = new ChannelIndex();
+      for (Channel channel : channels)
+      {
+        index.add(channel);
+      }
+
+      // Insert: each channel is found from its hash, at any offset
+      for (Channel channel : channels)
+      {
+        byte[] packet = new byte[5 + ChatEntry.HASH_LENGTH + 16];
+        System.arraycopy(channel.getHash(), 0, packet, 5,
+          ChatEntry.HASH_LENGTH);
+        checks++;
+        failures += check(index.mightContain(packet, 5) &&
+          index.find(packet, 5) == channel, "find " + channel.getName());
+      }
+
+      checks++;
+      failures += check(index.size() == channels.size() &&
+        index.find(channels.get(0).getHash(), 1) == null &&
+        index.find(new byte[ChatEntry.HASH_LENGTH - 1], 0) == null,
+        "size, misaligned and short lookups");
+
+      // Remove: the others are still found after the table is rebuilt.
+      Channel removed = channels.get(2);
+      checks++;
+      failures += check(index.remove(removed) == removed &&
+        index.find(removed.getHash(), 0) == null &&
+        index.remove(removed) == null && index.size() == channels.size() - 1,
+        "remove");
+      for (Channel channel : channels)
+      {
+        if (channel != removed)
+        {
+          checks++;
+          failures += check(index.find(channel.getHash(), 0) == channel,
+            "find " + channel.getName() + " after remove");
+        }
+      }
+
+      // Prefix filter: random hashes should nearly all be turned away
+      // before the table is even probed, and none should be found.
+      Random random = new Random(1);
+      byte[] hash = new byte[ChatEntry.HASH_LENGTH];
+      int passed = 0;
+      int found = 0;
+      final int samples = 100000;
+      for (int i = 0; i < samples; i++)
+      {
+        random.nextBytes(hash);
+        if (index.mightContain(hash, 0))
+        {
+          passed++;
+        }
+
+        if (index.find(hash, 0) != null)
+        {
+          found++;
+        }
+      }
+
+      checks++;
+      failures += check(found == 0 && passed < samples / 1000,
+        "filter let " + passed + " of " + samples + " through");
+      System.out.printf("Channel index filter: %d of %d random hashes got " +
+        "past the prefix filter\n", passed, samples);
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      if (channels != null)
+      {
+        for (Channel channel : channels)
+        {
+          channel.leave();
+        }
+      }
+    }
+
+    System.out.printf("Channel index: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestChannelIndexSpeed()
+  {
+    List<Channel> channels = null;
+    try
+    {
+      List<String> names = new ArrayList<>();
+      for (int i = 0; i < 41; i++)
+      {
+        names.add("index speed " + i);
+      }
+
+      channels = Channel.fromNames(names);
+      final int iterations = 5000000;
+      byte[] packet = new ChatEntry(channels.get(20),
+        new ChatMessage("index", "Hello, world!")).encrypt();
+      int found = 0;
+      // Warm up the JIT first
+      for (int i = 0; i < iterations / 10; i++)
+      {
+        found += (ChatEntry.findChannel(packet, packet.length) != null ? 1 : 0);
+      }
+
+      found = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+      {
+        found += (ChatEntry.findChannel(packet, packet.length) != null ? 1 : 0);
+      }
+
+      long elapsed = System.nanoTime() - start;
+      System.out.printf("Channel lookup among %d channels: %.1f ns/packet " +
+        "(found %d of %d)\n", channels.size(),
+        elapsed / (double)iterations, found, iterations);
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+    }
+    finally
+    {
+      if (channels != null)
+      {
+        for (Channel channel : channels)
+        {
+          channel.leave();
+        }
+      }
+    }
+  }
+
+  public static void TestLeaveChannel()
+  {
+    List<Channel> channels = null;
+    Channel rejoined = null;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      channels = Channel.fromNames(Arrays.asList("leave", "stay 1",
+        "stay 2", "churn 1", "churn 2"));
+      Channel channel = channels.get(0);
+      byte[] packet = new ChatEntry(channel,
+        new ChatMessage("leave", "Hello, world!")).encrypt();
+
+      // Once left, the channel's packets aren't matched, one matched just
+      // before fails quietly, and the key is gone.
+      channel.leave();
+      boolean keyWiped = true;
+      for (byte b : channel.getKey())
+      {
+        keyWiped &= (b == 0);
+      }
+
+      checks++;
+      failures += check(!channel.isJoined() &&
+        Channel.find(channel.getHash()) == null &&
+        ChatEntry.decrypt(packet, packet.length) == null &&
+        ChatEntry.decrypt(channel, packet, packet.length) == null &&
+        keyWiped, "Leave");
+
+      // Deriving it again joins it again.
+      rejoined = Channel.fromName("leave");
+      ChatEntry entry = ChatEntry.decrypt(packet, packet.length);
+      checks++;
+      failures += check(rejoined.isJoined() && entry != null &&
+        entry.getChannel() == rejoined &&
+        entry.getMessage().getText().equals("Hello, world!"), "Rejoin");
+
+      // Lookups never lock, so a reader sees every channel that stays
+      // joined while others are added and removed around it.
+      final ChannelIndex index = new ChannelIndex();
+      final Channel[] stable = { channels.get(1), channels.get(2) };
+      for (Channel stableChannel : stable)
+      {
+        index.add(stableChannel);
+      }
+
+      final AtomicBoolean done = new AtomicBoolean(false);
+      final long[] lookups = { 0, 0 };
+      Thread reader = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          while (!done.get())
+          {
+            for (Channel stableChannel : stable)
+            {
+              lookups[0]++;
+              if (index.find(stableChannel.getHash(), 0) != stableChannel)
+              {
+                lookups[1]++;
+              }
+            }
+          }
+        }
+      });
+      reader.start();
+      for (int i = 0; i < 50000; i++)
+      {
+        Channel churn = channels.get(3 + i % 2);
+        index.add(churn);
+        index.remove(churn);
+      }
+
+      done.set(true);
+      reader.join();
+      checks++;
+      failures += check(lookups[0] > 0 && lookups[1] == 0 &&
+        index.size() == stable.length, String.format("%d of %d lookups " +
+        "missed", lookups[1], lookups[0]));
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      if (channels != null)
+      {
+        for (Channel channel : channels)
+        {
+          channel.leave();
+        }
+      }
+
+      if (rejoined != null)
+      {
+        rejoined.leave();
+      }
+    }
+
+    System.out.printf("Leave channel: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestPacketFilter()
+  {
+    List<Channel> channels = null;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      // 21 joined channels, and one that's been left
+      List<String> names = new ArrayList<>();
+      for (int i = 0; i <= 21; i++)
+      {
+        names.add("filter " + i);
+      }
+
+      channels = Channel.fromNames(names);
+      Channel unjoined = channels.get(21);
+      List<byte[]> joinedPackets = new ArrayList<>();
+      List<byte[]> unjoinedPackets = new ArrayList<>();
+      for (int i = 0; i < 150; i++)
+      {
+        for (ChatEntry.PacketFormat format : ChatEntry.PacketFormat.values())
+        {
+          ChatMessage message = new ChatMessage("filter", "Message " + i);
+          joinedPackets.add(new ChatEntry(channels.get(i % 21), message)
+            .encrypt(format));
+          unjoinedPackets.add(new ChatEntry(unjoined, message)
+            .encrypt(format));
+        }
+      }
+
+      unjoined.leave();
+
+      // Packets for the joined channels all get through the filter, in both
+      // formats, and packets for the other one are all turned away.
+      int joinedPassed = 0;
+      int unjoinedPassed = 0;
+      for (int i = 0; i < joinedPackets.size(); i++)
+      {
+        byte[] packet = joinedPackets.get(i);
+        joinedPassed += (ChatEntry.mightBeForJoinedChannel(packet,
+          packet.length) ? 1 : 0);
+        packet = unjoinedPackets.get(i);
+        unjoinedPassed += (ChatEntry.mightBeForJoinedChannel(packet,
+          packet.length) ? 1 : 0);
+      }
+
+      checks++;
+      failures += check(joinedPassed == 300 && unjoinedPassed == 0,
+        String.format("%d of 300 joined and %d of 300 unjoined passed",
+        joinedPassed, unjoinedPassed));
+
+      // Random traffic almost never gets past the filter, and what does is
+      // still caught by the full lookup.
+      Random random = new Random(1);
+      byte[] buffer = new byte[100];
+      int randomPassed = 0;
+      int randomFound = 0;
+      final int samples = 1000000;
+      for (int i = 0; i < samples; i++)
+      {
+        random.nextBytes(buffer);
+        if (ChatEntry.mightBeForJoinedChannel(buffer, buffer.length))
+        {
+          randomPassed++;
+          randomFound += (ChatEntry.findChannel(buffer, buffer.length) != null
+            ? 1 : 0);
+        }
+      }
+
+      System.out.printf("Packet filter: %d of %d random packets got past " +
+        "the filter\n", randomPassed, samples);
+      checks++;
+      failures += check(randomPassed < samples / 10000 && randomFound == 0,
+        "random packets");
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      if (channels != null)
+      {
+        for (Channel channel : channels)
+        {
+          channel.leave();
+        }
+      }
+    }
+
+    System.out.printf("Packet filter: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestSendPacer()
+  {
+    List<Channel> channels = null;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      // A bucket hands out its burst, then makes callers wait.
+      TokenBucket bucket = new TokenBucket(1000, 10);
+      int acquired = 0;
+      while (bucket.tryAcquire(1) && acquired < 100)
+      {
+        acquired++;
+      }
+
+      long waitNanos = bucket.reserve(1);
+      checks++;
+      failures += check(acquired == 10 && waitNanos > 0 &&
+        waitNanos <= 2000000, String.format("burst %d, then wait %d ns",
+        acquired, waitNanos));
+      checks++;
+      failures += check(new TokenBucket(0, 1).reserve(1000) == 0,
+        "unlimited bucket");
+
+      // The global rate: 25 packets at 200/s with a burst of 5 should take
+      // about 100 ms, with the last 20 delayed.
+      channels = Channel.fromNames(Arrays.asList("pacer 1", "pacer 2"));
+      SendPacer pacer = new SendPacer(200, 5, 0, 1);
+      long start = System.nanoTime();
+      for (int i = 0; i < 25; i++)
+      {
+        pacer.pace(channels.get(i % 2));
+      }
+
+      long globalMillis = (System.nanoTime() - start) / 1000000;
+      checks++;
+      failures += check(pacer.getDelayedCount() == 20 &&
+        globalMillis >= 90 && globalMillis < 300,
+        String.format("global pacing: %d delayed, %d ms",
+        pacer.getDelayedCount(), globalMillis));
+
+      // The channel rate applies to each channel separately, so the second
+      // channel starts with a full burst.
+      pacer = new SendPacer(0, 1, 200, 5);
+      start = System.nanoTime();
+      for (int i = 0; i < 25; i++)
+      {
+        pacer.pace(channels.get(0));
+      }
+
+      long firstMillis = (System.nanoTime() - start) / 1000000;
+      start = System.nanoTime();
+      for (int i = 0; i < 5; i++)
+      {
+        pacer.pace(channels.get(1));
+      }
+
+      long secondMillis = (System.nanoTime() - start) / 1000000;
+      checks++;
+      failures += check(pacer.getDelayedCount() == 20 && firstMillis >= 90 &&
+        secondMillis < 20, String.format("channel pacing: %d delayed, " +
+        "%d ms, then %d ms for the other channel", pacer.getDelayedCount(),
+        firstMillis, secondMillis));
+      System.out.printf("Send pacer: 25 packets in %d ms globally, %d ms " +
+        "on one channel\n", globalMillis, firstMillis);
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      if (channels != null)
+      {
+        for (Channel channel : channels)
+        {
+          channel.leave();
+        }
+      }
+    }
+
+    System.out.printf("Token bucket and send pacer: %d of %d checks " +
+      "passed\n", checks - failures, checks);
+  }
+
+  public static void TestSourceRateLimiter()
+  {
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      // A flood from one source is shed after its burst; another source is
+      // unaffected.
+      InetAddress flooder = InetAddress.getByName("192.0.2.1");
+      InetAddress quiet = InetAddress.getByName("192.0.2.2");
+      SourceRateLimiter limiter = new SourceRateLimiter(100, 10, 4, 200);
+      int allowed = 0;
+      for (int i = 0; i < 1000; i++)
+      {
+        if (limiter.allow(flooder))
+        {
+          allowed++;
+        }
+      }
+
+      int quietAllowed = 0;
+      for (int i = 0; i < 10; i++)
+      {
+        if (limiter.allow(quiet))
+        {
+          quietAllowed++;
+        }
+      }
+
+      checks++;
+      failures += check(allowed >= 10 && allowed <= 12 && quietAllowed == 10,
+        String.format("flood allowed %d, quiet source allowed %d", allowed,
+        quietAllowed));
+      Long flooderShed = limiter.getShedCounts().get(flooder);
+      checks++;
+      failures += check(flooderShed != null && flooderShed == 1000 - allowed &&
+        limiter.getShedCount() == flooderShed &&
+        !limiter.getShedCounts().containsKey(quiet), "per-source shed counts");
+
+      // The flooder's bucket refills at the rate.
+      Thread.sleep(100);
+      allowed = 0;
+      for (int i = 0; i < 100; i++)
+      {
+        if (limiter.allow(flooder))
+        {
+          allowed++;
+        }
+      }
+
+      checks++;
+      failures += check(allowed >= 9 && allowed <= 12,
+        "allowed " + allowed + " after 100 ms");
+
+      // More sources than the table holds evict the least recently seen.
+      for (int i = 10; i < 20; i++)
+      {
+        limiter.allow(InetAddress.getByName("192.0.2." + i));
+      }
+
+      checks++;
+      failures += check(limiter.size() == 4 && limiter.getEvictedCount() > 0,
+        "eviction");
+
+      // Sources quiet for longer than the idle time are aged out.
+      Thread.sleep(300);
+      limiter.allow(quiet);
+      checks++;
+      failures += check(limiter.size() == 1, "aging left " + limiter.size());
+
+      checks++;
+      failures += check(new SourceRateLimiter(0, 1).allow(flooder),
+        "unlimited");
+
+      // A spoofed flood from 200000 addresses holds the default table at its
+      // capacity, and a busy source seen all along is never evicted; if it
+      // were, it would come back with a fresh burst.
+      limiter = new SourceRateLimiter(1, 5);
+      Random random = new Random(1);
+      byte[] address = new byte[4];
+      int busyAttempts = 0;
+      int busyAllowed = 0;
+      for (int i = 0; i < 200000; i++)
+      {
+        random.nextBytes(address);
+        limiter.allow(InetAddress.getByAddress(address));
+        if (i % 50 == 0)
+        {
+          busyAttempts++;
+          busyAllowed += (limiter.allow(flooder) ? 1 : 0);
+        }
+      }
+
+      checks++;
+      failures += check(limiter.size() == SourceRateLimiter.DEFAULT_CAPACITY &&
+        limiter.getEvictedCount() > 0 && busyAllowed <= 6 &&
+        limiter.getShedCounts().get(flooder) == busyAttempts - busyAllowed,
+        String.format("spoofed flood: %d sources, busy source allowed %d " +
+        "of %d", limiter.size(), busyAllowed, busyAttempts));
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+
+    System.out.printf("Source rate limiter: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestReceivePipeline()
+  {
+    List<Channel> channels = null;
+    ReceivePipeline pipeline = null;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      // Packets of mixed sizes through eight decrypt workers finish
+      // decrypting out of order; each channel's have to come out in the
+      // order they went in anyway. Foreign and corrupt packets mixed in
+      // mustn't hold anything up.
+      channels = Channel.fromNames(Arrays.asList("pipeline 1", "pipeline 2"));
+      final int packetCount = 4000;
+      final HashMap<Channel, List<Integer>> received = new HashMap<>();
+      for (Channel channel : channels)
+      {
+        received.put(channel, new ArrayList<Integer>());
+      }
+
+      pipeline = new ReceivePipeline(new ChatEntryReceived()
+      {
+        @Override
+        public void received(ChatEntry entry)
+        {
+          synchronized (received)
+          {
+            received.get(entry.getChannel()).add(
+              entry.getMessage().getSequence());
+          }
+        }
+      }, 8, packetCount * 2);
+      pipeline.start();
+
+      Random random = new Random(1);
+      StringBuilder text = new StringBuilder();
+      int corrupted = 0;
+      for (int i = 0; i < packetCount; i++)
+      {
+        text.setLength(0);
+        for (int length = 1 + random.nextInt(400); length > 0; length--)
+        {
+          text.append('x');
+        }
+
+        ChatMessage message = new ChatMessage("sender", text.toString());
+        message.setSender(1, i);
+        byte[] packet = new ChatEntry(channels.get(random.nextInt(2)),
+          message).encrypt();
+        if (i % 100 == 50)
+        {
+          // Fails to decrypt, so it's dropped without being delivered
+          packet[packet.length - 1] ^= 1;
+          corrupted++;
+        }
+
+        pipeline.submit(packet, packet.length);
+        if (i % 100 == 0)
+        {
+          byte[] foreign = new byte[64 + random.nextInt(400)];
+          random.nextBytes(foreign);
+          pipeline.submit(foreign, foreign.length);
+        }
+      }
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (pipeline.getDeliveredCount() < packetCount - corrupted &&
+        System.currentTimeMillis() < deadline)
+      {
+        Thread.sleep(10);
+      }
+
+      checks++;
+      failures += check(pipeline.getDeliveredCount() ==
+        packetCount - corrupted && pipeline.getDroppedCount() == 0,
+        String.format("delivered %d of %d", pipeline.getDeliveredCount(),
+        packetCount - corrupted));
+      synchronized (received)
+      {
+        for (Channel channel : channels)
+        {
+          List<Integer> sequences = received.get(channel);
+          boolean ordered = true;
+          for (int i = 1; i < sequences.size(); i++)
+          {
+            ordered &= sequences.get(i) > sequences.get(i - 1);
+          }
+
+          checks++;
+          failures += check(ordered && !sequences.isEmpty(),
+            channel.getName() + " in order");
+        }
+      }
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      try
+      {
+        if (pipeline != null)
+        {
+          pipeline.stop();
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        // Only a test
+      }
+
+      if (channels != null)
+      {
+        for (Channel channel : channels)
+        {
+          channel.leave();
+        }
+      }
+    }
+
+    System.out.printf("Receive pipeline: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestPacketBufferPool()
+  {
+    List<Channel> channels = null;
+    ReceivePipeline pipeline = null;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      // A small pool keeps at most two buffers and ignores foreign ones.
+      PacketBufferPool pool = new PacketBufferPool(16, 2);
+      byte[][] buffers = { pool.acquire(), pool.acquire(), pool.acquire() };
+      for (byte[] buffer : buffers)
+      {
+        pool.release(buffer);
+      }
+
+      pool.release(new byte[8]);
+      checks++;
+      failures += check(pool.getAllocatedCount() == 3 &&
+        pool.getDiscardedCount() == 1 && pool.getRetainedCount() == 2,
+        "Release: " + pool);
+      byte[] reused = pool.acquire();
+      checks++;
+      failures += check((reused == buffers[0] || reused == buffers[1]) &&
+        pool.getReusedCount() == 1 && pool.getRetainedCount() == 1,
+        "Reuse: " + pool);
+
+      // Packets through the receive pipeline. Each needs a buffer while
+      // it's queued and another for its plaintext, and both go back to the
+      // shared pool once it's delivered. Packets encrypted as they're sent
+      // never queue up far, so few buffers are ever allocated. A burst
+      // encrypted up front queues nearly all of its packets and allocates
+      // a buffer for each the first time, but a second burst reuses them.
+      channels = Channel.fromNames(Arrays.asList("pool"));
+      final int burstSize = 500;
+      pipeline = new ReceivePipeline(new ChatEntryReceived()
+      {
+        @Override
+        public void received(ChatEntry entry)
+        {
+        }
+      }, 4, burstSize * 2);
+      pipeline.start();
+      List<byte[]> packets = new ArrayList<>();
+      PacketBufferPool shared = PacketBufferPool.getShared();
+      String[] names = { "Paced", "First burst", "Second burst" };
+      for (int pass = 0; pass < names.length; pass++)
+      {
+        long allocated = shared.getAllocatedCount();
+        long reusedCount = shared.getReusedCount();
+        int retained = shared.getRetainedCount();
+        long delivered = pipeline.getDeliveredCount();
+        if (pass == 1)
+        {
+          for (int i = 0; i < burstSize; i++)
+          {
+            packets.add(newPoolPacket(channels.get(0), burstSize + i));
+          }
+        }
+
+        for (int i = 0; i < burstSize; i++)
+        {
+          byte[] packet = (pass == 0 ? newPoolPacket(channels.get(0), i)
+            : packets.get(i));
+          pipeline.submit(packet, packet.length);
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pipeline.getDeliveredCount() < delivered + burstSize &&
+          System.currentTimeMillis() < deadline)
+        {
+          Thread.sleep(10);
+        }
+
+        // Wait for the last buffers to be released after delivery.
+        Thread.sleep(50);
+        allocated = shared.getAllocatedCount() - allocated;
+        reusedCount = shared.getReusedCount() - reusedCount;
+        System.out.printf("%s, %d packets: %d buffers allocated, %d " +
+          "reused\n", names[pass], burstSize, allocated, reusedCount);
+        boolean allocationOk = (pass == 0 ? allocated < burstSize / 4
+          : pass == 1 ? allocated <= burstSize + 8 : reusedCount >= burstSize);
+        checks++;
+        failures += check(pipeline.getDeliveredCount() ==
+          delivered + burstSize && allocationOk &&
+          allocated + reusedCount >= burstSize * 2 &&
+          shared.getRetainedCount() == retained + allocated, names[pass]);
+      }
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      try
+      {
+        if (pipeline != null)
+        {
+          pipeline.stop();
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        // Only a test
+      }
+
+      if (channels != null)
+      {
+        channels.get(0).leave();
+      }
+    }
+
+    System.out.printf("Packet buffer pool: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  private static byte[] newPoolPacket(Channel channel, int sequence)
+    throws Exception
+  {
+    ChatMessage message = new ChatMessage("pool", "Message " + sequence);
+    message.setSender(1, sequence);
+    return new ChatEntry(channel, message).encrypt();
+  }
+
+  public static void TestMessageHistory()
+  {
+    File directory = null;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      directory = Files.createTempDirectory("punychat").toFile();
+      File spillFile = new File(directory, "history");
+      MessageHistory history = new MessageHistory(5);
+      history.setSpillFile(spillFile);
+      for (int i = 0; i < 12; i++)
+      {
+        history.add(new ChatMessage("history", "Message " + i));
+      }
+
+      // The last five are kept and the other seven spilled, in order.
+      history.closeSpill();
+      checks++;
+      failures += check(history.size() == 5 &&
+        history.get(0).getText().equals("Message 7") &&
+        history.get(4).getText().equals("Message 11") &&
+        history.getSpilledCount() == 7 &&
+        getHistoryTexts(MessageHistory.readSpilled(spillFile, 100)).equals(
+        getNumberedTexts(0, 7)) &&
+        getHistoryTexts(MessageHistory.readSpilled(spillFile, 3)).equals(
+        getNumberedTexts(4, 7)), "Ring and spill");
+
+      // Shrinking spills the oldest that no longer fit.
+      history.setCapacity(3);
+      history.closeSpill();
+      checks++;
+      failures += check(history.size() == 3 &&
+        history.get(0).getText().equals("Message 9") &&
+        getHistoryTexts(MessageHistory.readSpilled(spillFile, 100)).equals(
+        getNumberedTexts(0, 9)), "Shrink");
+
+      // Earlier messages only go into free space, most recent first.
+      int addedWhenFull = history.addEarlier(
+        MessageHistory.readSpilled(spillFile, 3));
+      history.setCapacity(5);
+      int added = history.addEarlier(MessageHistory.readSpilled(spillFile, 3));
+      checks++;
+      failures += check(addedWhenFull == 0 && added == 2 &&
+        history.size() == 5 && history.get(0).getText().equals("Message 7") &&
+        history.get(2).getText().equals("Message 9"), "Add earlier");
+
+      // A record cut short at the end of the file is left off.
+      try (RandomAccessFile file = new RandomAccessFile(spillFile, "rw"))
+      {
+        file.seek(file.length());
+        file.writeInt(100);
+        file.write(new byte[10]);
+      }
+
+      checks++;
+      failures += check(MessageHistory.readSpilled(spillFile, 100).size() == 9,
+        "Torn record");
+
+      // Memory stays bounded, and the running estimate matches a history
+      // holding just the messages kept.
+      history = new MessageHistory(1000);
+      MessageHistory kept = new MessageHistory(1000);
+      for (int i = 0; i < 1000000; i++)
+      {
+        ChatMessage message = new ChatMessage("history", "Message " + i);
+        history.add(message);
+        if (i >= 1000000 - 1000)
+        {
+          kept.add(message);
+        }
+      }
+
+      System.out.printf("Message history: %d messages, about %d KB\n",
+        history.size(), history.getEstimatedBytes() / 1024);
+      checks++;
+      failures += check(history.size() == 1000 &&
+        history.getEstimatedBytes() == kept.getEstimatedBytes() &&
+        history.get(999).getText().equals("Message 999999"), "Bounded");
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      deleteDirectory(directory);
+    }
+
+    System.out.printf("Message history: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  private static List<String> getHistoryTexts(List<ChatMessage> messages)
+  {
+    List<String> texts = new ArrayList<>();
+    for (ChatMessage message : messages)
+    {
+      texts.add(message.getText());
+    }
+
+    return texts;
+  }
+
+  // "Message first" up to but not including "Message end"
+  private static List<String> getNumberedTexts(int first, int end)
+  {
+    List<String> texts = new ArrayList<>();
+    for (int i = first; i < end; i++)
+    {
+      texts.add("Message " + i);
+    }
+
+    return texts;
+  }
+
+  public static void TestRenderBatcher()
+  {
+    Channel channel = null;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      // 50000 entries arrive over about 1.2 s from another thread. Each
+      // flush renders everything that came in during the last 30 ms, so
+      // there should be about 40 of them rather than one per entry.
+      channel = Channel.fromName("render");
+      final List<Integer> rendered = new ArrayList<>();
+      final boolean[] offThread = { false };
+      final int entryCount = 50000;
+      RenderBatcher batcher = new RenderBatcher(new RenderBatcher.Renderer()
+      {
+        @Override
+        public void render(List<ChatEntry> entries)
+        {
+          synchronized (rendered)
+          {
+            offThread[0] |= !SwingUtilities.isEventDispatchThread();
+            for (ChatEntry entry : entries)
+            {
+              rendered.add(entry.getMessage().getSequence());
+            }
+          }
+        }
+      }, 30);
+      long start = System.nanoTime();
+      for (int i = 0; i < entryCount; i++)
+      {
+        ChatMessage message = new ChatMessage("render", "Message " + i);
+        message.setSender(1, i);
+        batcher.submit(new ChatEntry(channel, message));
+        if (i % 500 == 499)
+        {
+          Thread.sleep(12);
+        }
+      }
+
+      long submitMillis = (System.nanoTime() - start) / 1000000;
+      long deadline = System.currentTimeMillis() + 5000;
+      while (System.currentTimeMillis() < deadline)
+      {
+        synchronized (rendered)
+        {
+          if (rendered.size() == entryCount)
+          {
+            break;
+          }
+        }
+
+        Thread.sleep(10);
+      }
+
+      synchronized (rendered)
+      {
+        boolean ordered = true;
+        for (int i = 0; i < rendered.size(); i++)
+        {
+          ordered &= rendered.get(i) == i;
+        }
+
+        System.out.printf("Render batcher: %d entries over %d ms in %d " +
+          "flushes\n", rendered.size(), submitMillis,
+          batcher.getFlushCount());
+        checks++;
+        failures += check(rendered.size() == entryCount && ordered &&
+          !offThread[0], "All rendered in order on the event thread");
+        checks++;
+        failures += check(batcher.getFlushCount() <=
+          submitMillis / 30 + 10, "Flushes batched");
+      }
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      if (channel != null)
+      {
+        channel.leave();
+      }
+    }
+
+    System.out.printf("Render batcher: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestMessageViewSpeed()
+  {
+    try
+    {
+      // Switching channels in the text view either rebuilds a document from
+      // the channel's history or swaps in the one kept for it. Each is timed
+      // through to painting, with a wrapped text area like the frame's.
+      final int messageCount = 20000;
+      List<ChatMessage> messages = new ArrayList<>();
+      for (int i = 0; i < messageCount; i++)
+      {
+        messages.add(new ChatMessage("view", "Message " + i +
+          ", long enough that it's about as wide as a typical chat line"));
+      }
+
+      JTextArea textArea = new JTextArea(40, 80);
+      textArea.setLineWrap(true);
+      textArea.setWrapStyleWord(true);
+      textArea.setEditable(false);
+      JScrollPane scrollPane = new JScrollPane(textArea);
+      scrollPane.setSize(800, 600);
+      BufferedImage image = new BufferedImage(800, 600,
+        BufferedImage.TYPE_INT_RGB);
+      PlainDocument[] documents = { newTranscript(messages),
+        newTranscript(messages) };
+      for (int i = 0; i < 4; i++)
+      {
+        long start = System.nanoTime();
+        showDocument(scrollPane, textArea, newTranscript(messages), image);
+        long rebuildTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        showDocument(scrollPane, textArea, documents[i % 2], image);
+        long swapTime = System.nanoTime() - start;
+        System.out.printf("Text view, %d messages: %.1f ms to rebuild, " +
+          "%.1f ms to swap\n", messageCount, rebuildTime / 1000000.0,
+          swapTime / 1000000.0);
+      }
+
+      // The list view only looks at the rows on screen, so even a much
+      // longer history shows and scrolls in about the same time, where the
+      // text area has to lay out all of it.
+      final int longCount = 300000;
+      MessageHistory history = new MessageHistory(longCount);
+      for (int i = 0; i < longCount; i++)
+      {
+        history.add(new ChatMessage("view", "Message " + i +
+          ", long enough that it's about as wide as a typical chat line"));
+      }
+
+      // Set up like the frame's list
+      JList<ChatMessage> list = new JList<>();
+      list.setFixedCellHeight(list.getFontMetrics(list.getFont()).getHeight() +
+        2);
+      list.setFixedCellWidth(1);
+      JScrollPane listScrollPane = new JScrollPane(list);
+      listScrollPane.setSize(800, 600);
+      for (int i = 0; i < 4; i++)
+      {
+        long start = System.nanoTime();
+        list.setModel(new MessageListModel(history));
+        list.ensureIndexIsVisible(longCount - 1);
+        paintScrollPane(listScrollPane, image);
+        long showTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        list.ensureIndexIsVisible(longCount / (i + 2));
+        paintScrollPane(listScrollPane, image);
+        long scrollTime = System.nanoTime() - start;
+        System.out.printf("List view, %d messages: %.2f ms to show, %.2f " +
+          "ms to scroll\n", longCount, showTime / 1000000.0,
+          scrollTime / 1000000.0);
+      }
+
+      List<ChatMessage> longMessages = new ArrayList<>();
+      for (int i = 0; i < longCount; i++)
+      {
+        longMessages.add(history.get(i));
+      }
+
+      PlainDocument longDocument = newTranscript(longMessages);
+      long start = System.nanoTime();
+      showDocument(scrollPane, textArea, longDocument, image);
+      System.out.printf("Text view, %d messages: %.1f ms to show\n",
+        longCount, (System.nanoTime() - start) / 1000000.0);
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+    }
+  }
+
+  private static PlainDocument newTranscript(List<ChatMessage> messages)
+    throws BadLocationException
+  {
+    StringBuilder sb = new StringBuilder();
+    for (ChatMessage message : messages)
+    {
+      sb.append(message.toString()).append('\n');
+    }
+
+    PlainDocument document = new PlainDocument();
+    document.insertString(0, sb.toString(), null);
+    return document;
+  }
+
+  // Shows the end of the document and paints it, the way the frame does
+  // when a channel is selected
+  private static void showDocument(JScrollPane scrollPane,
+    JTextArea textArea, PlainDocument document, BufferedImage image)
+  {
+    textArea.setDocument(document);
+    textArea.setCaretPosition(document.getLength());
+    paintScrollPane(scrollPane, image);
+  }
+
+  private static void paintScrollPane(JScrollPane scrollPane,
+    BufferedImage image)
+  {
+    scrollPane.validate();
+    Graphics graphics = image.getGraphics();
+    scrollPane.paint(graphics);
+    graphics.dispose();
+  }
+
+  public static void TestChatSender()
+  {
+    Channel channel = null;
+    int checks = 0;
+    int failures = 0;
+    try (DatagramSocket socket = new DatagramSocket(0,
+      InetAddress.getLoopbackAddress()))
+    {
+      channel = Channel.fromName("sender test");
+      List<ChatEntry> entries = Collections.singletonList(new ChatEntry(
+        channel, new ChatMessage("sender", "Hello, world!")));
+      for (ChatSender.DropPolicy policy : ChatSender.DropPolicy.values())
+      {
+        // The sender thread sends the first message and then waits on the
+        // pacer with the second, so the next ten all pile up in a queue
+        // with room for four.
+        ChatSender sender = new ChatSender(socket,
+          InetAddress.getLoopbackAddress(), socket.getLocalPort(),
+          ChatEntry.PacketFormat.AUTHENTICATED, 1, 4, policy,
+          new SendPacer(policy == ChatSender.DropPolicy.BLOCK ? 20 : 2, 1, 0,
+            1));
+        sender.start();
+        sender.sendAsync(entries).get();
+        sender.sendAsync(entries);
+        Thread.sleep(50);
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++)
+        {
+          results.add(sender.sendAsync(entries));
+        }
+
+        long queueMillis = (System.nanoTime() - start) / 1000000;
+        StringBuilder outcomes = new StringBuilder();
+        if (policy == ChatSender.DropPolicy.BLOCK)
+        {
+          for (CompletableFuture<Void> result : results)
+          {
+            result.get(5, TimeUnit.SECONDS);
+          }
+        }
+
+        for (CompletableFuture<Void> result : results)
+        {
+          String failure = getFailure(result);
+          outcomes.append(failure == null ? '.'
+            : failure.contains("full") ? 'D' : '?');
+        }
+
+        // Dropped messages are marked D, the rest are still queued or sent.
+        String expected = (policy == ChatSender.DropPolicy.REJECT
+          ? "....DDDDDD" : policy == ChatSender.DropPolicy.DROP_OLDEST
+          ? "DDDDDD...." : "..........");
+        checks++;
+        failures += check(outcomes.toString().equals(expected) &&
+          sender.getDroppedCount() == expected.replace(".", "").length() &&
+          (policy != ChatSender.DropPolicy.BLOCK || queueMillis >= 100),
+          String.format("%s: %s, %d dropped, queued in %d ms", policy,
+          outcomes, sender.getDroppedCount(), queueMillis));
+
+        // Whatever's still queued fails once the sender is stopped, and so
+        // does anything sent afterwards.
+        sender.stop();
+        boolean allDone = true;
+        for (CompletableFuture<Void> result : results)
+        {
+          allDone &= result.isDone();
+        }
+
+        String lateFailure = getFailure(sender.sendAsync(entries));
+        checks++;
+        failures += check(allDone && lateFailure != null &&
+          lateFailure.contains("stopped"), policy + ": stop");
+      }
+
+      // 500 messages through a 64-message queue to another socket: under
+      // each policy, whatever was sent arrives in order, and only REJECT
+      // and DROP_OLDEST lose any.
+      for (ChatSender.DropPolicy policy : ChatSender.DropPolicy.values())
+      {
+        final DatagramSocket receiver = new DatagramSocket(0,
+          InetAddress.getLoopbackAddress());
+        receiver.setReceiveBufferSize(1 << 20);
+        receiver.setSoTimeout(500);
+        final List<Integer> received = new ArrayList<>();
+        Thread receiveThread = new Thread(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            byte[] buffer = new byte[ChatEntry.MAX_PACKET_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try
+            {
+              while (true)
+              {
+                receiver.receive(packet);
+                ChatEntry entry = ChatEntry.decrypt(buffer,
+                  packet.getLength());
+                synchronized (received)
+                {
+                  received.add(entry == null ? -1
+                    : entry.getMessage().getSequence());
+                }
+              }
+            }
+            catch (IOException ex)
+            {
+              // Timed out once everything's in
+            }
+          }
+        });
+        receiveThread.start();
+        ChatSender sender = new ChatSender(socket,
+          InetAddress.getLoopbackAddress(), receiver.getLocalPort(),
+          ChatEntry.PacketFormat.AUTHENTICATED, 2, 64, policy, null);
+        sender.start();
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+        {
+          ChatMessage message = new ChatMessage("sender", "Message " + i);
+          message.setSender(1, i);
+          results.add(sender.sendAsync(Collections.singletonList(
+            new ChatEntry(channel, message))));
+        }
+
+        int sent = 0;
+        for (CompletableFuture<Void> result : results)
+        {
+          try
+          {
+            result.get(5, TimeUnit.SECONDS);
+            sent++;
+          }
+          catch (ExecutionException ex)
+          {
+            // Dropped
+          }
+        }
+
+        sender.stop();
+        receiveThread.join();
+        receiver.close();
+        boolean ordered = true;
+        for (int i = 1; i < received.size(); i++)
+        {
+          ordered &= received.get(i) > received.get(i - 1);
+        }
+
+        System.out.printf("Chat sender, %s: %d sent, %d dropped, %d " +
+          "received\n", policy, sent, sender.getDroppedCount(),
+          received.size());
+        checks++;
+        failures += check(ordered && received.size() == sent &&
+          sent + sender.getDroppedCount() == 500 &&
+          (policy != ChatSender.DropPolicy.BLOCK || sent == 500),
+          policy + " over loopback");
+      }
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      if (channel != null)
+      {
+        channel.leave();
+      }
+    }
+
+    System.out.printf("Chat sender: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestMessageJournal()
+  {
+    File directory = null;
+    MessageJournal journal = null;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      directory = Files.createTempDirectory("punychat").toFile();
+      byte[][] hashes = { newHash(1), newHash(2) };
+      // Small segments, so the records span several of them
+      journal = MessageJournal.open(directory, 4096, 0);
+      for (int i = 0; i < 200; i++)
+      {
+        ChatMessage message = new ChatMessage("journal", "Message " + i);
+        message.setSender(1, i);
+        journal.append(hashes[i % 2], message,
+          MessageJournal.Direction.RECEIVED);
+      }
+
+      journal.close();
+      journal = MessageJournal.open(directory, 4096, 0);
+      checks++;
+      failures += check(journal.getSegmentCount() > 1 &&
+        getJournalCount(journal, hashes) == 200 &&
+        getLastText(journal, hashes[1]).equals("Message 199"),
+        "Reopen");
+      long endPosition = journal.getEndPosition();
+      journal.close();
+
+      // A record cut short by a crash mid-write is dropped, along with
+      // nothing before it.
+      File segmentFile = getLastSegmentFile(directory);
+      try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw"))
+      {
+        file.setLength(file.length() - 3);
+      }
+
+      journal = MessageJournal.open(directory, 4096, 0);
+      checks++;
+      failures += check(journal.getEndPosition() < endPosition &&
+        getJournalCount(journal, hashes) == 199 &&
+        getLastText(journal, hashes[1]).equals("Message 197") &&
+        segmentFile.length() == MessageJournal.getOffset(
+        journal.getEndPosition()), "Torn record");
+      journal.close();
+
+      // So is one whose checksum doesn't match.
+      try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw"))
+      {
+        file.seek(file.length() - 6);
+        int value = file.read();
+        file.seek(file.length() - 6);
+        file.write(value ^ 0xff);
+      }
+
+      journal = MessageJournal.open(directory, 4096, 0);
+      checks++;
+      failures += check(getJournalCount(journal, hashes) == 198 &&
+        getLastText(journal, hashes[0]).equals("Message 196"),
+        "Corrupt record");
+
+      // And the journal carries on from where the good records end.
+      ChatMessage message = new ChatMessage("journal", "After recovery");
+      message.setSender(1, 200);
+      journal.append(hashes[0], message, MessageJournal.Direction.SENT);
+      journal.close();
+      journal = MessageJournal.open(directory, 4096, 0);
+      checks++;
+      failures += check(getJournalCount(journal, hashes) == 199 &&
+        getLastText(journal, hashes[0]).equals("After recovery") &&
+        journal.read(hashes[0], 1000, journal.getEndPosition()).size() == 100,
+        "Append after recovery");
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      if (journal != null)
+      {
+        try
+        {
+          journal.close();
+        }
+        catch (InterruptedException ex)
+        {
+          ex.printStackTrace();
+        }
+      }
+
+      deleteDirectory(directory);
+    }
+
+    System.out.printf("Message journal: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestJournalSpeed()
+  {
+    File directory = null;
+    MessageJournal journal = null;
+    try
+    {
+      directory = Files.createTempDirectory("punychat").toFile();
+      // Appends queued back to back share commits, so a burst costs a
+      // handful of syncs rather than one each. The queue has room for the
+      // whole burst; with less, append() drops what doesn't fit rather than
+      // waiting.
+      final int burstSize = 20000;
+      journal = MessageJournal.open(directory,
+        MessageJournal.DEFAULT_SEGMENT_SIZE, burstSize);
+      byte[][] hashes = { newHash(1), newHash(2) };
+      long commits = journal.getCommitCount();
+      long start = System.nanoTime();
+      for (int i = 0; i < burstSize; i++)
+      {
+        ChatMessage message = new ChatMessage("speed", "Message " + i);
+        message.setSender(1, i);
+        journal.append(hashes[i % 2], message,
+          MessageJournal.Direction.RECEIVED);
+      }
+
+      journal.flush();
+      System.out.printf("Journal: %d appends in %d ms, %d commits, %d " +
+        "dropped\n", burstSize, (System.nanoTime() - start) / 1000000,
+        journal.getCommitCount() - commits, journal.getDroppedCount());
+
+      // Waiting for each append pays for a sync every time.
+      final int singleCount = 200;
+      commits = journal.getCommitCount();
+      start = System.nanoTime();
+      for (int i = 0; i < singleCount; i++)
+      {
+        ChatMessage message = new ChatMessage("speed", "Single " + i);
+        message.setSender(2, i);
+        journal.append(hashes[0], message, MessageJournal.Direction.SENT)
+          .get();
+      }
+
+      System.out.printf("Journal: %d appends one at a time in %d ms, %d " +
+        "commits\n", singleCount, (System.nanoTime() - start) / 1000000,
+        journal.getCommitCount() - commits);
+
+      // Without the index, the last page of a channel means scanning the
+      // whole journal.
+      for (int i = 0; i < 3; i++)
+      {
+        start = System.nanoTime();
+        int found = scanLast(journal, hashes[1], 1000).size();
+        System.out.printf("Journal: last %d of a channel by scanning in " +
+          "%.1f ms\n", found, (System.nanoTime() - start) / 1000000.0);
+      }
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+    }
+    finally
+    {
+      if (journal != null)
+      {
+        try
+        {
+          journal.close();
+        }
+        catch (InterruptedException ex)
+        {
+          ex.printStackTrace();
+        }
+      }
+
+      deleteDirectory(directory);
+    }
+  }
+
+  // The channel's last limit records, found by scanning the whole journal
+  // the way reads do without the index
+  private static List<MessageJournal.Record> scanLast(MessageJournal journal,
+    byte[] hash, final int limit)
+    throws IOException
+  {
+    final ArrayDeque<MessageJournal.Record> records = new ArrayDeque<>();
+    journal.scan(hash, journal.getStartPosition(), journal.getEndPosition(),
+      new MessageJournal.RecordVisitor()
+      {
+        @Override
+        public boolean visit(MessageJournal.Record record)
+        {
+          records.addLast(record);
+          if (records.size() > limit)
+          {
+            records.removeFirst();
+          }
+
+          return true;
+        }
+      });
+
+    return new ArrayList<>(records);
+  }
+
+  public static void TestJournalIndex()
+  {
+    File directory = null;
+    MessageJournal journal = null;
+    MessageJournal recovered = null;
+    PrintStream err = System.err;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      directory = Files.createTempDirectory("punychat").toFile();
+      File journalDirectory = new File(directory, "journal");
+      File crashDirectory = new File(directory, "crash");
+      byte[][] hashes = { newHash(1), newHash(2), newHash(3) };
+      // Enough records for one checkpoint, with more noted after it
+      int recordCount = JournalIndex.CHECKPOINT_INTERVAL + 1000;
+      journal = MessageJournal.open(journalDirectory, 65536, 0);
+      for (int i = 0; i < recordCount; i++)
+      {
+        ChatMessage message = new ChatMessage("index", "Message " + i);
+        message.setSender(1, i);
+        journal.append(hashes[i % hashes.length], message,
+          MessageJournal.Direction.RECEIVED);
+      }
+
+      journal.flush();
+
+      // Copy the journal while it's still open, as a crash would leave it,
+      // and tear the last entry noted since the checkpoint.
+      crashDirectory.mkdir();
+      for (File file : journalDirectory.listFiles())
+      {
+        Files.copy(file.toPath(), new File(crashDirectory,
+          file.getName()).toPath());
+      }
+
+      File indexFile = new File(crashDirectory,
+        journal.getIndex().getFile().getName());
+      try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw"))
+      {
+        file.setLength(file.length() - 5);
+      }
+
+      // The index is only rebuilt from scratch if the checkpoint is lost.
+      ByteArrayOutputStream errors = new ByteArrayOutputStream();
+      System.setErr(new PrintStream(errors, true));
+      recovered = MessageJournal.open(crashDirectory, 65536, 0);
+      System.setErr(err);
+      checks++;
+      failures += check(!errors.toString().contains("Rebuilding") &&
+        recovered.getIndex().getEndPosition() == recovered.getEndPosition() &&
+        compareJournals(journal, recovered, hashes), "Checkpoint replay");
+      recovered.close();
+
+      // Without the index file at all, it's rebuilt and reads the same.
+      indexFile.delete();
+      recovered = MessageJournal.open(crashDirectory, 65536, 0);
+      checks++;
+      failures += check(recovered.getIndex().getEndPosition() ==
+        recovered.getEndPosition() &&
+        compareJournals(journal, recovered, hashes), "Rebuild");
+    }
+    catch (Exception ex)
+    {
+      System.setErr(err);
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      try
+      {
+        if (journal != null)
+        {
+          journal.close();
+        }
+
+        if (recovered != null)
+        {
+          recovered.close();
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        ex.printStackTrace();
+      }
+
+      deleteDirectory(directory);
+    }
+
+    System.out.printf("Journal index: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestJournalIndexSpeed()
+  {
+    File directory = null;
+    MessageJournal journal = null;
+    MessageJournal recovered = null;
+    try
+    {
+      directory = Files.createTempDirectory("punychat").toFile();
+      File journalDirectory = new File(directory, "journal");
+      File crashDirectory = new File(directory, "crash");
+      // One channel in ten records is read; the rest are other channels'.
+      final int recordCount = 200000;
+      journal = MessageJournal.open(journalDirectory,
+        MessageJournal.DEFAULT_SEGMENT_SIZE, recordCount);
+      byte[][] hashes = { newHash(1), newHash(2), newHash(3), newHash(4) };
+      for (int i = 0; i < recordCount; i++)
+      {
+        ChatMessage message = new ChatMessage("speed", "Message " + i);
+        message.setSender(1, i);
+        journal.append(hashes[i % 10 == 0 ? 0 : 1 + i % 3], message,
+          MessageJournal.Direction.RECEIVED);
+      }
+
+      journal.flush();
+      byte[] hash = hashes[0];
+      long count = journal.getMessageCount(hash);
+      for (int i = 0; i < 3; i++)
+      {
+        long start = System.nanoTime();
+        List<MessageJournal.Record> indexed = journal.read(hash, 1000,
+          journal.getEndPosition());
+        long indexedTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        List<MessageJournal.Record> scanned = scanLast(journal, hash, 1000);
+        long scannedTime = System.nanoTime() - start;
+        System.out.printf("Journal index: last 1000 of %d in %.1f ms " +
+          "with the index, %.1f ms scanning (%s)\n", count,
+          indexedTime / 1000000.0, scannedTime / 1000000.0,
+          getTexts(indexed).equals(getTexts(scanned)) ? "same"
+          : "different");
+      }
+
+      long start = System.nanoTime();
+      int pageSize = journal.readRange(hash, count / 2, 50).size();
+      System.out.printf("Journal index: a %d-record page in %.1f ms\n",
+        pageSize, (System.nanoTime() - start) / 1000000.0);
+
+      // Copy the journal while it's open, as a crash would leave it.
+      crashDirectory.mkdir();
+      for (File file : journalDirectory.listFiles())
+      {
+        Files.copy(file.toPath(), new File(crashDirectory,
+          file.getName()).toPath());
+      }
+
+      start = System.nanoTime();
+      recovered = MessageJournal.open(crashDirectory);
+      System.out.printf("Journal index: recovered from a crash in %d ms\n",
+        (System.nanoTime() - start) / 1000000);
+      File indexFile = recovered.getIndex().getFile();
+      recovered.close();
+      recovered = null;
+
+      indexFile.delete();
+      start = System.nanoTime();
+      recovered = MessageJournal.open(crashDirectory);
+      System.out.printf("Journal index: rebuilt in %d ms\n",
+        (System.nanoTime() - start) / 1000000);
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+    }
+    finally
+    {
+      try
+      {
+        if (journal != null)
+        {
+          journal.close();
+        }
+
+        if (recovered != null)
+        {
+          recovered.close();
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        ex.printStackTrace();
+      }
+
+      deleteDirectory(directory);
+    }
+  }
+
+  // Whether the two journals give the same counts and the same pages of
+  // history for each channel, read through their indexes
+  private static boolean compareJournals(MessageJournal expected,
+    MessageJournal actual, byte[][] hashes)
+    throws IOException
+  {
+    for (byte[] hash : hashes)
+    {
+      long count = expected.getMessageCount(hash);
+      if (count == 0 || actual.getMessageCount(hash) != count ||
+        !getTexts(actual.read(hash, 50, actual.getEndPosition())).equals(
+        getTexts(expected.read(hash, 50, expected.getEndPosition()))))
+      {
+        return false;
+      }
+
+      long[] ordinals = { 0, JournalIndex.INTERVAL - 1, JournalIndex.INTERVAL,
+        count / 2, count - 10 };
+      for (long ordinal : ordinals)
+      {
+        List<MessageJournal.Record> page = expected.readRange(hash, ordinal,
+          20);
+        long timestamp = page.get(0).getTimestamp();
+        if (!getTexts(actual.readRange(hash, ordinal, 20)).equals(
+          getTexts(page)) ||
+          !getTexts(actual.readSince(hash, timestamp, 20)).equals(
+          getTexts(expected.readSince(hash, timestamp, 20))))
+        {
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  private static List<String> getTexts(List<MessageJournal.Record> records)
+  {
+    List<String> texts = new ArrayList<>();
+    for (MessageJournal.Record record : records)
+    {
+      texts.add(record.getMessage().getText());
+    }
+
+    return texts;
+  }
+
+  public static void TestSearchIndex()
+  {
+    File directory = null;
+    MessageJournal journal = null;
+    SearchIndex index = null;
+    int checks = 0;
+    int failures = 0;
+    try
+    {
+      directory = Files.createTempDirectory("punychat").toFile();
+      journal = MessageJournal.open(directory);
+      File indexFile = new File(directory, "search.index");
+      // Each round writes 50 messages to a channel of its own and reopens
+      // the index, which should only have to index that round's messages.
+      for (int round = 0; round < 4; round++)
+      {
+        byte[] hash = newHash(round + 1);
+        for (int i = 0; i < 50; i++)
+        {
+          ChatMessage message = new ChatMessage("search",
+            "Round" + round + " common " + i);
+          message.setSender(1, round * 50 + i);
+          journal.append(hash, message, MessageJournal.Direction.RECEIVED);
+        }
+
+        journal.flush();
+        long expectedCount = 50;
+        if (round == 3)
+        {
+          // A save cut short loses only the last round's additions, which
+          // are indexed again from the journal.
+          try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw"))
+          {
+            file.setLength(file.length() - 5);
+          }
+
+          expectedCount = 100;
+        }
+
+        index = SearchIndex.open(journal);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!index.isLoaded() ||
+          index.getIndexedPosition() < journal.getEndPosition())
+        {
+          if (System.currentTimeMillis() > deadline)
+          {
+            throw new IOException("Timed out waiting for the index");
+          }
+
+          Thread.sleep(5);
+        }
+
+        List<MessageJournal.Record> common = index.search("common", null,
+          1000);
+        List<MessageJournal.Record> thisRound = index.search("round" + round,
+          hash, 1000);
+        checks++;
+        failures += check(index.getIndexedCount() == expectedCount &&
+          common.size() == (round + 1) * 50 && thisRound.size() == 50 &&
+          getTexts(thisRound).contains("Round" + round + " common 49") &&
+          index.search("round" + round, newHash(round + 2), 1000).isEmpty(),
+          String.format("Round %d: %d indexed, %d and %d found", round,
+          index.getIndexedCount(), common.size(), thisRound.size()));
+        index.close();
+        index = null;
+      }
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+      return;
+    }
+    finally
+    {
+      try
+      {
+        if (index != null)
+        {
+          index.close();
+        }
+
+        if (journal != null)
+        {
+          journal.close();
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        ex.printStackTrace();
+      }
+
+      deleteDirectory(directory);
+    }
+
+    System.out.printf("Search index: %d of %d checks passed\n",
+      checks - failures, checks);
+  }
+
+  public static void TestSearchSpeed()
+  {
+    File directory = null;
+    MessageJournal journal = null;
+    SearchIndex index = null;
+    try
+    {
+      directory = Files.createTempDirectory("punychat").toFile();
+      final int recordCount = 200000;
+      journal = MessageJournal.open(directory,
+        MessageJournal.DEFAULT_SEGMENT_SIZE, recordCount);
+      byte[][] hashes = { newHash(1), newHash(2), newHash(3), newHash(4) };
+      // Messages of five words from a vocabulary of 5000, where the
+      // low-numbered words are far more common than the rest
+      Random random = new Random(1);
+      for (int i = 0; i < recordCount; i++)
+      {
+        journal.append(hashes[i % hashes.length], newSearchMessage(random, i),
+          MessageJournal.Direction.RECEIVED);
+      }
+
+      journal.flush();
+
+      // Indexing happens in the background; appending mustn't wait on it.
+      long start = System.nanoTime();
+      index = SearchIndex.open(journal);
+      long slowestAppend = 0;
+      for (int i = 0; i < 1000; i++)
+      {
+        long appendStart = System.nanoTime();
+        journal.append(hashes[0], newSearchMessage(random, recordCount + i),
+          MessageJournal.Direction.RECEIVED);
+        slowestAppend = Math.max(slowestAppend,
+          System.nanoTime() - appendStart);
+        Thread.sleep(1);
+      }
+
+      journal.flush();
+      waitForIndex(index, journal);
+      System.out.printf("Search: indexed %d records (%d words) in %d ms, " +
+        "slowest append %.1f ms\n", index.getIndexedCount(),
+        index.getWordCount(), (System.nanoTime() - start) / 1000000,
+        slowestAppend / 1000000.0);
+
+      String[] queries = { "word0", "word10 word20", "word4000",
+        "word1 word2 word3" };
+      for (String query : queries)
+      {
+        for (int scope = 0; scope < 2; scope++)
+        {
+          byte[] hash = (scope == 0 ? null : hashes[1]);
+          start = System.nanoTime();
+          List<MessageJournal.Record> results = index.search(query, hash,
+            SearchIndex.DEFAULT_RESULT_LIMIT);
+          long elapsed = System.nanoTime() - start;
+          System.out.printf("Search: \"%s\" in %s: %d results in %.1f ms " +
+            "(%s)\n", query, hash == null ? "all channels" : "one channel",
+            results.size(), elapsed / 1000000.0,
+            getTexts(results).equals(getTexts(scanSearch(journal, query,
+            hash, SearchIndex.DEFAULT_RESULT_LIMIT))) ? "same as a scan"
+            : "different from a scan");
+        }
+      }
+
+      // The index is saved on close and read back on the next open.
+      index.close();
+      index = null;
+      File indexFile = new File(directory, "search.index");
+      for (int i = 0; i < 100; i++)
+      {
+        journal.append(hashes[2], newSearchMessage(random, recordCount + 1000 +
+          i), MessageJournal.Direction.RECEIVED);
+      }
+
+      journal.flush();
+      start = System.nanoTime();
+      index = SearchIndex.open(journal);
+      waitForIndex(index, journal);
+      System.out.printf("Search: %d KB saved index reloaded, and %d new " +
+        "records indexed, in %d ms\n", indexFile.length() / 1024,
+        index.getIndexedCount(), (System.nanoTime() - start) / 1000000);
+    }
+    catch (Exception ex)
+    {
+      System.err.println("Error: " + ex.getMessage());
+      ex.printStackTrace();
+    }
+    finally
+    {
+      try
+      {
+        if (index != null)
+        {
+          index.close();
+        }
+
+        if (journal != null)
+        {
+          journal.close();
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        ex.printStackTrace();
+      }
+
+      deleteDirectory(directory);
+    }
+  }
+
+  private static ChatMessage newSearchMessage(Random random, int sequence)
+  {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 5; i++)
+    {
+      double skew = random.nextDouble();
+      text.append(i == 0 ? "" : " ").append("word").append(
+        (int)(5000 * skew * skew * skew));
+    }
+
+    ChatMessage message = new ChatMessage("speed", text.toString());
+    message.setSender(1, sequence);
+    return message;
+  }
+
+  private static void waitForIndex(SearchIndex index, MessageJournal journal)
+    throws Exception
+  {
+    long deadline = System.currentTimeMillis() + 60000;
+    while (!index.isLoaded() ||
+      index.getIndexedPosition() < journal.getEndPosition())
+    {
+      if (System.currentTimeMillis() > deadline)
+      {
+        throw new IOException("Timed out waiting for the index");
+      }
+
+      Thread.sleep(5);
+    }
+  }
+
+  // The newest limit records containing every word of the query, found by
+  // reading the whole journal
+  private static List<MessageJournal.Record> scanSearch(
+    MessageJournal journal, String query, byte[] hash, final int limit)
+    throws IOException
+  {
+    final List<String> words = SearchIndex.split(query);
+    final ArrayDeque<MessageJournal.Record> records = new ArrayDeque<>();
+    journal.scan(hash, journal.getStartPosition(), journal.getEndPosition(),
+      new MessageJournal.RecordVisitor()
+      {
+        @Override
+        public boolean visit(MessageJournal.Record record)
+        {
+          ChatMessage message = record.getMessage();
+          List<String> recordWords = SearchIndex.split(message.getName() +
+            " " + message.getText());
+          if (recordWords.containsAll(words))
+          {
+            records.addFirst(record);
+            if (records.size() > limit)
+            {
+              records.removeLast();
+            }
+          }
+
+          return true;
+        }
+      });
+
+    return new ArrayList<>(records);
+  }
+
+  // How many records the journal has across the given channels
+  private static long getJournalCount(MessageJournal journal,
+    byte[][] hashes)
+    throws IOException
+  {
+    long count = 0;
+    for (byte[] hash : hashes)
+    {
+      count += journal.getMessageCount(hash);
+    }
+
+    return count;
+  }
+
+  private static String getLastText(MessageJournal journal, byte[] hash)
+    throws IOException
+  {
+    List<MessageJournal.Record> records = journal.read(hash, 1,
+      journal.getEndPosition());
+    return (records.isEmpty() ? ""
+      : records.get(0).getMessage().getText());
+  }
+
+  private static File getLastSegmentFile(File directory)
+  {
+    File last = null;
+    for (File file : directory.listFiles())
+    {
+      if (file.getName().endsWith(".journal") &&
+        (last == null || file.getName().compareTo(last.getName()) > 0))
+      {
+        last = file;
+      }
+    }
+
+    return last;
+  }
+
+  // A stand-in channel hash
+  private static byte[] newHash(int value)
+  {
+    byte[] hash = new byte[ChatEntry.HASH_LENGTH];
+    hash[0] = (byte)value;
+    return hash;
+  }
+
+  // Deletes the directory and everything under it.
+  private static void deleteDirectory(File directory)
+  {
+    if (directory == null)
+    {
+      return;
+    }
+
+    File[] files = directory.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        deleteDirectory(file);
+      }
+    }
+
+    directory.delete();
+  }
+
+  // The message a future failed with, or null if it hasn't failed
+  private static String getFailure(CompletableFuture<Void> future)
+  {
+    try
+    {
+      if (future.isDone())
+      {
+        future.get();
+      }
+
+      return null;
+    }
+    catch (Exception ex)
+    {
+      return (ex.getCause() == null ? ex.toString()
+        : ex.getCause().getMessage());
+    }
+  }
+
+  private static ChatEntry newFragment(Channel channel, String name,
+    int senderId, int id, int count, int fragment)
+  {
+    ChatMessage message = new ChatMessage(name, "part " + fragment, id, count,
+      fragment);
+    message.setSender(senderId, fragment);
+    return new ChatEntry(channel, message);
+  }
+
+  // Prints a failed check. Returns 1 if it failed, so callers can count them.
+  private static int check(boolean passed, String description)
+  {
+    if (!passed)
+    {
+      System.err.println("Failed: " + description);
+    }
+
+    return (passed ? 0 : 1);
+  }
 }
@@ -0,0 +1,93 @@
+// A token bucket for pacing: tokens accumulate at a fixed rate up to a
+// maximum burst, and each packet spends one. Rather than making callers poll,
+// reserve() always hands out the tokens (letting the balance go negative) and
+// says how long the caller has to wait before using them, so waiting callers
+// queue up fairly and the wait happens outside of the lock.
+public class TokenBucket
+{
+  private double rate_;
+  private double burst_;
+  private double tokens_;
+  private long lastRefill_;
+
+  // A rate of zero (or less) means unlimited.
+  public TokenBucket(double tokensPerSecond, int burst)
+  {
+    setRate(tokensPerSecond, burst);
+    tokens_ = burst_;
+    lastRefill_ = System.nanoTime();
+  }
+
+  public synchronized double getRate()
+  {
+    return rate_;
+  }
+
+  public synchronized int getBurst()
+  {
+    return (int)burst_;
+  }
+
+  public synchronized void setRate(double tokensPerSecond, int burst)
+  {
+    rate_ = Math.max(0, tokensPerSecond);
+    burst_ = Math.max(1, burst);
+    tokens_ = Math.min(tokens_, burst_);
+  }
+
+  public synchronized boolean isUnlimited()
+  {
+    return rate_ <= 0;
+  }
+
+  // Tokens available right now (negative while callers are waiting)
+  public synchronized double getAvailable()
+  {
+    refill(System.nanoTime());
+    return tokens_;
+  }
+
+  // Takes the tokens and returns how many nanoseconds the caller should wait
+  // before going ahead; zero if it can go right away.
+  public synchronized long reserve(int tokens)
+  {
+    if (rate_ <= 0)
+    {
+      return 0;
+    }
+
+    long now = System.nanoTime();
+    refill(now);
+    tokens_ -= tokens;
+    if (tokens_ >= 0)
+    {
+      return 0;
+    }
+
+    return (long)(-tokens_ / rate_ * 1e9);
+  }
+
+  // Takes the tokens only if they're available right now.
+  public synchronized boolean tryAcquire(int tokens)
+  {
+    if (rate_ <= 0)
+    {
+      return true;
+    }
+
+    refill(System.nanoTime());
+    if (tokens_ < tokens)
+    {
+      return false;
+    }
+
+    tokens_ -= tokens;
+    return true;
+  }
+
+  private void refill(long now)
+  {
+    tokens_ = Math.min(burst_, tokens_ + (now - lastRefill_) * rate_ / 1e9);
+    lastRefill_ = now;
+  }
+}